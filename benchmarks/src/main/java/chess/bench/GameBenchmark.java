@@ -0,0 +1,113 @@
+package chess.bench;
+
+import chess.ChessBoard;
+import chess.ChessGame;
+import chess.Fen;
+import chess.MoveGenerator;
+import chess.MoveList;
+import chess.PieceColor;
+import chess.Position;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Hot ChessGame and ChessBoard entry points on the "kiwipete" middlegame position.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GameBenchmark {
+  private static final String KIWIPETE = "r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1";
+  // Knight tour that returns to the start position every four plies.
+  private static final Position[][] SHUFFLE = {
+          { Position.of(Fen.parseSquare("g1")), Position.of(Fen.parseSquare("f3")) },
+          { Position.of(Fen.parseSquare("g8")), Position.of(Fen.parseSquare("f6")) },
+          { Position.of(Fen.parseSquare("f3")), Position.of(Fen.parseSquare("g1")) },
+          { Position.of(Fen.parseSquare("f6")), Position.of(Fen.parseSquare("g8")) } };
+
+  private ChessGame game;
+  private ChessGame shuffleGame;
+  private ChessBoard board;
+  private final MoveList moves = new MoveList();
+  private int[] cycle;
+  private int next;
+  private int shuffled;
+  private final int knightSquare = Fen.parseSquare("e5");
+  private final Position knight = Position.of(knightSquare);
+
+  @Setup(Level.Iteration)
+  public void setUp() {
+      game = new ChessGame(KIWIPETE);
+      board = game.getBoard();
+      MoveGenerator.generateMoves(board, board.getSideToMove(), moves);
+      cycle = new int[moves.size()];
+      for (int i = 0; i < cycle.length; i++) {
+          cycle[i] = moves.get(i);
+      }
+      shuffleGame = new ChessGame();
+      shuffled = 0;
+  }
+
+  // The position does not change between calls, so after the first call this measures the move cache hit.
+  @Benchmark
+  public List<Position> getLegalMovesForPieceAt() {
+      return game.getLegalMovesForPieceAt(knight);
+  }
+
+  // What a move cache miss pays for: legal move generation for the one square, with the cache bypassed.
+  @Benchmark
+  public int generateLegalPieceMoves() {
+      MoveGenerator.generateLegalPieceMoves(board, knightSquare, moves);
+      return moves.size();
+  }
+
+  @Benchmark
+  public int generateMoves() {
+      MoveGenerator.generateMoves(board, board.getSideToMove(), moves);
+      return moves.size();
+  }
+
+  @Benchmark
+  public boolean isInCheck() {
+      return game.isInCheck(PieceColor.WHITE);
+  }
+
+  @Benchmark
+  public boolean isCheckmate() {
+      return game.isCheckmate(PieceColor.WHITE);
+  }
+
+  // ChessBoard.makeMove followed by unmakeMove, cycling through every pseudo-legal move of the position.
+  @Benchmark
+  public int makeUnmakeMove() {
+      int move = cycle[next++ % cycle.length];
+      board.makeMove(move);
+      board.unmakeMove();
+      return move;
+  }
+
+  // ChessGame.makeMove(Position, Position): legality check, move and bookkeeping. The game is reloaded now and
+  // then so its move history stays short.
+  @Benchmark
+  public boolean movePiece() {
+      Position[] move = SHUFFLE[shuffled++ & 3];
+      if ((shuffled & 1023) == 0) {
+          shuffleGame.loadFen(Fen.START_POSITION);
+          shuffled = 0;
+          return true;
+      }
+      return shuffleGame.makeMove(move[0], move[1]);
+  }
+}
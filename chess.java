@@ -2,12 +2,93 @@
 
 public class ChessBoard {
   private Piece[][] board;
+  // Bitboard backend: one occupancy mask per color and piece type, indexed color * 6 + type.
+  private final long[] pieceBitboards = new long[12];
+  // PieceCode per square, kept alongside the Piece[][] grid so hot paths never call into Piece.
+  private final byte[] codes = new byte[64];
+  private final long[] colorBitboards = new long[2];
+  private long occupied;
+  private final int[] kingSquares = { -1, -1 };
+  // Per-side attack maps, rebuilt lazily from the bitboards after any change to the position.
+  private final long[] attackMaps = new long[2];
+  private final long[] attackMapVersions = { -1, -1 };
+  private long version;
+
+  public static final int WHITE_KINGSIDE = 1;
+  public static final int WHITE_QUEENSIDE = 2;
+  public static final int BLACK_KINGSIDE = 4;
+  public static final int BLACK_QUEENSIDE = 8;
+  // Castling rights that survive a move touching each square; rooks and kings lose theirs on first move.
+  private static final int[] CASTLING_MASKS = new int[64];
+
+  static {
+      java.util.Arrays.fill(CASTLING_MASKS, 15);
+      CASTLING_MASKS[Bitboards.square(7, 0)] = ~WHITE_QUEENSIDE & 15;
+      CASTLING_MASKS[Bitboards.square(7, 4)] = ~(WHITE_KINGSIDE | WHITE_QUEENSIDE) & 15;
+      CASTLING_MASKS[Bitboards.square(7, 7)] = ~WHITE_KINGSIDE & 15;
+      CASTLING_MASKS[Bitboards.square(0, 0)] = ~BLACK_QUEENSIDE & 15;
+      CASTLING_MASKS[Bitboards.square(0, 4)] = ~(BLACK_KINGSIDE | BLACK_QUEENSIDE) & 15;
+      CASTLING_MASKS[Bitboards.square(0, 7)] = ~BLACK_KINGSIDE & 15;
+  }
+
+  private PieceColor sideToMove = PieceColor.WHITE;
+  private int castlingRights = WHITE_KINGSIDE | WHITE_QUEENSIDE | BLACK_KINGSIDE | BLACK_QUEENSIDE;
+  private int enPassantSquare = -1;
+  private int halfmoveClock;
+  private int fullmoveNumber = 1;
+
+  // Undo stack for makeMove/unmakeMove; grows only if a game outlasts the preallocated depth.
+  private int[] undoMoves = new int[256];
+  private Piece[] undoMoved = new Piece[256];
+  private Piece[] undoCaptured = new Piece[256];
+  private int[] undoStates = new int[256];
+  private long[] undoHashes = new long[256];
+  private int undoSize;
+  private long hash;
+  // Material plus piece-square sums (White minus Black) and game phase, kept in step with the bitboards.
+  private int middlegameScore;
+  private int endgameScore;
+  private int phase;
 
   public ChessBoard() {
       this.board = new Piece[8][8]; // Chessboard is 8x8
       setupPieces();
+      syncBitboards();
+  }
+
+  // Deep copy with its own Piece objects, so the copy can be searched on another thread; move history is kept.
+  public ChessBoard(ChessBoard other) {
+      this.board = new Piece[8][8];
+      for (int row = 0; row < 8; row++) {
+          for (int col = 0; col < 8; col++) {
+              board[row][col] = copyOf(other.board[row][col]);
+          }
+      }
+      this.sideToMove = other.sideToMove;
+      this.castlingRights = other.castlingRights;
+      this.enPassantSquare = other.enPassantSquare;
+      this.halfmoveClock = other.halfmoveClock;
+      this.fullmoveNumber = other.fullmoveNumber;
+      syncBitboards();
+
+      int capacity = other.undoMoves.length;
+      this.undoMoves = java.util.Arrays.copyOf(other.undoMoves, capacity);
+      this.undoStates = java.util.Arrays.copyOf(other.undoStates, capacity);
+      this.undoHashes = java.util.Arrays.copyOf(other.undoHashes, capacity);
+      this.undoMoved = new Piece[capacity];
+      this.undoCaptured = new Piece[capacity];
+      for (int i = 0; i < other.undoSize; i++) {
+          undoMoved[i] = copyOf(other.undoMoved[i]);
+          undoCaptured[i] = copyOf(other.undoCaptured[i]);
+      }
+      this.undoSize = other.undoSize;
+  }
+
+  private static Piece copyOf(Piece piece) {
+      return piece == null ? null : Piece.create(piece.getType(), piece.getColor(), piece.getPosition());
   }
 
+  // The live grid, mutated in place by every move; other threads should read a BoardSnapshot instead.
   public Piece[][] getBoard() {
       return board;
   }
@@ -17,9 +98,223 @@ public class ChessBoard {
   }
 
   public void setPiece(int row, int column, Piece piece) {
+      int square = Bitboards.square(row, column);
+      if (board[row][column] != null) {
+          removeBits(square);
+      }
       board[row][column] = piece;
       if (piece != null) {
-          piece.setPosition(new Position(row, column));
+          piece.setPosition(Position.of(square));
+          addBits(square, piece);
+      }
+  }
+
+  // Empties the board and resets all state, ready for a position to be set up square by square.
+  public void clear() {
+      for (int row = 0; row < 8; row++) {
+          java.util.Arrays.fill(board[row], null);
+      }
+      syncBitboards();
+      kingSquares[0] = -1;
+      kingSquares[1] = -1;
+      java.util.Arrays.fill(undoMoved, null);
+      java.util.Arrays.fill(undoCaptured, null);
+      undoSize = 0;
+      setState(PieceColor.WHITE, 0, -1, 0, 1);
+  }
+
+  public void setState(PieceColor sideToMove, int castlingRights, int enPassantSquare, int halfmoveClock,
+          int fullmoveNumber) {
+      hash ^= stateHash();
+      this.sideToMove = sideToMove;
+      this.castlingRights = castlingRights;
+      this.enPassantSquare = enPassantSquare;
+      this.halfmoveClock = halfmoveClock;
+      this.fullmoveNumber = fullmoveNumber;
+      hash ^= stateHash();
+  }
+
+  // Zobrist key of the position, including side to move, castling rights and en-passant file.
+  public long hash() {
+      return hash;
+  }
+
+  // Zobrist key of the position ply moves before the current one, for repetition checks.
+  public long getHistoryHash(int ply) {
+      return ply == 0 ? hash : undoHashes[undoSize - ply];
+  }
+
+  private long stateHash() {
+      long key = Zobrist.CASTLING[castlingRights];
+      if (sideToMove == PieceColor.BLACK) {
+          key ^= Zobrist.SIDE;
+      }
+      if (enPassantSquare >= 0) {
+          key ^= Zobrist.EN_PASSANT[enPassantSquare & 7];
+      }
+      return key;
+  }
+
+  public PieceColor getSideToMove() {
+      return sideToMove;
+  }
+
+  public int getCastlingRights() {
+      return castlingRights;
+  }
+
+  public int getEnPassantSquare() {
+      return enPassantSquare;
+  }
+
+  public int getHalfmoveClock() {
+      return halfmoveClock;
+  }
+
+  public int getFullmoveNumber() {
+      return fullmoveNumber;
+  }
+
+  public int getPly() {
+      return undoSize;
+  }
+
+  public int getMiddlegameScore() {
+      return middlegameScore;
+  }
+
+  public int getEndgameScore() {
+      return endgameScore;
+  }
+
+  public int getPhase() {
+      return phase;
+  }
+
+  public int codeAt(int square) {
+      return codes[square];
+  }
+
+  public long getPieces(PieceColor color, PieceType type) {
+      return pieceBitboards[color.ordinal() * 6 + type.ordinal()];
+  }
+
+  public long getOccupancy(PieceColor color) {
+      return colorBitboards[color.ordinal()];
+  }
+
+  public long getOccupied() {
+      return occupied;
+  }
+
+  public int getKingSquare(PieceColor color) {
+      return kingSquares[color.ordinal()];
+  }
+
+  public long getAttackMap(PieceColor color) {
+      int side = color.ordinal();
+      if (attackMapVersions[side] != version) {
+          attackMaps[side] = computeAttacks(side, occupied);
+          attackMapVersions[side] = version;
+      }
+      return attackMaps[side];
+  }
+
+  // Attacks of color computed against the given occupancy, e.g. with the enemy king lifted to see x-rays.
+  public long getAttacks(PieceColor color, long occupancy) {
+      return computeAttacks(color.ordinal(), occupancy);
+  }
+
+  public boolean isSquareAttacked(int square, PieceColor byColor) {
+      if (attackMapVersions[byColor.ordinal()] == version) {
+          return (attackMaps[byColor.ordinal()] & (1L << square)) != 0;
+      }
+      int c = byColor.ordinal() * 6;
+      // A pawn of byColor attacks square exactly when a pawn of the other color on square would attack it.
+      if ((Bitboards.PAWN_ATTACKS[byColor.ordinal() ^ 1][square] & pieceBitboards[c + PieceType.PAWN.ordinal()]) != 0
+              || (Bitboards.KNIGHT_ATTACKS[square] & pieceBitboards[c + PieceType.KNIGHT.ordinal()]) != 0
+              || (Bitboards.KING_ATTACKS[square] & pieceBitboards[c + PieceType.KING.ordinal()]) != 0) {
+          return true;
+      }
+      long queens = pieceBitboards[c + PieceType.QUEEN.ordinal()];
+      return (Bitboards.rookAttacks(square, occupied) & (pieceBitboards[c + PieceType.ROOK.ordinal()] | queens)) != 0
+              || (Bitboards.bishopAttacks(square, occupied)
+                      & (pieceBitboards[c + PieceType.BISHOP.ordinal()] | queens)) != 0;
+  }
+
+  private long computeAttacks(int side, long occupancy) {
+      int c = side * 6;
+      long attacks = 0L;
+      for (long pawns = pieceBitboards[c + PieceType.PAWN.ordinal()]; pawns != 0; pawns &= pawns - 1) {
+          attacks |= Bitboards.PAWN_ATTACKS[side][Long.numberOfTrailingZeros(pawns)];
+      }
+      for (long knights = pieceBitboards[c + PieceType.KNIGHT.ordinal()]; knights != 0; knights &= knights - 1) {
+          attacks |= Bitboards.KNIGHT_ATTACKS[Long.numberOfTrailingZeros(knights)];
+      }
+      long queens = pieceBitboards[c + PieceType.QUEEN.ordinal()];
+      for (long diagonal = pieceBitboards[c + PieceType.BISHOP.ordinal()] | queens; diagonal != 0; diagonal &= diagonal - 1) {
+          attacks |= Bitboards.bishopAttacks(Long.numberOfTrailingZeros(diagonal), occupancy);
+      }
+      for (long straight = pieceBitboards[c + PieceType.ROOK.ordinal()] | queens; straight != 0; straight &= straight - 1) {
+          attacks |= Bitboards.rookAttacks(Long.numberOfTrailingZeros(straight), occupancy);
+      }
+      if (kingSquares[side] >= 0) {
+          attacks |= Bitboards.KING_ATTACKS[kingSquares[side]];
+      }
+      return attacks;
+  }
+
+  private void addBits(int square, Piece piece) {
+      long bit = 1L << square;
+      int index = piece.getColor().ordinal() * 6 + piece.getType().ordinal();
+      codes[square] = (byte) (index + 1);
+      pieceBitboards[index] |= bit;
+      hash ^= Zobrist.PIECES[index][square];
+      middlegameScore += Evaluator.MG_SCORES[index][square];
+      endgameScore += Evaluator.EG_SCORES[index][square];
+      phase += Evaluator.PHASE[piece.getType().ordinal()];
+      colorBitboards[piece.getColor().ordinal()] |= bit;
+      occupied |= bit;
+      if (piece.getType() == PieceType.KING) {
+          kingSquares[piece.getColor().ordinal()] = square;
+      }
+      version++;
+  }
+
+  private void removeBits(int square) {
+      long bit = ~(1L << square);
+      int code = codes[square];
+      int index = code - 1;
+      int color = PieceCode.color(code);
+      codes[square] = PieceCode.NONE;
+      pieceBitboards[index] &= bit;
+      hash ^= Zobrist.PIECES[index][square];
+      middlegameScore -= Evaluator.MG_SCORES[index][square];
+      endgameScore -= Evaluator.EG_SCORES[index][square];
+      phase -= Evaluator.PHASE[PieceCode.type(code)];
+      colorBitboards[color] &= bit;
+      occupied &= bit;
+      if (kingSquares[color] == square) {
+          kingSquares[color] = -1;
+      }
+      version++;
+  }
+
+  private void syncBitboards() {
+      java.util.Arrays.fill(pieceBitboards, 0L);
+      java.util.Arrays.fill(codes, (byte) PieceCode.NONE);
+      java.util.Arrays.fill(colorBitboards, 0L);
+      occupied = 0L;
+      middlegameScore = 0;
+      endgameScore = 0;
+      phase = 0;
+      hash = stateHash();
+      for (int row = 0; row < 8; row++) {
+          for (int col = 0; col < 8; col++) {
+              if (board[row][col] != null) {
+                  addBits(Bitboards.square(row, col), board[row][col]);
+              }
+          }
       }
   }
 
@@ -53,29 +348,222 @@ public class ChessBoard {
   }
 
   public void movePiece(Position start, Position end) {
-      if (board[start.getRow()][start.getColumn()] != null &&
-              board[start.getRow()][start.getColumn()].isValidMove(end, board)) {
+      Piece moving = board[start.getRow()][start.getColumn()];
+      if (moving != null && MoveGenerator.isPseudoLegal(this, Bitboards.square(start.getRow(), start.getColumn()),
+              Bitboards.square(end.getRow(), end.getColumn()))) {
+          Piece captured = board[end.getRow()][end.getColumn()];
+          if (captured != null) {
+              removeBits(Bitboards.square(end.getRow(), end.getColumn()));
+          }
+          removeBits(Bitboards.square(start.getRow(), start.getColumn()));
+          addBits(Bitboards.square(end.getRow(), end.getColumn()), moving);
 
-          board[end.getRow()][end.getColumn()] = board[start.getRow()][start.getColumn()];
+          board[end.getRow()][end.getColumn()] = moving;
           board[end.getRow()][end.getColumn()].setPosition(end);
           board[start.getRow()][start.getColumn()] = null;
       }
   }
+
+  // Plays a move produced by MoveGenerator for the side to move; unmakeMove restores the previous position exactly.
+  public void makeMove(int move) {
+      int from = Move.from(move);
+      int to = Move.to(move);
+      Piece moving = board[from >> 3][from & 7];
+      int captureSquare = Move.hasFlag(move, Move.EN_PASSANT) ? to + (sideToMove == PieceColor.WHITE ? 8 : -8) : to;
+      Piece captured = board[captureSquare >> 3][captureSquare & 7];
+
+      if (undoSize == undoMoves.length) {
+          growUndoStack();
+      }
+      undoMoves[undoSize] = move;
+      undoMoved[undoSize] = moving;
+      undoCaptured[undoSize] = captured;
+      undoStates[undoSize] = castlingRights | ((enPassantSquare + 1) << 4) | (halfmoveClock << 11);
+      undoHashes[undoSize] = hash;
+      undoSize++;
+      hash ^= stateHash();
+
+      if (captured != null) {
+          lift(captureSquare);
+      }
+      lift(from);
+      if (Move.promotion(move) != 0) {
+          place(to, Piece.create(PieceType.of(Move.promotion(move)), moving.getColor(), Position.of(to)));
+      } else {
+          place(to, moving);
+      }
+      if (Move.hasFlag(move, Move.CASTLING)) {
+          boolean kingside = to > from;
+          place(kingside ? from + 1 : from - 1, lift(kingside ? from + 3 : from - 4));
+      }
+
+      enPassantSquare = -1;
+      if (Move.hasFlag(move, Move.DOUBLE_PUSH)) {
+          int passed = (from + to) >> 1;
+          // Only record the square when an enemy pawn could actually capture onto it.
+          if ((Bitboards.PAWN_ATTACKS[sideToMove.ordinal()][passed] & getPieces(sideToMove.opposite(), PieceType.PAWN)) != 0) {
+              enPassantSquare = passed;
+          }
+      }
+      castlingRights &= CASTLING_MASKS[from] & CASTLING_MASKS[to];
+      halfmoveClock = captured != null || Move.promotion(move) != 0
+              || PieceCode.type(codes[to]) == PieceType.PAWN.ordinal() ? 0 : halfmoveClock + 1;
+      if (sideToMove == PieceColor.BLACK) {
+          fullmoveNumber++;
+      }
+      sideToMove = sideToMove.opposite();
+      hash ^= stateHash();
+  }
+
+  public void unmakeMove() {
+      undoSize--;
+      int move = undoMoves[undoSize];
+      Piece moving = undoMoved[undoSize];
+      Piece captured = undoCaptured[undoSize];
+      int state = undoStates[undoSize];
+      undoMoved[undoSize] = null;
+      undoCaptured[undoSize] = null;
+
+      sideToMove = sideToMove.opposite();
+      if (sideToMove == PieceColor.BLACK) {
+          fullmoveNumber--;
+      }
+      int from = Move.from(move);
+      int to = Move.to(move);
+      if (Move.hasFlag(move, Move.CASTLING)) {
+          boolean kingside = to > from;
+          place(kingside ? from + 3 : from - 4, lift(kingside ? from + 1 : from - 1));
+      }
+      lift(to);
+      place(from, moving);
+      if (captured != null) {
+          place(Move.hasFlag(move, Move.EN_PASSANT) ? to + (sideToMove == PieceColor.WHITE ? 8 : -8) : to, captured);
+      }
+
+      castlingRights = state & 15;
+      enPassantSquare = ((state >>> 4) & 127) - 1;
+      halfmoveClock = state >>> 11;
+      hash = undoHashes[undoSize];
+  }
+
+  private void place(int square, Piece piece) {
+      board[square >> 3][square & 7] = piece;
+      piece.setPosition(Position.of(square));
+      addBits(square, piece);
+  }
+
+  private Piece lift(int square) {
+      Piece piece = board[square >> 3][square & 7];
+      board[square >> 3][square & 7] = null;
+      removeBits(square);
+      return piece;
+  }
+
+  private void growUndoStack() {
+      int capacity = undoMoves.length * 2;
+      undoMoves = java.util.Arrays.copyOf(undoMoves, capacity);
+      undoMoved = java.util.Arrays.copyOf(undoMoved, capacity);
+      undoCaptured = java.util.Arrays.copyOf(undoCaptured, capacity);
+      undoStates = java.util.Arrays.copyOf(undoStates, capacity);
+      undoHashes = java.util.Arrays.copyOf(undoHashes, capacity);
+  }
 }
 
 
 
+
 ChessGame:
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.ArrayList;
 
 public class ChessGame {
+  // Shared by every game, so sessions and spectators asking about the same position reuse one move list.
+  private static final MoveCache MOVE_CACHE = new MoveCache(Integer.getInteger("chess.moveCacheEntries", 65536));
+
   private ChessBoard board;
-  private boolean whiteTurn = true; // White starts the game
+  private final MoveList moveBuffer = new MoveList();
+  // Moves played through makeMove since startFen, kept so finished games can be archived.
+  private String startFen = Fen.START_POSITION;
+  private int[] history = new int[128];
+  private int historySize;
+  private GameArchiveWriter archive;
+  // Version, ply and last move of the current position. The snapshot for it is only built when asked for, so bulk
+  // replays (imports, tournaments, UCI positions) that nobody watches allocate nothing per move.
+  private long version = -1;
+  private int ply;
+  private int lastMove = Move.NONE;
+  private BoardSnapshot snapshot;
 
   public ChessGame() {
       this.board = new ChessBoard();
+      positionChanged(Move.NONE);
+  }
+
+  public ChessGame(ChessBoard board) {
+      this.board = board;
+      this.startFen = Fen.toFen(board);
+      positionChanged(Move.NONE);
+  }
+
+  public ChessGame(String fen) {
+      this(Fen.parse(fen));
+  }
+
+  // Resumes from a snapshot, which stays current until the next change; move history is not kept.
+  public ChessGame(BoardSnapshot snapshot) {
+      this.board = snapshot.getPosition().toBoard();
+      this.startFen = Fen.toFen(board);
+      this.version = snapshot.getVersion();
+      this.ply = snapshot.getPly();
+      this.lastMove = snapshot.getLastMove();
+      this.snapshot = snapshot;
+  }
+
+  public void loadFen(String fen) {
+      Fen.load(board, fen);
+      selectedPosition = null;
+      startFen = fen;
+      historySize = 0;
+      positionChanged(Move.NONE);
+  }
+
+  public String getStartFen() {
+      return startFen;
+  }
+
+  public int[] getMoveHistory() {
+      return Arrays.copyOf(history, historySize);
+  }
+
+  // When set, resetGame appends the finished game to this archive before discarding it.
+  public void setArchive(GameArchiveWriter archive) {
+      this.archive = archive;
+  }
+
+  public String toFen() {
+      return Fen.toFen(board);
+  }
+
+  // Snapshot of the current position, built on first request and reused until the next change. Like the board it
+  // is read from, call it on the thread playing the game; the snapshot itself can then be handed to any thread.
+  public BoardSnapshot getSnapshot() {
+      BoardSnapshot current = snapshot;
+      if (current == null || current.getVersion() != version) {
+          current = new BoardSnapshot(version, board, lastMove, ply);
+          snapshot = current;
+      }
+      return current;
+  }
+
+  private void positionChanged(int move) {
+      version++;
+      ply = move == Move.NONE ? 0 : ply + 1;
+      lastMove = move;
   }
 
   public ChessBoard getBoard() {
@@ -83,12 +571,21 @@ public class ChessGame {
   }
 
   public void resetGame() {
+      if (archive != null && historySize > 0) {
+          try {
+              archive.append(this);
+          } catch (IOException e) {
+              throw new UncheckedIOException("Could not archive game", e);
+          }
+      }
       this.board = new ChessBoard();
-      this.whiteTurn = true;
+      this.startFen = Fen.START_POSITION;
+      this.historySize = 0;
+      positionChanged(Move.NONE);
   }
 
   public PieceColor getCurrentPlayerColor() {
-      return whiteTurn ? PieceColor.WHITE : PieceColor.BLACK;
+      return board.getSideToMove();
   }
 
   private Position selectedPosition;
@@ -101,7 +598,7 @@ public class ChessGame {
       if (selectedPosition == null) {
           Piece selectedPiece = board.getPiece(row, col);
           if (selectedPiece != null
-                  && selectedPiece.getColor() == (whiteTurn ? PieceColor.WHITE : PieceColor.BLACK)) {
+                  && selectedPiece.getColor() == getCurrentPlayerColor()) {
               selectedPosition = new Position(row, col);
               return false;
           }
@@ -114,177 +611,191 @@ public class ChessGame {
   }
 
   public boolean makeMove(Position start, Position end) {
+      return makeMove(start, end, PieceType.QUEEN);
+  }
+
+  public boolean makeMove(Position start, Position end, PieceType promotion) {
+      if (!Metrics.ENABLED) {
+          return applyMove(start, end, promotion);
+      }
+      long startNanos = System.nanoTime();
+      boolean made = applyMove(start, end, promotion);
+      Metrics.moveValidated(startNanos, Bitboards.square(start.getRow(), start.getColumn()),
+              Bitboards.square(end.getRow(), end.getColumn()), made);
+      return made;
+  }
+
+  private boolean applyMove(Position start, Position end, PieceType promotion) {
       Piece movingPiece = board.getPiece(start.getRow(), start.getColumn());
-      if (movingPiece == null || movingPiece.getColor() != (whiteTurn ? PieceColor.WHITE : PieceColor.BLACK)) {
+      if (movingPiece == null || movingPiece.getColor() != getCurrentPlayerColor()) {
           return false;
       }
 
-      if (movingPiece.isValidMove(end, board.getBoard())) {
-          board.movePiece(start, end);
-          whiteTurn = !whiteTurn;
+      int move = findMove(Bitboards.square(start.getRow(), start.getColumn()),
+              Bitboards.square(end.getRow(), end.getColumn()), promotion);
+      if (move != Move.NONE) {
+          play(move);
           return true;
       }
       return false;
   }
 
-  public boolean isInCheck(PieceColor kingColor) {
-      Position kingPosition = findKingPosition(kingColor);
-      for (int row = 0; row < board.getBoard().length; row++) {
-          for (int col = 0; col < board.getBoard()[row].length; col++) {
-              Piece piece = board.getPiece(row, col);
-              if (piece != null && piece.getColor() != kingColor) {
-                  if (piece.isValidMove(kingPosition, board.getBoard())) {
-                      return true;
-                  }
-              }
+  // Plays a packed move, as produced by MoveGenerator or a SearchEngine, if it is legal for the side to move.
+  public boolean makeMove(int move) {
+      MoveGenerator.generateLegalMoves(board, getCurrentPlayerColor(), moveBuffer);
+      for (int i = 0; i < moveBuffer.size(); i++) {
+          if (moveBuffer.get(i) == move) {
+              play(move);
+              return true;
           }
       }
       return false;
   }
 
-  private Position findKingPosition(PieceColor color) {
-      for (int row = 0; row < board.getBoard().length; row++) {
-          for (int col = 0; col < board.getBoard()[row].length; col++) {
-              Piece piece = board.getPiece(row, col);
-              if (piece instanceof King && piece.getColor() == color) {
-                  return new Position(row, col);
-              }
-          }
+  private void play(int move) {
+      board.makeMove(move);
+      if (historySize == history.length) {
+          history = Arrays.copyOf(history, historySize * 2);
       }
-      throw new RuntimeException("King not found, which should never happen.");
+      history[historySize++] = move;
+      positionChanged(move);
   }
 
-  public boolean isCheckmate(PieceColor kingColor) {
-      if (!isInCheck(kingColor)) {
-          return false;
+  // The current position has occurred at least twice before with the same side to move, castling and en passant.
+  public boolean isThreefoldRepetition() {
+      int reversible = Math.min(board.getHalfmoveClock(), board.getPly());
+      long key = board.hash();
+      int seen = 1;
+      for (int ply = 4; ply <= reversible && seen < 3; ply += 2) {
+          if (board.getHistoryHash(ply) == key) {
+              seen++;
+          }
       }
+      return seen >= 3;
+  }
 
-      Position kingPosition = findKingPosition(kingColor);
-      King king = (King) board.getPiece(kingPosition.getRow(), kingPosition.getColumn());
+  public boolean isFiftyMoveDraw() {
+      return board.getHalfmoveClock() >= 100;
+  }
 
-      for (int rowOffset = -1; rowOffset <= 1; rowOffset++) {
-          for (int colOffset = -1; colOffset <= 1; colOffset++) {
-              if (rowOffset == 0 && colOffset == 0) {
-                  continue;
-              }
-              Position newPosition = new Position(kingPosition.getRow() + rowOffset,
-                      kingPosition.getColumn() + colOffset);
+  // Neither side can mate: bare kings, a single minor piece, or only bishops all on squares of one color.
+  public boolean isInsufficientMaterial() {
+      long heavy = 0L;
+      long bishops = 0L;
+      long knights = 0L;
+      for (PieceColor color : PieceColor.values()) {
+          heavy |= board.getPieces(color, PieceType.PAWN) | board.getPieces(color, PieceType.ROOK)
+                  | board.getPieces(color, PieceType.QUEEN);
+          bishops |= board.getPieces(color, PieceType.BISHOP);
+          knights |= board.getPieces(color, PieceType.KNIGHT);
+      }
+      if (heavy != 0) {
+          return false;
+      }
+      int minors = Long.bitCount(bishops | knights);
+      if (minors <= 1) {
+          return true;
+      }
+      long lightSquares = 0xAA55AA55AA55AA55L;
+      return knights == 0 && ((bishops & lightSquares) == 0 || (bishops & ~lightSquares) == 0);
+  }
 
-              if (isPositionOnBoard(newPosition) && king.isValidMove(newPosition, board.getBoard())
-                      && !wouldBeInCheckAfterMove(kingColor, kingPosition, newPosition)) {
-                  return false;
-              }
+  private int findMove(int from, int to, PieceType promotion) {
+      MoveGenerator.generateLegalPieceMoves(board, from, moveBuffer);
+      for (int i = 0; i < moveBuffer.size(); i++) {
+          int move = moveBuffer.get(i);
+          if (Move.to(move) == to && (Move.promotion(move) == 0 || Move.promotion(move) == promotion.ordinal())) {
+              return move;
           }
       }
-      return true;
+      return Move.NONE;
   }
 
-  private boolean isPositionOnBoard(Position position) {
-      return position.getRow() >= 0 && position.getRow() < board.getBoard().length &&
-              position.getColumn() >= 0 && position.getColumn() < board.getBoard()[0].length;
+  public boolean isInCheck(PieceColor kingColor) {
+      if (!Metrics.ENABLED) {
+          return kingAttacked(kingColor);
+      }
+      long startNanos = System.nanoTime();
+      boolean inCheck = kingAttacked(kingColor);
+      Metrics.checkDetected(startNanos, kingColor, false, inCheck);
+      return inCheck;
   }
 
-  private boolean wouldBeInCheckAfterMove(PieceColor kingColor, Position from, Position to) {
-      Piece temp = board.getPiece(to.getRow(), to.getColumn());
-      board.setPiece(to.getRow(), to.getColumn(), board.getPiece(from.getRow(), from.getColumn()));
-      board.setPiece(from.getRow(), from.getColumn(), null);
+  private boolean kingAttacked(PieceColor kingColor) {
+      return board.isSquareAttacked(findKingSquare(kingColor), kingColor.opposite());
+  }
 
-      boolean inCheck = isInCheck(kingColor);
+  private int findKingSquare(PieceColor color) {
+      int square = board.getKingSquare(color);
+      if (square < 0) {
+          throw new RuntimeException("King not found, which should never happen.");
+      }
+      return square;
+  }
 
-      board.setPiece(from.getRow(), from.getColumn(), board.getPiece(to.getRow(), to.getColumn()));
-      board.setPiece(to.getRow(), to.getColumn(), temp);
+  public boolean isCheckmate(PieceColor kingColor) {
+      if (!Metrics.ENABLED) {
+          return kingMated(kingColor);
+      }
+      long startNanos = System.nanoTime();
+      boolean checkmate = kingMated(kingColor);
+      Metrics.checkDetected(startNanos, kingColor, true, checkmate);
+      return checkmate;
+  }
 
-      return inCheck;
+  private boolean kingMated(PieceColor kingColor) {
+      return kingAttacked(kingColor) && !hasLegalMove(kingColor);
   }
 
-  public List<Position> getLegalMovesForPieceAt(Position position) {
-      Piece selectedPiece = board.getPiece(position.getRow(), position.getColumn());
-      if (selectedPiece == null)
-          return new ArrayList<>();
+  public boolean isStalemate(PieceColor color) {
+      return !kingAttacked(color) && !hasLegalMove(color);
+  }
 
-      List<Position> legalMoves = new ArrayList<>();
-      switch (selectedPiece.getClass().getSimpleName()) {
-          case "Pawn":
-              addPawnMoves(position, selectedPiece.getColor(), legalMoves);
-              break;
-          case "Rook":
-              addLineMoves(position, new int[][] { { 1, 0 }, { -1, 0 }, { 0, 1 }, { 0, -1 } }, legalMoves);
-              break;
-          case "Knight":
-              addSingleMoves(position, new int[][] { { 2, 1 }, { 2, -1 }, { -2, 1 }, { -2, -1 }, { 1, 2 }, { -1, 2 },
-                      { 1, -2 }, { -1, -2 } }, legalMoves);
-              break;
-          case "Bishop":
-              addLineMoves(position, new int[][] { { 1, 1 }, { -1, -1 }, { 1, -1 }, { -1, 1 } }, legalMoves);
-              break;
-          case "Queen":
-              addLineMoves(position, new int[][] { { 1, 0 }, { -1, 0 }, { 0, 1 }, { 0, -1 }, { 1, 1 }, { -1, -1 },
-                      { 1, -1 }, { -1, 1 } }, legalMoves);
-              break;
-          case "King":
-              addSingleMoves(position, new int[][] { { 1, 0 }, { -1, 0 }, { 0, 1 }, { 0, -1 }, { 1, 1 }, { -1, -1 },
-                      { 1, -1 }, { -1, 1 } }, legalMoves);
-              break;
-      }
-      return legalMoves;
+  private boolean hasLegalMove(PieceColor color) {
+      MoveGenerator.generateLegalMoves(board, color, moveBuffer);
+      return moveBuffer.size() != 0;
   }
 
-  private void addLineMoves(Position position, int[][] directions, List<Position> legalMoves) {
-      for (int[] d : directions) {
-          Position newPos = new Position(position.getRow() + d[0], position.getColumn() + d[1]);
-          while (isPositionOnBoard(newPos)) {
-              if (board.getPiece(newPos.getRow(), newPos.getColumn()) == null) {
-                  legalMoves.add(new Position(newPos.getRow(), newPos.getColumn()));
-                  newPos = new Position(newPos.getRow() + d[0], newPos.getColumn() + d[1]);
-              } else {
-                  if (board.getPiece(newPos.getRow(), newPos.getColumn()).getColor() != board
-                          .getPiece(position.getRow(), position.getColumn()).getColor()) {
-                      legalMoves.add(newPos);
-                  }
-                  break;
-              }
-          }
-      }
+  public static MoveCache getMoveCache() {
+      return MOVE_CACHE;
   }
 
-  private void addSingleMoves(Position position, int[][] moves, List<Position> legalMoves) {
-      for (int[] move : moves) {
-          Position newPos = new Position(position.getRow() + move[0], position.getColumn() + move[1]);
-          if (isPositionOnBoard(newPos) && (board.getPiece(newPos.getRow(), newPos.getColumn()) == null ||
-                  board.getPiece(newPos.getRow(), newPos.getColumn()).getColor() != board
-                          .getPiece(position.getRow(), position.getColumn()).getColor())) {
-              legalMoves.add(newPos);
-          }
+  // The returned list is shared through the move cache and is unmodifiable.
+  public List<Position> getLegalMovesForPieceAt(Position position) {
+      if (!Metrics.ENABLED) {
+          return listMoves(position);
       }
+      long startNanos = System.nanoTime();
+      List<Position> moves = listMoves(position);
+      Metrics.legalMovesListed(startNanos);
+      return moves;
   }
 
-  private void addPawnMoves(Position position, PieceColor color, List<Position> legalMoves) {
-      int direction = color == PieceColor.WHITE ? -1 : 1;
-      Position newPos = new Position(position.getRow() + direction, position.getColumn());
-      if (isPositionOnBoard(newPos) && board.getPiece(newPos.getRow(), newPos.getColumn()) == null) {
-          legalMoves.add(newPos);
-      }
+  private List<Position> listMoves(Position position) {
+      if (board.getPiece(position.getRow(), position.getColumn()) == null)
+          return Collections.emptyList();
 
-      if ((color == PieceColor.WHITE && position.getRow() == 6)
-              || (color == PieceColor.BLACK && position.getRow() == 1)) {
-          newPos = new Position(position.getRow() + 2 * direction, position.getColumn());
-          Position intermediatePos = new Position(position.getRow() + direction, position.getColumn());
-          if (isPositionOnBoard(newPos) && board.getPiece(newPos.getRow(), newPos.getColumn()) == null
-                  && board.getPiece(intermediatePos.getRow(), intermediatePos.getColumn()) == null) {
-              legalMoves.add(newPos);
-          }
+      int square = Bitboards.square(position.getRow(), position.getColumn());
+      List<Position> cached = MOVE_CACHE.get(board.hash(), square);
+      if (cached != null) {
+          return cached;
       }
 
-      int[] captureCols = { position.getColumn() - 1, position.getColumn() + 1 };
-      for (int col : captureCols) {
-          newPos = new Position(position.getRow() + direction, col);
-          if (isPositionOnBoard(newPos) && board.getPiece(newPos.getRow(), newPos.getColumn()) != null &&
-                  board.getPiece(newPos.getRow(), newPos.getColumn()).getColor() != color) {
-              legalMoves.add(newPos);
+      List<Position> legalMoves = new ArrayList<>();
+      MoveGenerator.generateLegalPieceMoves(board, square, moveBuffer);
+      for (int i = 0; i < moveBuffer.size(); i++) {
+          int move = moveBuffer.get(i);
+          // Promotions share a destination square; report each target once.
+          if (Move.promotion(move) == 0 || Move.promotion(move) == PieceType.QUEEN.ordinal()) {
+              legalMoves.add(Position.of(Move.to(move)));
           }
       }
+      return MOVE_CACHE.put(board.hash(), square, legalMoves);
   }
 }
+
+
+
 ChessGameGui:
 
 import javax.swing.*;
@@ -295,10 +806,27 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.List;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class ChessGameGUI extends JFrame {
+  private static final long HINT_MILLIS = 1000;
+
   private final ChessSquareComponent[][] squares = new ChessSquareComponent[8][8];
   private final ChessGame game = new ChessGame();
+  // Bitboards as last drawn; XOR against the live board gives the squares that need repainting.
+  private final long[] renderedBitboards = new long[12];
+  private long highlightedSquares;
+  // Check/checkmate evaluation and engine searches run here on board copies, never on the EDT.
+  private final ExecutorService background = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "chess-gui-background");
+      thread.setDaemon(true);
+      return thread;
+  });
+  // Bumped on every move and reset so results computed for an older position are dropped.
+  private long positionVersion;
+  // Only touched from the background thread.
+  private SearchEngine hintEngine;
 
   private final Map<Class<? extends Piece>, String> pieceUnicodeMap = new HashMap<>() {
       {
@@ -340,19 +868,30 @@ public class ChessGameGUI extends JFrame {
       refreshBoard();
   }
 
+  // Redraws only the squares whose contents differ from what was last drawn.
   private void refreshBoard() {
       ChessBoard board = game.getBoard();
-      for (int row = 0; row < 8; row++) {
-          for (int col = 0; col < 8; col++) {
-              Piece piece = board.getPiece(row, col);
-              if (piece != null) {
-                  // If using Unicode symbols:
-                  String symbol = pieceUnicodeMap.get(piece.getClass());
-                  Color color = (piece.getColor() == PieceColor.WHITE) ? Color.WHITE : Color.BLACK;
-                  squares[row][col].setPieceSymbol(symbol, color);
-              } else {
-                  squares[row][col].clearPieceSymbol();
-              }
+      long dirty = 0L;
+      for (PieceColor color : PieceColor.values()) {
+          for (PieceType type : PieceType.values()) {
+              int index = color.ordinal() * 6 + type.ordinal();
+              long current = board.getPieces(color, type);
+              dirty |= current ^ renderedBitboards[index];
+              renderedBitboards[index] = current;
+          }
+      }
+      for (; dirty != 0; dirty &= dirty - 1) {
+          int square = Long.numberOfTrailingZeros(dirty);
+          int row = square >> 3;
+          int col = square & 7;
+          Piece piece = board.getPiece(row, col);
+          if (piece != null) {
+              // If using Unicode symbols:
+              String symbol = pieceUnicodeMap.get(piece.getClass());
+              Color color = (piece.getColor() == PieceColor.WHITE) ? Color.WHITE : Color.BLACK;
+              squares[row][col].setPieceSymbol(symbol, color);
+          } else {
+              squares[row][col].clearPieceSymbol();
           }
       }
   }
@@ -361,19 +900,33 @@ public class ChessGameGUI extends JFrame {
       boolean moveResult = game.handleSquareSelection(row, col);
       clearHighlights();
       if (moveResult) {
+          positionVersion++;
           refreshBoard();
-          checkGameState();
-          checkGameOver();
+          evaluateInBackground();
       } else if (game.isPieceSelected()) {
-          highlightLegalMoves(new Position(row, col));
+          highlightLegalMoves(Position.of(Bitboards.square(row, col)));
       }
-      refreshBoard();
   }
 
-  private void checkGameState() {
-      PieceColor currentPlayer = game.getCurrentPlayerColor();
-      boolean inCheck = game.isInCheck(currentPlayer);
+  // Checks for check, checkmate and stalemate on a copy of the position and reports back on the EDT.
+  private void evaluateInBackground() {
+      long version = positionVersion;
+      ChessGame snapshot = new ChessGame(new ChessBoard(game.getBoard()));
+      background.execute(() -> {
+          PieceColor currentPlayer = snapshot.getCurrentPlayerColor();
+          boolean inCheck = snapshot.isInCheck(currentPlayer);
+          boolean checkmate = inCheck && snapshot.isCheckmate(currentPlayer);
+          boolean stalemate = !inCheck && snapshot.isStalemate(currentPlayer);
+          SwingUtilities.invokeLater(() -> {
+              if (version == positionVersion) {
+                  checkGameState(currentPlayer, inCheck);
+                  checkGameOver(checkmate, stalemate);
+              }
+          });
+      });
+  }
 
+  private void checkGameState(PieceColor currentPlayer, boolean inCheck) {
       if (inCheck) {
           JOptionPane.showMessageDialog(this, currentPlayer + " is in check!");
       }
@@ -382,16 +935,40 @@ public class ChessGameGUI extends JFrame {
   private void highlightLegalMoves(Position position) {
       List<Position> legalMoves = game.getLegalMovesForPieceAt(position);
       for (Position move : legalMoves) {
-          squares[move.getRow()][move.getColumn()].setBackground(Color.GREEN);
+          highlight(Bitboards.square(move.getRow(), move.getColumn()));
       }
   }
 
+  private void highlight(int square) {
+      squares[square >> 3][square & 7].setHighlighted(true);
+      highlightedSquares |= 1L << square;
+  }
+
   private void clearHighlights() {
-      for (int row = 0; row < 8; row++) {
-          for (int col = 0; col < 8; col++) {
-              squares[row][col].setBackground((row + col) % 2 == 0 ? Color.LIGHT_GRAY : new Color(205, 133, 63));
-          }
+      for (long highlighted = highlightedSquares; highlighted != 0; highlighted &= highlighted - 1) {
+          int square = Long.numberOfTrailingZeros(highlighted);
+          squares[square >> 3][square & 7].setHighlighted(false);
       }
+      highlightedSquares = 0L;
+  }
+
+  // Searches a copy of the position in the background and highlights the suggested move's squares.
+  private void showHint() {
+      long version = positionVersion;
+      ChessGame snapshot = new ChessGame(new ChessBoard(game.getBoard()));
+      background.execute(() -> {
+          if (hintEngine == null) {
+              hintEngine = new SearchEngine(16);
+          }
+          int move = hintEngine.bestMove(snapshot, HINT_MILLIS);
+          SwingUtilities.invokeLater(() -> {
+              if (version == positionVersion && move != Move.NONE) {
+                  clearHighlights();
+                  highlight(Move.from(move));
+                  highlight(Move.to(move));
+              }
+          });
+      });
   }
 
   private void addGameResetOption() {
@@ -400,18 +977,24 @@ public class ChessGameGUI extends JFrame {
       JMenuItem resetItem = new JMenuItem("Reset");
       resetItem.addActionListener(e -> resetGame());
       gameMenu.add(resetItem);
+      JMenuItem hintItem = new JMenuItem("Hint");
+      hintItem.addActionListener(e -> showHint());
+      gameMenu.add(hintItem);
       menuBar.add(gameMenu);
       setJMenuBar(menuBar);
   }
 
   private void resetGame() {
+      positionVersion++;
       game.resetGame();
+      clearHighlights();
       refreshBoard();
   }
 
-  private void checkGameOver() {
-      if (game.isCheckmate(game.getCurrentPlayerColor())) {
-          int response = JOptionPane.showConfirmDialog(this, "Checkmate! Would you like to play again?", "Game Over",
+  private void checkGameOver(boolean checkmate, boolean stalemate) {
+      if (checkmate || stalemate) {
+          String message = checkmate ? "Checkmate!" : "Stalemate!";
+          int response = JOptionPane.showConfirmDialog(this, message + " Would you like to play again?", "Game Over",
                   JOptionPane.YES_NO_OPTION);
           if (response == JOptionPane.YES_OPTION) {
               resetGame();
@@ -431,8 +1014,13 @@ import javax.swing.*;
 import java.awt.*;
 
 public class ChessSquareComponent extends JButton {
+  private static final Color LIGHT_SQUARE = Color.LIGHT_GRAY;
+  private static final Color DARK_SQUARE = new Color(205, 133, 63);
+  private static final Color HIGHLIGHT = Color.GREEN;
+
   private int row;
   private int col;
+  private boolean highlighted;
 
   public ChessSquareComponent(int row, int col) {
       this.row = row;
@@ -442,18 +1030,24 @@ public class ChessSquareComponent extends JButton {
 
   private void initButton() {
       setPreferredSize(new Dimension(64, 64));
-
-      if ((row + col) % 2 == 0) {
-          setBackground(Color.LIGHT_GRAY);
-      } else {
-          setBackground(new Color(205, 133, 63));
-      }
+      setBackground(baseColor());
 
       setHorizontalAlignment(SwingConstants.CENTER);
       setVerticalAlignment(SwingConstants.CENTER);
       setFont(new Font("Serif", Font.BOLD, 36));
   }
 
+  private Color baseColor() {
+      return (row + col) % 2 == 0 ? LIGHT_SQUARE : DARK_SQUARE;
+  }
+
+  public void setHighlighted(boolean highlighted) {
+      if (this.highlighted != highlighted) {
+          this.highlighted = highlighted;
+          setBackground(highlighted ? HIGHLIGHT : baseColor());
+      }
+  }
+
   public void setPieceSymbol(String symbol, Color color) {
       this.setText(symbol);
       this.setForeground(color);
@@ -468,6 +1062,13 @@ Position:
 public class Position {
   private int row;
   private int column;
+  private static final Position[] SQUARES = new Position[64];
+
+  static {
+      for (int square = 0; square < 64; square++) {
+          SQUARES[square] = new Position(square >> 3, square & 7);
+      }
+  }
 
   public Position(int row, int column) {
       this.row = row;
@@ -481,6 +1082,11 @@ public class Position {
   public int getColumn() {
       return column;
   }
+
+  // Shared instance for a square index (row * 8 + column); positions are immutable.
+  public static Position of(int square) {
+      return SQUARES[square];
+  }
 }
 Piece:
 
@@ -505,12 +1111,52 @@ public abstract class Piece {
       this.position = position;
   }
 
+  public static Piece create(PieceType type, PieceColor color, Position position) {
+      switch (type) {
+          case PAWN:
+              return new Pawn(color, position);
+          case KNIGHT:
+              return new Knight(color, position);
+          case BISHOP:
+              return new Bishop(color, position);
+          case ROOK:
+              return new Rook(color, position);
+          case QUEEN:
+              return new Queen(color, position);
+          default:
+              return new King(color, position);
+      }
+  }
+
+  public abstract PieceType getType();
+
   public abstract boolean isValidMove(Position newPosition, Piece[][] board);
 }
 PieceColor:
 
 public enum PieceColor {
   BLACK, WHITE;
+
+  private static final PieceColor[] VALUES = values();
+
+  public static PieceColor of(int ordinal) {
+      return VALUES[ordinal];
+  }
+
+  public PieceColor opposite() {
+      return this == WHITE ? BLACK : WHITE;
+  }
+}
+PieceType:
+
+public enum PieceType {
+  PAWN, KNIGHT, BISHOP, ROOK, QUEEN, KING;
+
+  private static final PieceType[] VALUES = values();
+
+  public static PieceType of(int ordinal) {
+      return VALUES[ordinal];
+  }
 }
 Pawn:
 
@@ -520,8 +1166,13 @@ public class Pawn extends Piece {
   }
 
   @Override
-  public boolean isValidMove(Position newPosition, Piece[][] board) {
-      int forwardDirection = color == PieceColor.WHITE ? -1 : 1;
+  public PieceType getType() {
+      return PieceType.PAWN;
+  }
+
+  @Override
+  public boolean isValidMove(Position newPosition, Piece[][] board) {
+      int forwardDirection = color == PieceColor.WHITE ? -1 : 1;
       int rowDiff = (newPosition.getRow() - position.getRow()) * forwardDirection;
       int colDiff = newPosition.getColumn() - position.getColumn();
 
@@ -554,6 +1205,11 @@ public class Rook extends Piece {
       super(color, position);
   }
 
+  @Override
+  public PieceType getType() {
+      return PieceType.ROOK;
+  }
+
   @Override
   public boolean isValidMove(Position newPosition, Piece[][] board) {
       if (position.getRow() == newPosition.getRow()) {
@@ -593,6 +1249,11 @@ public class Knight extends Piece {
       super(color, position);
   }
 
+  @Override
+  public PieceType getType() {
+      return PieceType.KNIGHT;
+  }
+
   @Override
   public boolean isValidMove(Position newPosition, Piece[][] board) {
       if (newPosition.equals(this.position)) {
@@ -623,6 +1284,11 @@ public class Bishop extends Piece {
       super(color, position);
   }
 
+  @Override
+  public PieceType getType() {
+      return PieceType.BISHOP;
+  }
+
   @Override
   public boolean isValidMove(Position newPosition, Piece[][] board) {
       int rowDiff = Math.abs(position.getRow() - newPosition.getRow());
@@ -659,6 +1325,11 @@ public class Queen extends Piece {
       super(color, position);
   }
 
+  @Override
+  public PieceType getType() {
+      return PieceType.QUEEN;
+  }
+
   @Override
   public boolean isValidMove(Position newPosition, Piece[][] board) {
       if (newPosition.equals(this.position)) {
@@ -701,6 +1372,11 @@ public class King extends Piece {
       super(color, position);
   }
 
+  @Override
+  public PieceType getType() {
+      return PieceType.KING;
+  }
+
   @Override
   public boolean isValidMove(Position newPosition, Piece[][] board) {
       int rowDiff = Math.abs(position.getRow() - newPosition.getRow());
@@ -716,3 +1392,5431 @@ public class King extends Piece {
       return destinationPiece == null || destinationPiece.getColor() != this.getColor();
   }
 }
+Bitboards:
+
+public final class Bitboards {
+  // Squares are numbered row * 8 + column, matching ChessBoard's rows (row 0 is Black's back rank).
+  public static final long[] KNIGHT_ATTACKS = new long[64];
+  public static final long[] KING_ATTACKS = new long[64];
+  public static final long[][] PAWN_ATTACKS = new long[2][64]; // indexed by PieceColor.ordinal()
+  // Squares strictly between two squares on a shared rank, file or diagonal; empty when they are not aligned.
+  public static final long[][] BETWEEN = new long[64][64];
+  // The whole rank, file or diagonal through two aligned squares, including both; empty when not aligned.
+  public static final long[][] LINE = new long[64][64];
+
+  private static final int[][] ROOK_DIRECTIONS = { { 1, 0 }, { -1, 0 }, { 0, 1 }, { 0, -1 } };
+  private static final int[][] BISHOP_DIRECTIONS = { { 1, 1 }, { -1, -1 }, { 1, -1 }, { -1, 1 } };
+
+  private static final long[] ROOK_MASKS = new long[64];
+  private static final long[] ROOK_MAGICS = new long[64];
+  private static final int[] ROOK_SHIFTS = new int[64];
+  private static final long[][] ROOK_TABLE = new long[64][];
+  private static final long[] BISHOP_MASKS = new long[64];
+  private static final long[] BISHOP_MAGICS = new long[64];
+  private static final int[] BISHOP_SHIFTS = new int[64];
+  private static final long[][] BISHOP_TABLE = new long[64][];
+
+  private static long seed = 0x2545F4914F6CDD1DL;
+
+  static {
+      int[][] knightOffsets = { { 2, 1 }, { 2, -1 }, { -2, 1 }, { -2, -1 }, { 1, 2 }, { -1, 2 }, { 1, -2 },
+              { -1, -2 } };
+      int[][] kingOffsets = { { 1, 0 }, { -1, 0 }, { 0, 1 }, { 0, -1 }, { 1, 1 }, { -1, -1 }, { 1, -1 },
+              { -1, 1 } };
+      for (int square = 0; square < 64; square++) {
+          int row = square >> 3;
+          int col = square & 7;
+          KNIGHT_ATTACKS[square] = offsetMask(row, col, knightOffsets);
+          KING_ATTACKS[square] = offsetMask(row, col, kingOffsets);
+          PAWN_ATTACKS[PieceColor.WHITE.ordinal()][square] = offsetMask(row, col, new int[][] { { -1, -1 }, { -1, 1 } });
+          PAWN_ATTACKS[PieceColor.BLACK.ordinal()][square] = offsetMask(row, col, new int[][] { { 1, -1 }, { 1, 1 } });
+
+          ROOK_MASKS[square] = relevantMask(row, col, ROOK_DIRECTIONS);
+          ROOK_SHIFTS[square] = 64 - Long.bitCount(ROOK_MASKS[square]);
+          ROOK_TABLE[square] = new long[1 << Long.bitCount(ROOK_MASKS[square])];
+          ROOK_MAGICS[square] = findMagic(square, ROOK_MASKS[square], ROOK_SHIFTS[square], ROOK_TABLE[square],
+                  ROOK_DIRECTIONS);
+
+          BISHOP_MASKS[square] = relevantMask(row, col, BISHOP_DIRECTIONS);
+          BISHOP_SHIFTS[square] = 64 - Long.bitCount(BISHOP_MASKS[square]);
+          BISHOP_TABLE[square] = new long[1 << Long.bitCount(BISHOP_MASKS[square])];
+          BISHOP_MAGICS[square] = findMagic(square, BISHOP_MASKS[square], BISHOP_SHIFTS[square],
+                  BISHOP_TABLE[square], BISHOP_DIRECTIONS);
+
+          for (int[][] directions : new int[][][] { ROOK_DIRECTIONS, BISHOP_DIRECTIONS }) {
+              for (int[] direction : directions) {
+                  long between = 0L;
+                  for (int r = row + direction[0], c = col + direction[1]; r >= 0 && r < 8 && c >= 0 && c < 8;
+                          r += direction[0], c += direction[1]) {
+                      BETWEEN[square][square(r, c)] = between;
+                      between |= 1L << square(r, c);
+                  }
+              }
+          }
+      }
+      // Needs every square's slider tables, so it runs once they are all built.
+      for (int from = 0; from < 64; from++) {
+          for (int to = 0; to < 64; to++) {
+              long ends = (1L << from) | (1L << to);
+              if (from != to && (rookAttacks(from, 0L) & (1L << to)) != 0) {
+                  LINE[from][to] = rookAttacks(from, 0L) & rookAttacks(to, 0L) | ends;
+              } else if (from != to && (bishopAttacks(from, 0L) & (1L << to)) != 0) {
+                  LINE[from][to] = bishopAttacks(from, 0L) & bishopAttacks(to, 0L) | ends;
+              }
+          }
+      }
+  }
+
+  private Bitboards() {
+  }
+
+  public static int square(int row, int column) {
+      return (row << 3) | column;
+  }
+
+  public static long rookAttacks(int square, long occupied) {
+      return ROOK_TABLE[square][(int) (((occupied & ROOK_MASKS[square]) * ROOK_MAGICS[square]) >>> ROOK_SHIFTS[square])];
+  }
+
+  public static long bishopAttacks(int square, long occupied) {
+      return BISHOP_TABLE[square][(int) (((occupied & BISHOP_MASKS[square]) * BISHOP_MAGICS[square])
+              >>> BISHOP_SHIFTS[square])];
+  }
+
+  public static long queenAttacks(int square, long occupied) {
+      return rookAttacks(square, occupied) | bishopAttacks(square, occupied);
+  }
+
+  // Squares attacked by a piece of the given PieceType and PieceColor ordinals; pawns attack diagonally only.
+  public static long attacks(int type, int color, int square, long occupied) {
+      switch (type) {
+          case 0:
+              return PAWN_ATTACKS[color][square];
+          case 1:
+              return KNIGHT_ATTACKS[square];
+          case 2:
+              return bishopAttacks(square, occupied);
+          case 3:
+              return rookAttacks(square, occupied);
+          case 4:
+              return queenAttacks(square, occupied);
+          default:
+              return KING_ATTACKS[square];
+      }
+  }
+
+  private static long offsetMask(int row, int col, int[][] offsets) {
+      long mask = 0L;
+      for (int[] offset : offsets) {
+          int r = row + offset[0];
+          int c = col + offset[1];
+          if (r >= 0 && r < 8 && c >= 0 && c < 8) {
+              mask |= 1L << square(r, c);
+          }
+      }
+      return mask;
+  }
+
+  // Squares whose occupancy can change a slider's attacks; the board edge never blocks anything beyond it.
+  private static long relevantMask(int row, int col, int[][] directions) {
+      long mask = 0L;
+      for (int[] d : directions) {
+          int r = row + d[0];
+          int c = col + d[1];
+          while (r + d[0] >= 0 && r + d[0] < 8 && c + d[1] >= 0 && c + d[1] < 8) {
+              mask |= 1L << square(r, c);
+              r += d[0];
+              c += d[1];
+          }
+      }
+      return mask;
+  }
+
+  private static long slidingAttacks(int square, long occupied, int[][] directions) {
+      long attacks = 0L;
+      for (int[] d : directions) {
+          int r = (square >> 3) + d[0];
+          int c = (square & 7) + d[1];
+          while (r >= 0 && r < 8 && c >= 0 && c < 8) {
+              attacks |= 1L << square(r, c);
+              if ((occupied & (1L << square(r, c))) != 0) {
+                  break;
+              }
+              r += d[0];
+              c += d[1];
+          }
+      }
+      return attacks;
+  }
+
+  private static long findMagic(int square, long mask, int shift, long[] table, int[][] directions) {
+      int size = 1 << Long.bitCount(mask);
+      long[] occupancies = new long[size];
+      long[] attacks = new long[size];
+      long subset = 0L;
+      for (int i = 0; i < size; i++) {
+          occupancies[i] = subset;
+          attacks[i] = slidingAttacks(square, subset, directions);
+          subset = (subset - mask) & mask;
+      }
+
+      // used[index] == attempt marks slots filled by the current candidate, so no clearing between attempts.
+      int[] used = new int[size];
+      for (int attempt = 1;; attempt++) {
+          long magic = nextRandom() & nextRandom() & nextRandom();
+          if (Long.bitCount((mask * magic) & 0xFF00000000000000L) < 6) {
+              continue;
+          }
+          boolean collision = false;
+          for (int i = 0; i < size && !collision; i++) {
+              int index = (int) ((occupancies[i] * magic) >>> shift);
+              if (used[index] != attempt) {
+                  used[index] = attempt;
+                  table[index] = attacks[i];
+              } else if (table[index] != attacks[i]) {
+                  collision = true;
+              }
+          }
+          if (!collision) {
+              return magic;
+          }
+      }
+  }
+
+  private static long nextRandom() {
+      long z = (seed += 0x9E3779B97F4A7C15L);
+      z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+      z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+      return z ^ (z >>> 31);
+  }
+}
+Move:
+
+public final class Move {
+  // Packed layout: bits 0-5 from square, 6-11 to square, 12-14 promotion PieceType ordinal (0 = none), 15+ flags.
+  public static final int NONE = 0;
+  public static final int CAPTURE = 1 << 15;
+  public static final int DOUBLE_PUSH = 1 << 16;
+  public static final int EN_PASSANT = 1 << 17;
+  public static final int CASTLING = 1 << 18;
+
+  private Move() {
+  }
+
+  public static int of(int from, int to) {
+      return from | (to << 6);
+  }
+
+  public static int of(int from, int to, int promotion, int flags) {
+      return from | (to << 6) | (promotion << 12) | flags;
+  }
+
+  public static int from(int move) {
+      return move & 63;
+  }
+
+  public static int to(int move) {
+      return (move >>> 6) & 63;
+  }
+
+  public static int promotion(int move) {
+      return (move >>> 12) & 7;
+  }
+
+  public static boolean isCapture(int move) {
+      return (move & CAPTURE) != 0;
+  }
+
+  public static boolean hasFlag(int move, int flag) {
+      return (move & flag) != 0;
+  }
+
+  // Coordinate notation as used by UCI, e.g. "e2e4" or "e7e8q".
+  public static String toString(int move) {
+      if (move == NONE) {
+          return "0000";
+      }
+      String text = Fen.squareName(from(move)) + Fen.squareName(to(move));
+      return promotion(move) == 0 ? text : text + "pnbrqk".charAt(promotion(move));
+  }
+}
+MoveList:
+
+public final class MoveList {
+  // No legal chess position has more than 218 moves.
+  public static final int CAPACITY = 256;
+
+  private final int[] moves = new int[CAPACITY];
+  private int size;
+
+  public int size() {
+      return size;
+  }
+
+  public int get(int index) {
+      return moves[index];
+  }
+
+  public void set(int index, int move) {
+      moves[index] = move;
+  }
+
+  public void add(int move) {
+      moves[size++] = move;
+  }
+
+  public void clear() {
+      size = 0;
+  }
+
+  public void truncate(int size) {
+      this.size = size;
+  }
+}
+MoveGenerator:
+
+public final class MoveGenerator {
+  private static final int PAWN = PieceType.PAWN.ordinal();
+  private static final int KING = PieceType.KING.ordinal();
+  private static final int[] PROMOTIONS = { PieceType.QUEEN.ordinal(), PieceType.ROOK.ordinal(),
+          PieceType.BISHOP.ordinal(), PieceType.KNIGHT.ordinal() };
+
+  private MoveGenerator() {
+  }
+
+  // Appends every pseudo-legal move for side to moves; the caller owns and clears the buffer.
+  public static void generateMoves(ChessBoard board, PieceColor side, MoveList moves) {
+      for (int type = PAWN; type <= KING; type++) {
+          for (long pieces = board.getPieces(side, PieceType.of(type)); pieces != 0; pieces &= pieces - 1) {
+              addPieceMoves(board, type, side, Long.numberOfTrailingZeros(pieces), moves);
+          }
+      }
+  }
+
+  // Appends the pseudo-legal captures (en passant included) and promotions for side: the moves a capture search
+  // tries. Together with generateQuiets this is exactly generateMoves.
+  public static void generateCaptures(ChessBoard board, PieceColor side, MoveList moves) {
+      long enemy = board.getOccupancy(side.opposite());
+      long occupied = board.getOccupied();
+      for (int type = PAWN + 1; type <= KING; type++) {
+          for (long pieces = board.getPieces(side, PieceType.of(type)); pieces != 0; pieces &= pieces - 1) {
+              int from = Long.numberOfTrailingZeros(pieces);
+              addTargets(board, side, from, Bitboards.attacks(type, side.ordinal(), from, occupied) & enemy, moves);
+          }
+      }
+      int forward = side == PieceColor.WHITE ? -8 : 8;
+      int promotionRow = side == PieceColor.WHITE ? 0 : 7;
+      int enPassant = side == board.getSideToMove() ? board.getEnPassantSquare() : -1;
+      for (long pawns = board.getPieces(side, PieceType.PAWN); pawns != 0; pawns &= pawns - 1) {
+          int from = Long.numberOfTrailingZeros(pawns);
+          long captures = Bitboards.PAWN_ATTACKS[side.ordinal()][from] & enemy;
+          for (; captures != 0; captures &= captures - 1) {
+              addPawnMove(from, Long.numberOfTrailingZeros(captures), Move.CAPTURE, moves);
+          }
+          int single = from + forward;
+          if ((single >> 3) == promotionRow && (occupied & (1L << single)) == 0) {
+              addPawnMove(from, single, 0, moves);
+          }
+          if (enPassant >= 0 && (Bitboards.PAWN_ATTACKS[side.ordinal()][from] & (1L << enPassant)) != 0) {
+              moves.add(Move.of(from, enPassant, 0, Move.CAPTURE | Move.EN_PASSANT));
+          }
+      }
+  }
+
+  // Appends the pseudo-legal moves that neither capture nor promote, castling included.
+  public static void generateQuiets(ChessBoard board, PieceColor side, MoveList moves) {
+      long occupied = board.getOccupied();
+      for (int type = PAWN + 1; type <= KING; type++) {
+          for (long pieces = board.getPieces(side, PieceType.of(type)); pieces != 0; pieces &= pieces - 1) {
+              int from = Long.numberOfTrailingZeros(pieces);
+              addTargets(board, side, from, Bitboards.attacks(type, side.ordinal(), from, occupied) & ~occupied, moves);
+              if (type == KING) {
+                  addCastlingMoves(board, side, from, moves);
+              }
+          }
+      }
+      int forward = side == PieceColor.WHITE ? -8 : 8;
+      int startRow = side == PieceColor.WHITE ? 6 : 1;
+      int promotionRow = side == PieceColor.WHITE ? 0 : 7;
+      for (long pawns = board.getPieces(side, PieceType.PAWN); pawns != 0; pawns &= pawns - 1) {
+          int from = Long.numberOfTrailingZeros(pawns);
+          int single = from + forward;
+          if ((single >> 3) == promotionRow || (occupied & (1L << single)) != 0) {
+              continue;
+          }
+          moves.add(Move.of(from, single, 0, 0));
+          int twice = single + forward;
+          if ((from >> 3) == startRow && (occupied & (1L << twice)) == 0) {
+              moves.add(Move.of(from, twice, 0, Move.DOUBLE_PUSH));
+          }
+      }
+  }
+
+  // Whether move is one generateMoves would produce for the side to move here, so a move remembered from another
+  // position (hash move, killer) can be played safely.
+  public static boolean isPseudoLegalMove(ChessBoard board, int move, MoveList scratch) {
+      if (move == Move.NONE || PieceCode.color(board.codeAt(Move.from(move))) != board.getSideToMove().ordinal()) {
+          return false;
+      }
+      generatePieceMoves(board, Move.from(move), scratch);
+      for (int i = 0; i < scratch.size(); i++) {
+          if (scratch.get(i) == move) {
+              return true;
+          }
+      }
+      return false;
+  }
+
+  // Clears moves and fills it with the pseudo-legal moves of the piece on square, if any.
+  public static void generatePieceMoves(ChessBoard board, int square, MoveList moves) {
+      moves.clear();
+      int code = board.codeAt(square);
+      if (code != PieceCode.NONE) {
+          addPieceMoves(board, PieceCode.type(code), PieceColor.of(PieceCode.color(code)), square, moves);
+      }
+  }
+
+  // Clears moves and fills it with the legal moves of the piece on square, if any. Only that piece's targets are
+  // generated, held to its pin line and, when in check, to the squares that capture or block the checker.
+  public static void generateLegalPieceMoves(ChessBoard board, int square, MoveList moves) {
+      moves.clear();
+      int code = board.codeAt(square);
+      if (code == PieceCode.NONE) {
+          return;
+      }
+      int type = PieceCode.type(code);
+      PieceColor side = PieceColor.of(PieceCode.color(code));
+      PieceColor enemy = side.opposite();
+      int king = board.getKingSquare(side);
+      if (king < 0) {
+          addPieceMoves(board, type, side, square, moves);
+          return;
+      }
+      long own = board.getOccupancy(side);
+      long occupied = board.getOccupied();
+      if (type == KING) {
+          long danger = board.getAttacks(enemy, occupied & ~(1L << king));
+          addTargets(board, side, king, Bitboards.KING_ATTACKS[king] & ~own & ~danger, moves);
+          addCastlingMoves(board, side, king, moves);
+          return;
+      }
+      long enemyRooks = board.getPieces(enemy, PieceType.ROOK) | board.getPieces(enemy, PieceType.QUEEN);
+      long enemyBishops = board.getPieces(enemy, PieceType.BISHOP) | board.getPieces(enemy, PieceType.QUEEN);
+      long checkMask = checkMask(board, side, king, occupied, enemyRooks, enemyBishops);
+      long allowed = checkMask;
+      if ((pinned(king, own, occupied, enemyRooks, enemyBishops) & (1L << square)) != 0) {
+          allowed &= Bitboards.LINE[king][square];
+      }
+      if (type != PAWN) {
+          addTargets(board, side, square, Bitboards.attacks(type, side.ordinal(), square, occupied) & ~own & allowed,
+                  moves);
+          return;
+      }
+      addLegalPawnMoves(board, side, square, allowed, moves);
+      int enPassant = board.getEnPassantSquare();
+      if (enPassant >= 0 && side == board.getSideToMove()) {
+          addEnPassantMoves(board, side, king, enPassant, checkMask, enemyRooks, enemyBishops, 1L << square, moves);
+      }
+  }
+
+  // Clears moves and fills it with the legal moves for side in one pass. Pinned pieces are held to the line
+  // between their king and the pinner, and when in check every move must capture the checker, block it, or move
+  // the king to an unattacked square; nothing is made and tested except by the x-ray check on en passant.
+  public static void generateLegalMoves(ChessBoard board, PieceColor side, MoveList moves) {
+      moves.clear();
+      PieceColor enemy = side.opposite();
+      int king = board.getKingSquare(side);
+      if (king < 0) {
+          generateMoves(board, side, moves);
+          return;
+      }
+      long own = board.getOccupancy(side);
+      long occupied = board.getOccupied();
+      long enemyRooks = board.getPieces(enemy, PieceType.ROOK) | board.getPieces(enemy, PieceType.QUEEN);
+      long enemyBishops = board.getPieces(enemy, PieceType.BISHOP) | board.getPieces(enemy, PieceType.QUEEN);
+
+      // The king's own square is lifted so it cannot hide behind itself from a slider checking along the line.
+      long danger = board.getAttacks(enemy, occupied & ~(1L << king));
+      addTargets(board, side, king, Bitboards.KING_ATTACKS[king] & ~own & ~danger, moves);
+
+      long checkMask = checkMask(board, side, king, occupied, enemyRooks, enemyBishops);
+      if (checkMask == 0) {
+          return;
+      }
+      if (checkMask == -1L) {
+          addCastlingMoves(board, side, king, moves);
+      }
+
+      long pinned = pinned(king, own, occupied, enemyRooks, enemyBishops);
+      for (int type = PAWN; type < KING; type++) {
+          for (long pieces = board.getPieces(side, PieceType.of(type)); pieces != 0; pieces &= pieces - 1) {
+              int from = Long.numberOfTrailingZeros(pieces);
+              long allowed = checkMask;
+              if ((pinned & (1L << from)) != 0) {
+                  allowed &= Bitboards.LINE[king][from];
+              }
+              if (type == PAWN) {
+                  addLegalPawnMoves(board, side, from, allowed, moves);
+              } else {
+                  addTargets(board, side, from, Bitboards.attacks(type, side.ordinal(), from, occupied) & ~own & allowed,
+                          moves);
+              }
+          }
+      }
+
+      int enPassant = board.getEnPassantSquare();
+      if (enPassant >= 0 && side == board.getSideToMove()) {
+          addEnPassantMoves(board, side, king, enPassant, checkMask, enemyRooks, enemyBishops,
+                  board.getPieces(side, PieceType.PAWN), moves);
+      }
+  }
+
+  // Squares a non-king move must land on: all of them out of check, the checker and the squares between it and
+  // the king in single check, none in double check.
+  private static long checkMask(ChessBoard board, PieceColor side, int king, long occupied, long enemyRooks,
+          long enemyBishops) {
+      PieceColor enemy = side.opposite();
+      long checkers = Bitboards.PAWN_ATTACKS[side.ordinal()][king] & board.getPieces(enemy, PieceType.PAWN)
+              | Bitboards.KNIGHT_ATTACKS[king] & board.getPieces(enemy, PieceType.KNIGHT)
+              | Bitboards.bishopAttacks(king, occupied) & enemyBishops
+              | Bitboards.rookAttacks(king, occupied) & enemyRooks;
+      if (checkers == 0) {
+          return -1L;
+      }
+      if (Long.bitCount(checkers) > 1) {
+          return 0L;
+      }
+      return checkers | Bitboards.BETWEEN[king][Long.numberOfTrailingZeros(checkers)];
+  }
+
+  // Own pieces that are the only piece between the king and an enemy slider on its line.
+  private static long pinned(int king, long own, long occupied, long enemyRooks, long enemyBishops) {
+      long pinned = 0L;
+      long pinners = Bitboards.rookAttacks(king, 0L) & enemyRooks | Bitboards.bishopAttacks(king, 0L) & enemyBishops;
+      for (; pinners != 0; pinners &= pinners - 1) {
+          long between = Bitboards.BETWEEN[king][Long.numberOfTrailingZeros(pinners)] & occupied;
+          if (Long.bitCount(between) == 1) {
+              pinned |= between & own;
+          }
+      }
+      return pinned;
+  }
+
+  private static void addLegalPawnMoves(ChessBoard board, PieceColor side, int from, long allowed, MoveList moves) {
+      long occupied = board.getOccupied();
+      int forward = side == PieceColor.WHITE ? -8 : 8;
+      int startRow = side == PieceColor.WHITE ? 6 : 1;
+      int single = from + forward;
+      if ((occupied & (1L << single)) == 0) {
+          if ((allowed & (1L << single)) != 0) {
+              addPawnMove(from, single, 0, moves);
+          }
+          int twice = single + forward;
+          if ((from >> 3) == startRow && (occupied & (1L << twice)) == 0 && (allowed & (1L << twice)) != 0) {
+              moves.add(Move.of(from, twice, 0, Move.DOUBLE_PUSH));
+          }
+      }
+      long captures = Bitboards.PAWN_ATTACKS[side.ordinal()][from] & board.getOccupancy(side.opposite()) & allowed;
+      for (; captures != 0; captures &= captures - 1) {
+          addPawnMove(from, Long.numberOfTrailingZeros(captures), Move.CAPTURE, moves);
+      }
+  }
+
+  // En passant removes two pieces from one rank, which pin masks cannot see, so each capture is checked by
+  // recomputing slider attacks on the king with the resulting occupancy.
+  private static void addEnPassantMoves(ChessBoard board, PieceColor side, int king, int enPassant, long checkMask,
+          long enemyRooks, long enemyBishops, long pawns, MoveList moves) {
+      int captured = enPassant + (side == PieceColor.WHITE ? 8 : -8);
+      if ((checkMask & ((1L << enPassant) | (1L << captured))) == 0) {
+          return;
+      }
+      long attackers = Bitboards.PAWN_ATTACKS[side.opposite().ordinal()][enPassant] & pawns;
+      for (; attackers != 0; attackers &= attackers - 1) {
+          int from = Long.numberOfTrailingZeros(attackers);
+          long after = board.getOccupied() & ~(1L << from) & ~(1L << captured) | (1L << enPassant);
+          if ((Bitboards.rookAttacks(king, after) & enemyRooks) == 0
+                  && (Bitboards.bishopAttacks(king, after) & enemyBishops) == 0) {
+              moves.add(Move.of(from, enPassant, 0, Move.CAPTURE | Move.EN_PASSANT));
+          }
+      }
+  }
+
+  // Whether the piece on from can move to to under its movement rules, ignoring castling, en passant and checks.
+  public static boolean isPseudoLegal(ChessBoard board, int from, int to) {
+      int code = board.codeAt(from);
+      if (code == PieceCode.NONE || from == to) {
+          return false;
+      }
+      int type = PieceCode.type(code);
+      int color = PieceCode.color(code);
+      long target = 1L << to;
+      if ((board.getOccupancy(PieceColor.of(color)) & target) != 0) {
+          return false;
+      }
+      long occupied = board.getOccupied();
+      if (type != PAWN) {
+          return (Bitboards.attacks(type, color, from, occupied) & target) != 0;
+      }
+      if ((occupied & target) != 0) {
+          return (Bitboards.PAWN_ATTACKS[color][from] & target) != 0;
+      }
+      int forward = color == PieceColor.WHITE.ordinal() ? -8 : 8;
+      int startRow = color == PieceColor.WHITE.ordinal() ? 6 : 1;
+      return to == from + forward
+              || (to == from + 2 * forward && (from >> 3) == startRow && (occupied & (1L << (from + forward))) == 0);
+  }
+
+  // Non-pawn targets come straight from the attack tables; only pawns and castling need their own rules.
+  private static void addPieceMoves(ChessBoard board, int type, PieceColor side, int from, MoveList moves) {
+      if (type == PAWN) {
+          addPawnMoves(board, side, from, moves);
+          return;
+      }
+      long targets = Bitboards.attacks(type, side.ordinal(), from, board.getOccupied()) & ~board.getOccupancy(side);
+      addTargets(board, side, from, targets, moves);
+      if (type == KING) {
+          addCastlingMoves(board, side, from, moves);
+      }
+  }
+
+  private static void addCastlingMoves(ChessBoard board, PieceColor side, int from, MoveList moves) {
+      int rights = board.getCastlingRights()
+              & (side == PieceColor.WHITE ? ChessBoard.WHITE_KINGSIDE | ChessBoard.WHITE_QUEENSIDE
+                      : ChessBoard.BLACK_KINGSIDE | ChessBoard.BLACK_QUEENSIDE);
+      int home = side == PieceColor.WHITE ? Bitboards.square(7, 4) : Bitboards.square(0, 4);
+      if (rights == 0 || from != home || board.isSquareAttacked(from, side.opposite())) {
+          return;
+      }
+      long occupied = board.getOccupied();
+      long rooks = board.getPieces(side, PieceType.ROOK);
+      PieceColor enemy = side.opposite();
+      if ((rights & (ChessBoard.WHITE_KINGSIDE | ChessBoard.BLACK_KINGSIDE)) != 0
+              && (rooks & (1L << (from + 3))) != 0
+              && (occupied & ((1L << (from + 1)) | (1L << (from + 2)))) == 0
+              && !board.isSquareAttacked(from + 1, enemy) && !board.isSquareAttacked(from + 2, enemy)) {
+          moves.add(Move.of(from, from + 2, 0, Move.CASTLING));
+      }
+      if ((rights & (ChessBoard.WHITE_QUEENSIDE | ChessBoard.BLACK_QUEENSIDE)) != 0
+              && (rooks & (1L << (from - 4))) != 0
+              && (occupied & ((1L << (from - 1)) | (1L << (from - 2)) | (1L << (from - 3)))) == 0
+              && !board.isSquareAttacked(from - 1, enemy) && !board.isSquareAttacked(from - 2, enemy)) {
+          moves.add(Move.of(from, from - 2, 0, Move.CASTLING));
+      }
+  }
+
+  private static void addTargets(ChessBoard board, PieceColor side, int from, long targets, MoveList moves) {
+      long enemy = board.getOccupancy(side.opposite());
+      for (; targets != 0; targets &= targets - 1) {
+          int to = Long.numberOfTrailingZeros(targets);
+          moves.add(Move.of(from, to, 0, (enemy & (1L << to)) != 0 ? Move.CAPTURE : 0));
+      }
+  }
+
+  private static void addPawnMoves(ChessBoard board, PieceColor side, int from, MoveList moves) {
+      long occupied = board.getOccupied();
+      int forward = side == PieceColor.WHITE ? -8 : 8;
+      int startRow = side == PieceColor.WHITE ? 6 : 1;
+      int single = from + forward;
+      if ((occupied & (1L << single)) == 0) {
+          addPawnMove(from, single, 0, moves);
+          int twice = single + forward;
+          if ((from >> 3) == startRow && (occupied & (1L << twice)) == 0) {
+              moves.add(Move.of(from, twice, 0, Move.DOUBLE_PUSH));
+          }
+      }
+      long captures = Bitboards.PAWN_ATTACKS[side.ordinal()][from] & board.getOccupancy(side.opposite());
+      for (; captures != 0; captures &= captures - 1) {
+          addPawnMove(from, Long.numberOfTrailingZeros(captures), Move.CAPTURE, moves);
+      }
+      int enPassant = board.getEnPassantSquare();
+      if (enPassant >= 0 && side == board.getSideToMove()
+              && (Bitboards.PAWN_ATTACKS[side.ordinal()][from] & (1L << enPassant)) != 0) {
+          moves.add(Move.of(from, enPassant, 0, Move.CAPTURE | Move.EN_PASSANT));
+      }
+  }
+
+  private static void addPawnMove(int from, int to, int flags, MoveList moves) {
+      int row = to >> 3;
+      if (row == 0 || row == 7) {
+          for (int promotion : PROMOTIONS) {
+              moves.add(Move.of(from, to, promotion, flags));
+          }
+      } else {
+          moves.add(Move.of(from, to, 0, flags));
+      }
+  }
+}
+Fen:
+
+public final class Fen {
+  public static final String START_POSITION = "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1";
+
+  private static final String PIECE_LETTERS = "pnbrqk";
+
+  private Fen() {
+  }
+
+  public static ChessBoard parse(String fen) {
+      ChessBoard board = new ChessBoard();
+      load(board, fen);
+      return board;
+  }
+
+  public static void load(ChessBoard board, String fen) {
+      String[] fields = fen.trim().split("\\s+");
+      if (fields.length < 2) {
+          throw new IllegalArgumentException("Invalid FEN: " + fen);
+      }
+      board.clear();
+      int row = 0;
+      int col = 0;
+      for (char c : fields[0].toCharArray()) {
+          if (c == '/') {
+              row++;
+              col = 0;
+          } else if (c >= '1' && c <= '8') {
+              col += c - '0';
+          } else {
+              int type = PIECE_LETTERS.indexOf(Character.toLowerCase(c));
+              if (type < 0 || row > 7 || col > 7) {
+                  throw new IllegalArgumentException("Invalid FEN: " + fen);
+              }
+              PieceColor color = Character.isUpperCase(c) ? PieceColor.WHITE : PieceColor.BLACK;
+              board.setPiece(row, col, Piece.create(PieceType.of(type), color, Position.of(Bitboards.square(row, col))));
+              col++;
+          }
+      }
+
+      PieceColor side = fields[1].equals("b") ? PieceColor.BLACK : PieceColor.WHITE;
+      int castling = 0;
+      if (fields.length > 2) {
+          for (char c : fields[2].toCharArray()) {
+              switch (c) {
+                  case 'K':
+                      castling |= ChessBoard.WHITE_KINGSIDE;
+                      break;
+                  case 'Q':
+                      castling |= ChessBoard.WHITE_QUEENSIDE;
+                      break;
+                  case 'k':
+                      castling |= ChessBoard.BLACK_KINGSIDE;
+                      break;
+                  case 'q':
+                      castling |= ChessBoard.BLACK_QUEENSIDE;
+                      break;
+              }
+          }
+      }
+      // Move generation and check detection assume exactly one king per side.
+      for (PieceColor color : PieceColor.values()) {
+          if (Long.bitCount(board.getPieces(color, PieceType.KING)) != 1) {
+              throw new IllegalArgumentException("Invalid FEN: " + fen);
+          }
+      }
+      int enPassant = fields.length > 3 && !fields[3].equals("-") ? parseSquare(fields[3]) : -1;
+      int halfmove = fields.length > 4 ? Integer.parseInt(fields[4]) : 0;
+      int fullmove = fields.length > 5 ? Integer.parseInt(fields[5]) : 1;
+      board.setState(side, castling, enPassant, halfmove, fullmove);
+  }
+
+  public static String toFen(ChessBoard board) {
+      StringBuilder fen = new StringBuilder(90);
+      for (int row = 0; row < 8; row++) {
+          int empty = 0;
+          for (int col = 0; col < 8; col++) {
+              Piece piece = board.getPiece(row, col);
+              if (piece == null) {
+                  empty++;
+                  continue;
+              }
+              if (empty > 0) {
+                  fen.append(empty);
+                  empty = 0;
+              }
+              char letter = PIECE_LETTERS.charAt(piece.getType().ordinal());
+              fen.append(piece.getColor() == PieceColor.WHITE ? Character.toUpperCase(letter) : letter);
+          }
+          if (empty > 0) {
+              fen.append(empty);
+          }
+          if (row < 7) {
+              fen.append('/');
+          }
+      }
+      fen.append(board.getSideToMove() == PieceColor.WHITE ? " w " : " b ");
+      int castling = board.getCastlingRights();
+      if (castling == 0) {
+          fen.append('-');
+      } else {
+          if ((castling & ChessBoard.WHITE_KINGSIDE) != 0) {
+              fen.append('K');
+          }
+          if ((castling & ChessBoard.WHITE_QUEENSIDE) != 0) {
+              fen.append('Q');
+          }
+          if ((castling & ChessBoard.BLACK_KINGSIDE) != 0) {
+              fen.append('k');
+          }
+          if ((castling & ChessBoard.BLACK_QUEENSIDE) != 0) {
+              fen.append('q');
+          }
+      }
+      fen.append(' ').append(board.getEnPassantSquare() < 0 ? "-" : squareName(board.getEnPassantSquare()));
+      fen.append(' ').append(board.getHalfmoveClock()).append(' ').append(board.getFullmoveNumber());
+      return fen.toString();
+  }
+
+  // Square names use algebraic notation: "a8" is row 0, column 0.
+  public static int parseSquare(String name) {
+      if (name.length() != 2) {
+          throw new IllegalArgumentException("Invalid square: " + name);
+      }
+      int col = name.charAt(0) - 'a';
+      int row = '8' - name.charAt(1);
+      if (col < 0 || col > 7 || row < 0 || row > 7) {
+          throw new IllegalArgumentException("Invalid square: " + name);
+      }
+      return Bitboards.square(row, col);
+  }
+
+  public static String squareName(int square) {
+      return "" + (char) ('a' + (square & 7)) + (char) ('8' - (square >> 3));
+  }
+}
+Perft:
+
+public final class Perft {
+  private static final int MAX_DEPTH = 16;
+
+  // Standard perft positions with their published leaf counts for depths 1, 2, 3, ...; PerftTest checks them.
+  static final String[] POSITIONS = {
+          Fen.START_POSITION,
+          "r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1",
+          "8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 w - - 0 1",
+          "r3k2r/Pppp1ppp/1b3nbN/nP6/BBP1P3/q4N2/Pp1P2PP/R2Q1RK1 w kq - 0 1",
+          "rnbq1k1r/pp1Pbppp/2p5/8/2B5/8/PPP1NnPP/RNBQK2R w KQ - 1 8" };
+  static final String[] NAMES = { "start", "kiwipete", "position 3", "position 4", "position 5" };
+  static final long[][] EXPECTED = {
+          { 20, 400, 8902, 197281, 4865609, 119060324 },
+          { 48, 2039, 97862, 4085603, 193690690 },
+          { 14, 191, 2812, 43238, 674624, 11030083 },
+          { 6, 264, 9467, 422333, 15833292 },
+          { 44, 1486, 62379, 2103487, 89941194 } };
+
+  private final ChessBoard board;
+  private final MoveList[] moveLists = new MoveList[MAX_DEPTH];
+
+  public Perft(ChessBoard board) {
+      this.board = board;
+      for (int i = 0; i < MAX_DEPTH; i++) {
+          moveLists[i] = new MoveList();
+      }
+  }
+
+  public long count(int depth) {
+      if (depth == 0) {
+          return 1;
+      }
+      MoveList moves = moveLists[depth];
+      MoveGenerator.generateLegalMoves(board, board.getSideToMove(), moves);
+      // Every generated move is legal, so the last ply is counted without playing it.
+      if (depth == 1) {
+          return moves.size();
+      }
+      long nodes = 0;
+      for (int i = 0; i < moves.size(); i++) {
+          board.makeMove(moves.get(i));
+          nodes += count(depth - 1);
+          board.unmakeMove();
+      }
+      return nodes;
+  }
+
+  // Usage: java Perft [maxDepth]. Prints node counts and rates next to the published counts.
+  public static void main(String[] args) {
+      int maxDepth = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+      for (int p = 0; p < POSITIONS.length; p++) {
+          Perft perft = new Perft(Fen.parse(POSITIONS[p]));
+          for (int depth = 1; depth <= Math.min(maxDepth, EXPECTED[p].length); depth++) {
+              long start = System.nanoTime();
+              long nodes = perft.count(depth);
+              long elapsed = Math.max(1, System.nanoTime() - start);
+              boolean match = nodes == EXPECTED[p][depth - 1];
+              System.out.printf("%-10s depth %d: %12d nodes %8.0f knps %s%n", NAMES[p], depth, nodes,
+                      nodes * 1e6 / elapsed, match ? "ok" : "MISMATCH (expected " + EXPECTED[p][depth - 1] + ")");
+          }
+      }
+  }
+}
+Zobrist:
+
+public final class Zobrist {
+  // Keys come from a fixed seed so hashes stay stable across runs and can be stored on disk.
+  public static final long[][] PIECES = new long[12][64]; // indexed color * 6 + type, then square
+  public static final long SIDE;
+  public static final long[] CASTLING = new long[16];
+  public static final long[] EN_PASSANT = new long[8]; // indexed by file
+
+  private static long seed = 0x3C6EF372FE94F82AL;
+
+  static {
+      for (long[] keys : PIECES) {
+          for (int square = 0; square < 64; square++) {
+              keys[square] = nextRandom();
+          }
+      }
+      SIDE = nextRandom();
+      // Each right gets its own key and combinations XOR together, so a lost right flips exactly one key.
+      long[] rights = { nextRandom(), nextRandom(), nextRandom(), nextRandom() };
+      for (int mask = 0; mask < 16; mask++) {
+          for (int bit = 0; bit < 4; bit++) {
+              if ((mask & (1 << bit)) != 0) {
+                  CASTLING[mask] ^= rights[bit];
+              }
+          }
+      }
+      for (int file = 0; file < 8; file++) {
+          EN_PASSANT[file] = nextRandom();
+      }
+  }
+
+  private Zobrist() {
+  }
+
+  private static long nextRandom() {
+      long z = (seed += 0x9E3779B97F4A7C15L);
+      z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+      z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+      return z ^ (z >>> 31);
+  }
+}
+TimeManager:
+
+public final class TimeManager {
+  // A budget that never runs out in practice but still fits the nanosecond deadline arithmetic.
+  public static final long INFINITE = Long.MAX_VALUE / 4_000_000L;
+
+  private final long startNanos;
+  private final long softDeadline;
+  private final long hardDeadline;
+
+  // The hard deadline is the budget itself; a new iteration is only started while under half of it,
+  // since the next iteration usually costs more than all previous ones together.
+  public TimeManager(long budgetMillis) {
+      this.startNanos = System.nanoTime();
+      this.hardDeadline = startNanos + budgetMillis * 1_000_000L;
+      this.softDeadline = startNanos + budgetMillis * 500_000L;
+  }
+
+  public boolean isExpired() {
+      return System.nanoTime() - hardDeadline >= 0;
+  }
+
+  public boolean shouldStartIteration() {
+      return System.nanoTime() - softDeadline < 0;
+  }
+
+  public long elapsedMillis() {
+      return (System.nanoTime() - startNanos) / 1_000_000L;
+  }
+}
+TranspositionTable:
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public final class TranspositionTable {
+  public static final int EXACT = 0;
+  public static final int LOWER_BOUND = 1;
+  public static final int UPPER_BOUND = 2;
+
+  // Each bucket has a depth-preferred slot and an always-replace slot; an entry is a key and a packed data word:
+  // bits 0-19 move, 20-27 depth, 28-29 bound, 30-37 generation, 48-63 score.
+  private static final int ENTRY_BYTES = 16;
+
+  // Lock-free sharing between search threads: each slot stores key ^ data next to data, and a reader only
+  // accepts the entry when the XOR of the two words gives back its key. Two writers racing on one slot can
+  // leave mismatched words, which then simply reads as a miss.
+  private final AtomicLongArray keys;
+  private final AtomicLongArray data;
+  private final int bucketMask;
+  private volatile int generation;
+
+  public TranspositionTable(int megabytes) {
+      long entries = Math.max(2L, (long) megabytes * 1024 * 1024 / ENTRY_BYTES);
+      int buckets = Integer.highestOneBit((int) Math.min(entries / 2, 1 << 30));
+      this.keys = new AtomicLongArray(buckets * 2);
+      this.data = new AtomicLongArray(buckets * 2);
+      this.bucketMask = buckets - 1;
+  }
+
+  public void newSearch() {
+      generation = (generation + 1) & 0xFF;
+  }
+
+  public void clear() {
+      for (int i = 0; i < keys.length(); i++) {
+          keys.setOpaque(i, 0L);
+          data.setOpaque(i, 0L);
+      }
+  }
+
+  // Returns the packed data word for key, or 0 when the position is not stored.
+  public long probe(long key) {
+      int slot = ((int) key & bucketMask) << 1;
+      for (int i = slot; i < slot + 2; i++) {
+          long entry = data.getOpaque(i);
+          if (entry != 0 && (keys.getOpaque(i) ^ entry) == key) {
+              return entry;
+          }
+      }
+      return 0L;
+  }
+
+  public void store(long key, int move, int depth, int bound, int score) {
+      int slot = ((int) key & bucketMask) << 1;
+      long existing = data.getOpaque(slot);
+      boolean sameKey = existing != 0 && (keys.getOpaque(slot) ^ existing) == key;
+      if (!sameKey && existing != 0 && depth < depth(existing) && generation(existing) == generation) {
+          slot++;
+          existing = data.getOpaque(slot);
+          sameKey = existing != 0 && (keys.getOpaque(slot) ^ existing) == key;
+      }
+      if (sameKey && move == Move.NONE) {
+          move = move(existing);
+      }
+      long entry = pack(move, depth, bound, score);
+      keys.setOpaque(slot, key ^ entry);
+      data.setOpaque(slot, entry);
+  }
+
+  private long pack(int move, int depth, int bound, int score) {
+      return (move & 0xFFFFFL) | ((long) (depth & 0xFF) << 20) | ((long) bound << 28) | ((long) generation << 30)
+              | ((long) (score & 0xFFFF) << 48);
+  }
+
+  public static int move(long entry) {
+      return (int) (entry & 0xFFFFF);
+  }
+
+  public static int depth(long entry) {
+      return (int) ((entry >>> 20) & 0xFF);
+  }
+
+  public static int bound(long entry) {
+      return (int) ((entry >>> 28) & 3);
+  }
+
+  public static int score(long entry) {
+      return (short) (entry >>> 48);
+  }
+
+  private static int generation(long entry) {
+      return (int) ((entry >>> 30) & 0xFF);
+  }
+}
+SearchEngine:
+
+import java.util.Arrays;
+
+public class SearchEngine {
+  public static final int MATE = 30000;
+  public static final int MAX_PLY = 128;
+  private static final int MATE_BOUND = MATE - MAX_PLY;
+  private static final int INFINITY = 32000;
+  private static final int HISTORY_LIMIT = 1 << 20;
+
+  private final TranspositionTable table;
+  private final boolean ownsTable;
+  private final MovePicker[] pickers = new MovePicker[MAX_PLY + 1];
+  private final MoveList rootMoves = new MoveList();
+  // Two quiet moves per ply that last caused a cutoff, and cutoff credit per [piece code][to square].
+  private final int[][] killers = new int[MAX_PLY + 1][2];
+  private final int[][] history = new int[13][64];
+  private ChessBoard board;
+  private TimeManager timeManager;
+  private volatile boolean stopped;
+  private long nodes;
+  private int completedDepth;
+  private int completedScore;
+  private int rootBestMove;
+  private OpeningBook book;
+
+  public SearchEngine(int hashMegabytes) {
+      this(new TranspositionTable(hashMegabytes), true);
+  }
+
+  // Engine sharing a table with other engines; whoever owns the table starts each search generation.
+  public SearchEngine(TranspositionTable table) {
+      this(table, false);
+  }
+
+  private SearchEngine(TranspositionTable table, boolean ownsTable) {
+      this.table = table;
+      this.ownsTable = ownsTable;
+      for (int i = 0; i < pickers.length; i++) {
+          pickers[i] = new MovePicker();
+      }
+  }
+
+  // Searches the game's current position until the budget runs out and returns the best move found, or
+  // Move.NONE if the side to move has no legal move. The board is left exactly as it was passed in.
+  public int bestMove(ChessGame game, long timeBudgetMillis) {
+      if (book != null) {
+          int move = book.bestMove(game.getBoard());
+          if (move != Move.NONE) {
+              return move;
+          }
+      }
+      return search(game.getBoard(), timeBudgetMillis, MAX_PLY);
+  }
+
+  // Positions found in the book are answered from it without searching.
+  public void setOpeningBook(OpeningBook book) {
+      this.book = book;
+  }
+
+  public int search(ChessBoard board, long timeBudgetMillis, int maxDepth) {
+      return search(board, timeBudgetMillis, 1, maxDepth);
+  }
+
+  public int search(ChessBoard board, long timeBudgetMillis, int startDepth, int maxDepth) {
+      this.board = board;
+      this.timeManager = new TimeManager(timeBudgetMillis);
+      this.stopped = false;
+      this.nodes = 0;
+      this.completedDepth = 0;
+      this.completedScore = 0;
+      if (ownsTable) {
+          table.newSearch();
+      }
+      for (int[] plyKillers : killers) {
+          Arrays.fill(plyKillers, Move.NONE);
+      }
+      ageHistory();
+
+      int bestMove = Move.NONE;
+      for (int depth = startDepth; depth <= maxDepth; depth++) {
+          rootBestMove = Move.NONE;
+          long iterationStart = Metrics.ENABLED ? System.nanoTime() : 0L;
+          long iterationNodes = nodes;
+          int score = negamax(depth, 0, -INFINITY, INFINITY);
+          if (Metrics.ENABLED) {
+              Metrics.searchIteration(iterationStart, depth, score, nodes - iterationNodes, !stopped);
+          }
+          // A partial iteration still searched its best root move first, so keep that move if one was found.
+          if (rootBestMove != Move.NONE) {
+              bestMove = rootBestMove;
+          }
+          if (stopped) {
+              break;
+          }
+          completedDepth = depth;
+          completedScore = score;
+          if (!timeManager.shouldStartIteration()) {
+              break;
+          }
+      }
+      return bestMove != Move.NONE ? bestMove : firstLegalMove();
+  }
+
+  public void stop() {
+      stopped = true;
+  }
+
+  // Forgets everything learned from earlier games; shared tables are cleared for every engine using them.
+  public void newGame() {
+      table.clear();
+      for (int[] scores : history) {
+          Arrays.fill(scores, 0);
+      }
+  }
+
+  public long getNodes() {
+      return nodes;
+  }
+
+  public int getCompletedDepth() {
+      return completedDepth;
+  }
+
+  // Score of the deepest completed iteration from the side to move's view; beyond +/-(MATE - MAX_PLY) it is a mate.
+  public int getCompletedScore() {
+      return completedScore;
+  }
+
+  private int negamax(int depth, int ply, int alpha, int beta) {
+      if ((++nodes & 1023) == 0 && timeManager.isExpired()) {
+          stopped = true;
+      }
+      if (stopped) {
+          return 0;
+      }
+      if (ply > 0 && isDraw()) {
+          return 0;
+      }
+      PieceColor us = board.getSideToMove();
+      boolean inCheck = board.isSquareAttacked(board.getKingSquare(us), us.opposite());
+      if (inCheck && ply < MAX_PLY / 2) {
+          depth++;
+      }
+      if (depth <= 0 || ply >= MAX_PLY) {
+          return quiesce(ply, alpha, beta);
+      }
+
+      long key = board.hash();
+      long entry = table.probe(key);
+      int hashMove = TranspositionTable.move(entry);
+      if (entry != 0 && ply > 0 && TranspositionTable.depth(entry) >= depth) {
+          int score = fromTable(TranspositionTable.score(entry), ply);
+          int bound = TranspositionTable.bound(entry);
+          if (bound == TranspositionTable.EXACT
+                  || (bound == TranspositionTable.LOWER_BOUND && score >= beta)
+                  || (bound == TranspositionTable.UPPER_BOUND && score <= alpha)) {
+              return score;
+          }
+      }
+
+      MovePicker picker = pickers[ply];
+      picker.reset(board, hashMove, killers[ply][0], killers[ply][1], history);
+
+      int originalAlpha = alpha;
+      int bestScore = -INFINITY;
+      int bestMove = Move.NONE;
+      int legalMoves = 0;
+      for (int move = picker.next(); move != Move.NONE; move = picker.next()) {
+          board.makeMove(move);
+          if (board.isSquareAttacked(board.getKingSquare(us), us.opposite())) {
+              board.unmakeMove();
+              continue;
+          }
+          legalMoves++;
+          int score = -negamax(depth - 1, ply + 1, -beta, -alpha);
+          board.unmakeMove();
+          if (stopped) {
+              return 0;
+          }
+          if (score > bestScore) {
+              bestScore = score;
+              bestMove = move;
+              if (ply == 0) {
+                  rootBestMove = move;
+              }
+              if (score > alpha) {
+                  alpha = score;
+                  if (alpha >= beta) {
+                      if (!Move.isCapture(move) && Move.promotion(move) == 0) {
+                          recordCutoff(move, depth, ply);
+                      }
+                      break;
+                  }
+              }
+          }
+      }
+
+      if (legalMoves == 0) {
+          return inCheck ? -MATE + ply : 0;
+      }
+      int bound = bestScore >= beta ? TranspositionTable.LOWER_BOUND
+              : bestScore > originalAlpha ? TranspositionTable.EXACT : TranspositionTable.UPPER_BOUND;
+      table.store(key, bestMove, depth, bound, toTable(bestScore, ply));
+      return bestScore;
+  }
+
+  private int quiesce(int ply, int alpha, int beta) {
+      if ((++nodes & 1023) == 0 && timeManager.isExpired()) {
+          stopped = true;
+      }
+      if (stopped) {
+          return 0;
+      }
+      int standPat = Evaluator.evaluate(board);
+      if (standPat >= beta || ply >= MAX_PLY) {
+          return standPat;
+      }
+      if (standPat > alpha) {
+          alpha = standPat;
+      }
+
+      PieceColor us = board.getSideToMove();
+      MovePicker picker = pickers[ply];
+      picker.resetCaptures(board);
+      for (int move = picker.next(); move != Move.NONE; move = picker.next()) {
+          board.makeMove(move);
+          if (board.isSquareAttacked(board.getKingSquare(us), us.opposite())) {
+              board.unmakeMove();
+              continue;
+          }
+          int score = -quiesce(ply + 1, -beta, -alpha);
+          board.unmakeMove();
+          if (stopped) {
+              return 0;
+          }
+          if (score > alpha) {
+              alpha = score;
+              if (alpha >= beta) {
+                  break;
+              }
+          }
+      }
+      return alpha;
+  }
+
+  // A quiet move refuted this node: keep it as a killer for the ply and credit its piece and target square.
+  private void recordCutoff(int move, int depth, int ply) {
+      int[] plyKillers = killers[ply];
+      if (plyKillers[0] != move) {
+          plyKillers[1] = plyKillers[0];
+          plyKillers[0] = move;
+      }
+      int[] scores = history[board.codeAt(Move.from(move))];
+      scores[Move.to(move)] += depth * depth;
+      if (scores[Move.to(move)] > HISTORY_LIMIT) {
+          ageHistory();
+      }
+  }
+
+  // Halves every history score so older searches still inform ordering but recent cutoffs dominate.
+  private void ageHistory() {
+      for (int[] scores : history) {
+          for (int to = 0; to < scores.length; to++) {
+              scores[to] >>= 1;
+          }
+      }
+  }
+
+  private boolean isDraw() {
+      int reversible = Math.min(board.getHalfmoveClock(), board.getPly());
+      if (board.getHalfmoveClock() >= 100) {
+          return true;
+      }
+      long key = board.hash();
+      for (int ply = 4; ply <= reversible; ply += 2) {
+          if (board.getHistoryHash(ply) == key) {
+              return true;
+          }
+      }
+      return false;
+  }
+
+  private int firstLegalMove() {
+      MoveList moves = rootMoves;
+      moves.clear();
+      PieceColor us = board.getSideToMove();
+      MoveGenerator.generateMoves(board, us, moves);
+      for (int i = 0; i < moves.size(); i++) {
+          board.makeMove(moves.get(i));
+          boolean legal = !board.isSquareAttacked(board.getKingSquare(us), us.opposite());
+          board.unmakeMove();
+          if (legal) {
+              return moves.get(i);
+          }
+      }
+      return Move.NONE;
+  }
+
+  // Mate scores are stored relative to the node so they stay correct when the entry is reached at another ply.
+  private static int toTable(int score, int ply) {
+      return score > MATE_BOUND ? score + ply : score < -MATE_BOUND ? score - ply : score;
+  }
+
+  private static int fromTable(int score, int ply) {
+      return score > MATE_BOUND ? score - ply : score < -MATE_BOUND ? score + ply : score;
+  }
+}
+ParallelSearch:
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Lazy SMP: every worker searches the same root on its own board copy, sharing one transposition table.
+// Workers with odd ids start one ply deeper so the threads spread over different depths; the table lets
+// each thread pick up the others' results. The move comes from worker 0.
+public class ParallelSearch {
+  private final TranspositionTable table;
+  private final SearchEngine[] engines;
+  private final ExecutorService executor;
+  private final long[] nodesPerThread;
+  private long lastElapsedNanos;
+  // SearchEngine.search clears its stop flag on entry, so a stop can land before a worker starts. Waiting blocks
+  // until either the worker returns or this signal completes; after a stop it keeps stopping the worker until it
+  // has returned.
+  private volatile CompletableFuture<Void> stopRequested = new CompletableFuture<>();
+
+  public ParallelSearch(int threads, int hashMegabytes) {
+      if (threads < 1) {
+          throw new IllegalArgumentException("At least one search thread is required");
+      }
+      this.table = new TranspositionTable(hashMegabytes);
+      this.engines = new SearchEngine[threads];
+      for (int i = 0; i < threads; i++) {
+          engines[i] = new SearchEngine(table);
+      }
+      this.nodesPerThread = new long[threads];
+      this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+          Thread thread = new Thread(runnable, "search-worker");
+          thread.setDaemon(true);
+          return thread;
+      });
+  }
+
+  public int getThreadCount() {
+      return engines.length;
+  }
+
+  public int bestMove(ChessGame game, long timeBudgetMillis) {
+      return search(game.getBoard(), timeBudgetMillis, SearchEngine.MAX_PLY);
+  }
+
+  public int search(ChessBoard board, long timeBudgetMillis, int maxDepth) {
+      table.newSearch();
+      stopRequested = new CompletableFuture<>();
+      long start = System.nanoTime();
+      List<CompletableFuture<Integer>> results = new ArrayList<>();
+      for (int i = 0; i < engines.length; i++) {
+          SearchEngine engine = engines[i];
+          ChessBoard copy = new ChessBoard(board);
+          int startDepth = 1 + (i & 1);
+          results.add(CompletableFuture.supplyAsync(() -> engine.search(copy, timeBudgetMillis, startDepth, maxDepth),
+                  executor));
+      }
+      try {
+          int move = await(0, results.get(0));
+          stop();
+          for (int i = 1; i < results.size(); i++) {
+              await(i, results.get(i));
+          }
+          return move;
+      } catch (InterruptedException e) {
+          // The engines must be idle again before the next search reuses them.
+          stop();
+          awaitUninterruptibly(results);
+          Thread.currentThread().interrupt();
+          return Move.NONE;
+      } catch (ExecutionException e) {
+          throw new IllegalStateException("Search worker failed", e.getCause());
+      } finally {
+          lastElapsedNanos = Math.max(1, System.nanoTime() - start);
+          for (int i = 0; i < engines.length; i++) {
+              nodesPerThread[i] = engines[i].getNodes();
+          }
+      }
+  }
+
+  public void stop() {
+      for (SearchEngine engine : engines) {
+          engine.stop();
+      }
+      stopRequested.complete(null);
+  }
+
+  private int await(int worker, CompletableFuture<Integer> result) throws InterruptedException, ExecutionException {
+      CompletableFuture.anyOf(result, stopRequested).get();
+      while (true) {
+          try {
+              return result.get(1, TimeUnit.MILLISECONDS);
+          } catch (TimeoutException e) {
+              // The stop may have reached the worker before its search started; stop it again.
+              engines[worker].stop();
+          }
+      }
+  }
+
+  private void awaitUninterruptibly(List<CompletableFuture<Integer>> results) {
+      for (int i = 0; i < results.size(); i++) {
+          while (true) {
+              try {
+                  await(i, results.get(i));
+                  break;
+              } catch (InterruptedException e) {
+                  // Keep waiting; the caller restores the interrupt.
+              } catch (ExecutionException e) {
+                  break;
+              }
+          }
+      }
+  }
+
+  public int getCompletedDepth() {
+      return engines[0].getCompletedDepth();
+  }
+
+  public long getNodes() {
+      long total = 0;
+      for (long nodes : nodesPerThread) {
+          total += nodes;
+      }
+      return total;
+  }
+
+  // Nodes per second of each worker over the last search.
+  public double[] getNodesPerSecondPerThread() {
+      double[] rates = new double[engines.length];
+      for (int i = 0; i < rates.length; i++) {
+          rates[i] = nodesPerThread[i] * 1e9 / lastElapsedNanos;
+      }
+      return rates;
+  }
+
+  public void shutdown() {
+      stop();
+      executor.shutdownNow();
+  }
+}
+GameSession:
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// One hosted game. Commands are queued and executed one at a time on the session's own thread, so the
+// ChessGame inside is only ever touched by that thread.
+public class GameSession implements Runnable {
+  private static final String[] CLOSE = new String[0];
+
+  private static final String[] HIBERNATE = new String[0];
+
+  private final long id;
+  // Exactly one of game and parked is set: idle games are kept as a CompactPosition until the next command.
+  private ChessGame game = new ChessGame();
+  private volatile CompactPosition parked;
+  // Latest position for spectators, readable from any thread without going through the request queue.
+  private volatile BoardSnapshot snapshot = game.getSnapshot();
+  private final BlockingQueue<Request> requests = new LinkedBlockingQueue<>();
+  private volatile boolean closed;
+  private volatile long lastActive = System.nanoTime();
+
+  private static final class Request {
+      final String[] args;
+      final CompletableFuture<String> reply = new CompletableFuture<>();
+
+      Request(String[] args) {
+          this.args = args;
+      }
+  }
+
+  public GameSession(long id) {
+      this.id = id;
+  }
+
+  public long getId() {
+      return id;
+  }
+
+  public boolean isClosed() {
+      return closed;
+  }
+
+  // args are the protocol words after the session id, e.g. { "MOVE", "e2e4" }.
+  public CompletableFuture<String> submit(String... args) {
+      Request request = new Request(args);
+      if (closed) {
+          request.reply.complete("ERR game " + id + " is closed");
+      } else {
+          requests.add(request);
+          // The session may have closed and drained its queue between the check and the add.
+          if (closed && requests.remove(request)) {
+              request.reply.complete("ERR game " + id + " is closed");
+          }
+      }
+      return request.reply;
+  }
+
+  public CompletableFuture<String> close() {
+      return submit(CLOSE);
+  }
+
+  public CompletableFuture<String> hibernate() {
+      return submit(HIBERNATE);
+  }
+
+  public long getLastActiveNanos() {
+      return lastActive;
+  }
+
+  public boolean isHibernated() {
+      return parked != null;
+  }
+
+  public BoardSnapshot getSnapshot() {
+      return snapshot;
+  }
+
+  @Override
+  public void run() {
+      try {
+          while (!closed) {
+              Request request = requests.take();
+              if (request.args == CLOSE) {
+                  closed = true;
+                  request.reply.complete("OK");
+                  break;
+              }
+              if (request.args == HIBERNATE) {
+                  if (game != null) {
+                      parked = snapshot.getPosition();
+                      game = null;
+                  }
+                  request.reply.complete("OK");
+                  continue;
+              }
+              lastActive = System.nanoTime();
+              if (game == null) {
+                  game = new ChessGame(snapshot);
+                  parked = null;
+              }
+              String reply;
+              try {
+                  reply = handle(request.args);
+              } catch (RuntimeException e) {
+                  reply = "ERR " + e.getMessage();
+              }
+              // Published before replying, so a client that sees its move acknowledged also sees it in WATCH.
+              snapshot = game.getSnapshot();
+              request.reply.complete(reply);
+          }
+      } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          closed = true;
+      }
+      for (Request pending; (pending = requests.poll()) != null;) {
+          pending.reply.complete("ERR game " + id + " is closed");
+      }
+  }
+
+  private String handle(String[] args) {
+      switch (args[0]) {
+          case "MOVE":
+              int promotionIndex = args.length < 2 || args[1].length() <= 4 ? PieceType.QUEEN.ordinal()
+                      : "nbrq".indexOf(args[1].charAt(4)) + 1;
+              if (args.length < 2 || args[1].length() < 4 || args[1].length() > 5 || promotionIndex == 0) {
+                  return "ERR usage: MOVE <id> <from><to>[promotion]";
+              }
+              Position from = Position.of(Fen.parseSquare(args[1].substring(0, 2)));
+              Position to = Position.of(Fen.parseSquare(args[1].substring(2, 4)));
+              PieceType promotion = PieceType.of(promotionIndex);
+              if (!game.makeMove(from, to, promotion)) {
+                  return "ERR illegal move " + args[1];
+              }
+              return "OK " + status();
+          case "MOVES":
+              if (args.length < 2) {
+                  return "ERR usage: MOVES <id> <square>";
+              }
+              StringBuilder reply = new StringBuilder("OK");
+              List<Position> moves = game.getLegalMovesForPieceAt(Position.of(Fen.parseSquare(args[1])));
+              for (Position target : moves) {
+                  reply.append(' ').append(args[1]).append(Fen.squareName(Bitboards.square(target.getRow(), target.getColumn())));
+              }
+              return reply.toString();
+          case "STATE":
+              return "OK " + status();
+          default:
+              return "ERR unknown command " + args[0];
+      }
+  }
+
+  private String status() {
+      PieceColor side = game.getCurrentPlayerColor();
+      String state = game.isCheckmate(side) ? "CHECKMATE"
+              : game.isInCheck(side) ? "CHECK" : game.isStalemate(side) ? "STALEMATE" : "PLAYING";
+      return side + " " + state;
+  }
+}
+SessionRegistry:
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SessionRegistry {
+  private final Map<Long, GameSession> sessions = new ConcurrentHashMap<>();
+  private final AtomicLong nextId = new AtomicLong(1);
+  private final ThreadFactory threadFactory;
+
+  public SessionRegistry(ThreadFactory threadFactory) {
+      this.threadFactory = threadFactory;
+  }
+
+  public GameSession create() {
+      GameSession session = new GameSession(nextId.getAndIncrement());
+      sessions.put(session.getId(), session);
+      threadFactory.newThread(session).start();
+      return session;
+  }
+
+  public GameSession get(long id) {
+      return sessions.get(id);
+  }
+
+  public GameSession remove(long id) {
+      GameSession session = sessions.remove(id);
+      if (session != null) {
+          session.close();
+      }
+      return session;
+  }
+
+  public int size() {
+      return sessions.size();
+  }
+
+  // Parks every game with no command for idleMillis in its compact form; returns how many were asked to.
+  public int hibernateIdle(long idleMillis) {
+      long cutoff = System.nanoTime() - idleMillis * 1_000_000L;
+      int count = 0;
+      for (GameSession session : sessions.values()) {
+          if (!session.isHibernated() && session.getLastActiveNanos() - cutoff < 0) {
+              session.hibernate();
+              count++;
+          }
+      }
+      return count;
+  }
+
+  public void closeAll() {
+      for (Long id : sessions.keySet()) {
+          remove(id);
+      }
+  }
+}
+GameServer:
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Headless line protocol on a loopback socket. Requests and replies are one line each:
+//   NEW                      -> OK <id>
+//   MOVE <id> <e2e4|e7e8q>   -> OK <side to move> <PLAYING|CHECK|CHECKMATE|STALEMATE>
+//   MOVES <id> <square>      -> OK <move> <move> ...
+//   STATE <id>               -> OK <side to move> <PLAYING|CHECK|CHECKMATE|STALEMATE>
+//   WATCH <id>               -> OK <snapshot version> <FEN>
+//   HIBERNATE <id>           -> OK (parks the game as a compact position until its next command; idle games
+//                               are parked automatically)
+//   CLOSE <id>               -> OK
+//   COUNT                    -> OK <open games>
+//   CACHE                    -> OK <entries> <hits> <misses> <evictions>
+//   METRICS                  -> OK <latency and counter snapshot, "; "-separated>
+//   QUIT                     -> closes the connection
+// Failures reply "ERR <reason>".
+public class GameServer {
+  public static final int DEFAULT_PORT = 7878;
+
+  private static final long IDLE_MILLIS = 30_000;
+
+  private final SessionRegistry registry;
+  private final ThreadFactory threadFactory;
+  private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "game-server-sweeper");
+      thread.setDaemon(true);
+      return thread;
+  });
+  private final int port;
+  private volatile ServerSocket serverSocket;
+
+  public GameServer(int port) {
+      this.port = port;
+      this.threadFactory = newThreadFactory();
+      this.registry = new SessionRegistry(threadFactory);
+  }
+
+  public SessionRegistry getRegistry() {
+      return registry;
+  }
+
+  public int getPort() {
+      return serverSocket != null ? serverSocket.getLocalPort() : port;
+  }
+
+  public void start() throws IOException {
+      serverSocket = new ServerSocket(port, 1024, InetAddress.getLoopbackAddress());
+      Thread acceptor = new Thread(this::acceptLoop, "game-server-accept");
+      acceptor.setDaemon(true);
+      acceptor.start();
+      sweeper.scheduleWithFixedDelay(() -> registry.hibernateIdle(IDLE_MILLIS), IDLE_MILLIS, IDLE_MILLIS / 2,
+              TimeUnit.MILLISECONDS);
+  }
+
+  public void stop() throws IOException {
+      sweeper.shutdownNow();
+      if (serverSocket != null) {
+          serverSocket.close();
+      }
+      registry.closeAll();
+  }
+
+  private void acceptLoop() {
+      while (!serverSocket.isClosed()) {
+          try {
+              Socket socket = serverSocket.accept();
+              threadFactory.newThread(() -> serve(socket)).start();
+          } catch (IOException e) {
+              if (!serverSocket.isClosed()) {
+                  System.err.println("Accept failed: " + e.getMessage());
+              }
+          }
+      }
+  }
+
+  private void serve(Socket socket) {
+      try (Socket s = socket;
+              BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+              PrintWriter out = new PrintWriter(s.getOutputStream(), true, StandardCharsets.UTF_8)) {
+          for (String line; (line = in.readLine()) != null;) {
+              line = line.trim();
+              if (line.equals("QUIT")) {
+                  break;
+              }
+              if (!line.isEmpty()) {
+                  out.println(execute(line.split("\\s+")));
+              }
+          }
+      } catch (IOException e) {
+          // Client went away; nothing to clean up beyond the socket.
+      }
+  }
+
+  String execute(String[] words) {
+      String command = words[0].toUpperCase();
+      if (command.equals("NEW")) {
+          return "OK " + registry.create().getId();
+      }
+      if (command.equals("COUNT")) {
+          return "OK " + registry.size();
+      }
+      if (command.equals("METRICS")) {
+          return "OK " + Metrics.snapshot().trim().replace(System.lineSeparator(), "; ");
+      }
+      if (command.equals("CACHE")) {
+          MoveCache cache = ChessGame.getMoveCache();
+          return "OK " + cache.size() + " " + cache.getHits() + " " + cache.getMisses() + " " + cache.getEvictions();
+      }
+      if (words.length < 2) {
+          return "ERR missing game id";
+      }
+      long id;
+      try {
+          id = Long.parseLong(words[1]);
+      } catch (NumberFormatException e) {
+          return "ERR bad game id " + words[1];
+      }
+      if (command.equals("CLOSE")) {
+          return registry.remove(id) != null ? "OK" : "ERR no game " + id;
+      }
+      GameSession session = registry.get(id);
+      if (session == null) {
+          return "ERR no game " + id;
+      }
+      if (command.equals("WATCH")) {
+          // Answered from the published snapshot on this thread, so spectators never queue behind the players.
+          BoardSnapshot snapshot = session.getSnapshot();
+          return "OK " + snapshot.getVersion() + " " + snapshot.toFen();
+      }
+      String[] args = new String[words.length - 1];
+      args[0] = command;
+      System.arraycopy(words, 2, args, 1, words.length - 2);
+      try {
+          return (command.equals("HIBERNATE") ? session.hibernate() : session.submit(args)).get();
+      } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return "ERR interrupted";
+      } catch (ExecutionException e) {
+          return "ERR " + e.getCause().getMessage();
+      }
+  }
+
+  // Virtual threads when the runtime has them (Java 21+), so each game and connection gets its own cheap
+  // thread; otherwise daemon platform threads with small stacks.
+  static ThreadFactory newThreadFactory() {
+      try {
+          Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+          return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+      } catch (ReflectiveOperationException e) {
+          AtomicInteger counter = new AtomicInteger();
+          return runnable -> {
+              Thread thread = new Thread(null, runnable, "game-" + counter.incrementAndGet(), 256 * 1024);
+              thread.setDaemon(true);
+              return thread;
+          };
+      }
+  }
+
+  // Usage: java GameServer [port]
+  public static void main(String[] args) throws IOException, InterruptedException {
+      GameServer server = new GameServer(args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT);
+      server.start();
+      System.out.println("Game server listening on 127.0.0.1:" + server.getPort());
+      Thread.currentThread().join();
+  }
+}
+LoadGenerator:
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Plays random legal games against a GameServer over several connections and reports throughput and latency.
+public class LoadGenerator {
+  private final int port;
+  private final int gamesPerConnection;
+  private final int movesPerGame;
+
+  public LoadGenerator(int port, int gamesPerConnection, int movesPerGame) {
+      this.port = port;
+      this.gamesPerConnection = gamesPerConnection;
+      this.movesPerGame = movesPerGame;
+  }
+
+  // Returns the round-trip latency in nanoseconds of every MOVE request made on one connection.
+  long[] runConnection(long seed) throws IOException {
+      Random random = new Random(seed);
+      long[] latencies = new long[gamesPerConnection * movesPerGame];
+      int count = 0;
+      MoveList moves = new MoveList();
+      try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+              BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+              PrintWriter out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8)) {
+          for (int g = 0; g < gamesPerConnection; g++) {
+              out.println("NEW");
+              String id = in.readLine().substring(3);
+              // The client mirrors the game locally to pick a random legal move each turn.
+              ChessBoard mirror = new ChessBoard();
+              for (int ply = 0; ply < movesPerGame; ply++) {
+                  int move = randomLegalMove(mirror, moves, random);
+                  if (move == Move.NONE) {
+                      break;
+                  }
+                  long start = System.nanoTime();
+                  out.println("MOVE " + id + " " + Move.toString(move));
+                  String reply = in.readLine();
+                  latencies[count++] = System.nanoTime() - start;
+                  if (!reply.startsWith("OK")) {
+                      throw new IOException("Server rejected " + Move.toString(move) + ": " + reply);
+                  }
+                  mirror.makeMove(move);
+              }
+              out.println("CLOSE " + id);
+              in.readLine();
+          }
+          out.println("QUIT");
+      }
+      return Arrays.copyOf(latencies, count);
+  }
+
+  private static int randomLegalMove(ChessBoard board, MoveList moves, Random random) {
+      moves.clear();
+      PieceColor us = board.getSideToMove();
+      MoveGenerator.generateMoves(board, us, moves);
+      int legal = 0;
+      for (int i = 0; i < moves.size(); i++) {
+          board.makeMove(moves.get(i));
+          if (!board.isSquareAttacked(board.getKingSquare(us), us.opposite())) {
+              moves.set(legal++, moves.get(i));
+          }
+          board.unmakeMove();
+      }
+      return legal == 0 ? Move.NONE : moves.get(random.nextInt(legal));
+  }
+
+  // Usage: java LoadGenerator [port] [connections] [gamesPerConnection] [movesPerGame]
+  public static void main(String[] args) throws Exception {
+      int port = args.length > 0 ? Integer.parseInt(args[0]) : GameServer.DEFAULT_PORT;
+      int connections = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+      int games = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+      int moves = args.length > 3 ? Integer.parseInt(args[3]) : 80;
+      LoadGenerator generator = new LoadGenerator(port, games, moves);
+
+      ExecutorService executor = Executors.newFixedThreadPool(connections);
+      long start = System.nanoTime();
+      Future<?>[] results = new Future<?>[connections];
+      for (int c = 0; c < connections; c++) {
+          long seed = c;
+          results[c] = executor.submit(() -> generator.runConnection(seed));
+      }
+      long[][] perConnection = new long[connections][];
+      int total = 0;
+      for (int c = 0; c < connections; c++) {
+          perConnection[c] = (long[]) results[c].get();
+          total += perConnection[c].length;
+      }
+      long elapsed = System.nanoTime() - start;
+      executor.shutdown();
+
+      long[] all = new long[total];
+      int offset = 0;
+      for (long[] latencies : perConnection) {
+          System.arraycopy(latencies, 0, all, offset, latencies.length);
+          offset += latencies.length;
+      }
+      Arrays.sort(all);
+      System.out.printf("%d moves in %.2f s: %.0f moves/s, p50 %.3f ms, p99 %.3f ms, max %.3f ms%n", total,
+              elapsed / 1e9, total * 1e9 / elapsed, percentile(all, 0.50) / 1e6, percentile(all, 0.99) / 1e6,
+              total == 0 ? 0.0 : all[total - 1] / 1e6);
+  }
+
+  private static long percentile(long[] sorted, double fraction) {
+      return sorted.length == 0 ? 0 : sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))];
+  }
+}
+CompactPosition:
+
+// A position in 36 bytes of payload: the board as 64 four-bit square codes packed into four longs, plus one int
+// of state. Used to keep idle games resident at a fraction of the size of a ChessBoard with its Piece objects.
+public final class CompactPosition {
+  // Square code: 0 empty, otherwise color * 8 + type + 1 (white pawn 9 .. white king 14, black pawn 1 .. king 6).
+  private final long squares0;
+  private final long squares1;
+  private final long squares2;
+  private final long squares3;
+  // bits 0-3 castling rights, 4-10 en-passant square + 1, 11 black to move, 12-19 halfmove clock,
+  // 20-31 fullmove number
+  private final int state;
+
+  private CompactPosition(long[] squares, int state) {
+      this.squares0 = squares[0];
+      this.squares1 = squares[1];
+      this.squares2 = squares[2];
+      this.squares3 = squares[3];
+      this.state = state;
+  }
+
+  // Captures the current position only; the move history behind it is not kept.
+  public static CompactPosition of(ChessBoard board) {
+      long[] squares = new long[4];
+      for (long pieces = board.getOccupied(); pieces != 0; pieces &= pieces - 1) {
+          int square = Long.numberOfTrailingZeros(pieces);
+          int pieceCode = board.codeAt(square);
+          long code = PieceCode.color(pieceCode) * 8 + PieceCode.type(pieceCode) + 1;
+          squares[square >> 4] |= code << ((square & 15) << 2);
+      }
+      int state = board.getCastlingRights()
+              | ((board.getEnPassantSquare() + 1) << 4)
+              | (board.getSideToMove() == PieceColor.BLACK ? 1 << 11 : 0)
+              | (Math.min(board.getHalfmoveClock(), 255) << 12)
+              | (Math.min(board.getFullmoveNumber(), 4095) << 20);
+      return new CompactPosition(squares, state);
+  }
+
+  public ChessBoard toBoard() {
+      ChessBoard board = new ChessBoard();
+      restore(board);
+      return board;
+  }
+
+  public void restore(ChessBoard board) {
+      board.clear();
+      long[] squares = { squares0, squares1, squares2, squares3 };
+      for (int square = 0; square < 64; square++) {
+          int code = (int) (squares[square >> 4] >>> ((square & 15) << 2)) & 15;
+          if (code != 0) {
+              PieceColor color = code > 8 ? PieceColor.WHITE : PieceColor.BLACK;
+              board.setPiece(square >> 3, square & 7, Piece.create(PieceType.of((code - 1) & 7), color, Position.of(square)));
+          }
+      }
+      board.setState((state & (1 << 11)) != 0 ? PieceColor.BLACK : PieceColor.WHITE, state & 15,
+              ((state >>> 4) & 127) - 1, (state >>> 12) & 255, state >>> 20);
+  }
+
+  // PieceCode of the piece on square.
+  public int codeAt(int square) {
+      long squares = square < 16 ? squares0 : square < 32 ? squares1 : square < 48 ? squares2 : squares3;
+      int code = (int) (squares >>> ((square & 15) << 2)) & 15;
+      return code == 0 ? PieceCode.NONE : PieceCode.of(PieceColor.of(code >> 3), PieceType.of((code - 1) & 7));
+  }
+
+  public PieceColor getSideToMove() {
+      return (state & (1 << 11)) != 0 ? PieceColor.BLACK : PieceColor.WHITE;
+  }
+
+  public void writeTo(java.nio.ByteBuffer buffer) {
+      buffer.putLong(squares0).putLong(squares1).putLong(squares2).putLong(squares3).putInt(state);
+  }
+
+  public static CompactPosition readFrom(java.nio.ByteBuffer buffer) {
+      long[] squares = { buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong() };
+      return new CompactPosition(squares, buffer.getInt());
+  }
+
+  @Override
+  public boolean equals(Object other) {
+      if (!(other instanceof CompactPosition)) {
+          return false;
+      }
+      CompactPosition that = (CompactPosition) other;
+      return squares0 == that.squares0 && squares1 == that.squares1 && squares2 == that.squares2
+              && squares3 == that.squares3 && state == that.state;
+  }
+
+  @Override
+  public int hashCode() {
+      return Long.hashCode(squares0 ^ squares1 * 31 ^ squares2 * 961 ^ squares3 * 29791) ^ state;
+  }
+}
+San:
+
+// Standard algebraic notation ("Nbd7", "exd5", "O-O", "e8=Q+") against the position on a ChessBoard.
+public final class San {
+  private static final String PIECE_LETTERS = "PNBRQK";
+
+  private San() {
+  }
+
+  // Returns the legal move san names in the board's position, or Move.NONE if there is none or it is ambiguous.
+  public static int parse(ChessBoard board, String san) {
+      String text = san;
+      while (!text.isEmpty() && "+#!?".indexOf(text.charAt(text.length() - 1)) >= 0) {
+          text = text.substring(0, text.length() - 1);
+      }
+      MoveList moves = new MoveList();
+      legalMoves(board, moves);
+      PieceColor us = board.getSideToMove();
+      if (text.equals("O-O") || text.equals("0-0") || text.equals("O-O-O") || text.equals("0-0-0")) {
+          boolean kingside = text.length() == 3;
+          for (int i = 0; i < moves.size(); i++) {
+              int move = moves.get(i);
+              if (Move.hasFlag(move, Move.CASTLING) && (Move.to(move) > Move.from(move)) == kingside) {
+                  return move;
+              }
+          }
+          return Move.NONE;
+      }
+      if (text.length() < 2) {
+          return Move.NONE;
+      }
+
+      int type = PieceType.PAWN.ordinal();
+      int start = 0;
+      if (PIECE_LETTERS.indexOf(text.charAt(0)) > 0) {
+          type = PIECE_LETTERS.indexOf(text.charAt(0));
+          start = 1;
+      }
+      int promotion = 0;
+      int equals = text.indexOf('=');
+      if (equals >= 0 && equals + 1 < text.length()) {
+          promotion = PIECE_LETTERS.indexOf(Character.toUpperCase(text.charAt(equals + 1)));
+          text = text.substring(0, equals);
+      } else if (type == PieceType.PAWN.ordinal() && PIECE_LETTERS.indexOf(text.charAt(text.length() - 1)) > 0) {
+          promotion = PIECE_LETTERS.indexOf(text.charAt(text.length() - 1));
+          text = text.substring(0, text.length() - 1);
+      }
+      if (text.length() - start < 2 || promotion < 0) {
+          return Move.NONE;
+      }
+      int to;
+      try {
+          to = Fen.parseSquare(text.substring(text.length() - 2));
+      } catch (IllegalArgumentException e) {
+          return Move.NONE;
+      }
+      int fromFile = -1;
+      int fromRow = -1;
+      for (int i = start; i < text.length() - 2; i++) {
+          char c = text.charAt(i);
+          if (c >= 'a' && c <= 'h') {
+              fromFile = c - 'a';
+          } else if (c >= '1' && c <= '8') {
+              fromRow = '8' - c;
+          }
+      }
+
+      int found = Move.NONE;
+      for (int i = 0; i < moves.size(); i++) {
+          int move = moves.get(i);
+          int from = Move.from(move);
+          if (Move.to(move) != to || Move.promotion(move) != promotion
+                  || (fromFile >= 0 && (from & 7) != fromFile) || (fromRow >= 0 && (from >> 3) != fromRow)
+                  || (board.getPieces(us, PieceType.of(type)) & (1L << from)) == 0) {
+              continue;
+          }
+          if (found != Move.NONE) {
+              return Move.NONE;
+          }
+          found = move;
+      }
+      return found;
+  }
+
+  public static String toSan(ChessBoard board, int move) {
+      int from = Move.from(move);
+      int to = Move.to(move);
+      Piece piece = board.getPiece(from >> 3, from & 7);
+      StringBuilder san = new StringBuilder(8);
+      if (Move.hasFlag(move, Move.CASTLING)) {
+          san.append(to > from ? "O-O" : "O-O-O");
+      } else if (piece.getType() == PieceType.PAWN) {
+          if (Move.isCapture(move)) {
+              san.append((char) ('a' + (from & 7))).append('x');
+          }
+          san.append(Fen.squareName(to));
+          if (Move.promotion(move) != 0) {
+              san.append('=').append(PIECE_LETTERS.charAt(Move.promotion(move)));
+          }
+      } else {
+          san.append(PIECE_LETTERS.charAt(piece.getType().ordinal()));
+          MoveList moves = new MoveList();
+          legalMoves(board, moves);
+          boolean ambiguous = false;
+          boolean sameFile = false;
+          boolean sameRow = false;
+          for (int i = 0; i < moves.size(); i++) {
+              int other = Move.from(moves.get(i));
+              if (Move.to(moves.get(i)) == to && other != from
+                      && board.getPiece(other >> 3, other & 7).getType() == piece.getType()) {
+                  ambiguous = true;
+                  sameFile |= (other & 7) == (from & 7);
+                  sameRow |= (other >> 3) == (from >> 3);
+              }
+          }
+          if (ambiguous) {
+              if (!sameFile) {
+                  san.append((char) ('a' + (from & 7)));
+              } else if (!sameRow) {
+                  san.append((char) ('8' - (from >> 3)));
+              } else {
+                  san.append(Fen.squareName(from));
+              }
+          }
+          if (Move.isCapture(move)) {
+              san.append('x');
+          }
+          san.append(Fen.squareName(to));
+      }
+
+      PieceColor us = board.getSideToMove();
+      board.makeMove(move);
+      PieceColor them = us.opposite();
+      if (board.isSquareAttacked(board.getKingSquare(them), us)) {
+          MoveList replies = new MoveList();
+          legalMoves(board, replies);
+          san.append(replies.size() == 0 ? '#' : '+');
+      }
+      board.unmakeMove();
+      return san.toString();
+  }
+
+  // Fills moves with the legal moves of the side to move.
+  static void legalMoves(ChessBoard board, MoveList moves) {
+      MoveGenerator.generateLegalMoves(board, board.getSideToMove(), moves);
+  }
+}
+PgnGame:
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// One game split out of a PGN file: its tag pairs and raw movetext, plus the replayed moves once validated.
+public final class PgnGame {
+  private final long index;
+  private final Map<String, String> tags = new LinkedHashMap<>();
+  private final String movetext;
+  private int[] moves = new int[0];
+  private String error;
+
+  public PgnGame(long index, Map<String, String> tags, String movetext) {
+      this.index = index;
+      this.tags.putAll(tags);
+      this.movetext = movetext;
+  }
+
+  public long getIndex() {
+      return index;
+  }
+
+  public Map<String, String> getTags() {
+      return tags;
+  }
+
+  public String getMovetext() {
+      return movetext;
+  }
+
+  public String getStartFen() {
+      return tags.getOrDefault("FEN", Fen.START_POSITION);
+  }
+
+  public String getResult() {
+      return tags.getOrDefault("Result", "*");
+  }
+
+  // Packed moves from the start position, valid only when isValid().
+  public int[] getMoves() {
+      return moves;
+  }
+
+  public boolean isValid() {
+      return error == null;
+  }
+
+  public String getError() {
+      return error;
+  }
+
+  void setMoves(int[] moves) {
+      this.moves = moves;
+  }
+
+  void setError(String error) {
+      this.error = error;
+  }
+}
+PgnImporter:
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+// Streams a PGN file through a fixed read buffer, splits it into games on the reading thread and replays
+// each game through ChessGame.makeMove on a pool of workers. The queue between them is bounded, so memory
+// use does not depend on the file size.
+public class PgnImporter {
+  private static final int READ_BUFFER_BYTES = 1 << 20;
+  private static final PgnGame END = new PgnGame(-1, Map.of(), "");
+
+  private final int workers;
+  private final int queueCapacity;
+  private final AtomicLong gamesRead = new AtomicLong();
+  private final AtomicLong gamesValid = new AtomicLong();
+  private final AtomicLong movesReplayed = new AtomicLong();
+  // First exception thrown by the sink; once set the reader stops and workers only drain the queue.
+  private final AtomicReference<RuntimeException> sinkFailure = new AtomicReference<>();
+
+  public PgnImporter(int workers, int queueCapacity) {
+      this.workers = workers;
+      this.queueCapacity = queueCapacity;
+  }
+
+  public long getGamesRead() {
+      return gamesRead.get();
+  }
+
+  public long getGamesValid() {
+      return gamesValid.get();
+  }
+
+  public long getMovesReplayed() {
+      return movesReplayed.get();
+  }
+
+  // Imports every game in file, handing each one (valid or not) to sink from a worker thread. If the sink throws,
+  // reading stops and the first such exception is rethrown once the workers have finished.
+  public void importFile(Path file, Consumer<PgnGame> sink) throws IOException, InterruptedException {
+      BlockingQueue<PgnGame> queue = new ArrayBlockingQueue<>(queueCapacity);
+      Thread[] pool = new Thread[workers];
+      for (int i = 0; i < workers; i++) {
+          pool[i] = new Thread(() -> validateLoop(queue, sink), "pgn-worker-" + i);
+          pool[i].start();
+      }
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+          split(channel, queue);
+      } finally {
+          for (int i = 0; i < workers; i++) {
+              queue.put(END);
+          }
+          for (Thread worker : pool) {
+              worker.join();
+          }
+      }
+      RuntimeException failure = sinkFailure.getAndSet(null);
+      if (failure != null) {
+          throw failure;
+      }
+  }
+
+  private void split(FileChannel channel, BlockingQueue<PgnGame> queue) throws IOException, InterruptedException {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_BYTES);
+      // Raw bytes of the current line, decoded as UTF-8 once the line is complete; '\n' never occurs inside a
+      // multi-byte UTF-8 sequence, so splitting on it before decoding is safe.
+      byte[] line = new byte[256];
+      int length = 0;
+      Map<String, String> tags = new LinkedHashMap<>();
+      StringBuilder movetext = new StringBuilder(1024);
+      while (sinkFailure.get() == null && channel.read(buffer) != -1) {
+          buffer.flip();
+          while (buffer.hasRemaining()) {
+              byte b = buffer.get();
+              if (b == '\n') {
+                  acceptLine(new String(line, 0, length, StandardCharsets.UTF_8), tags, movetext, queue);
+                  length = 0;
+              } else if (b != '\r') {
+                  if (length == line.length) {
+                      line = Arrays.copyOf(line, length * 2);
+                  }
+                  line[length++] = b;
+              }
+          }
+          buffer.clear();
+      }
+      if (sinkFailure.get() != null) {
+          return;
+      }
+      acceptLine(new String(line, 0, length, StandardCharsets.UTF_8), tags, movetext, queue);
+      if (movetext.length() > 0 || !tags.isEmpty()) {
+          emit(tags, movetext, queue);
+      }
+  }
+
+  // A tag line after movetext starts the next game.
+  private void acceptLine(String line, Map<String, String> tags, StringBuilder movetext,
+          BlockingQueue<PgnGame> queue) throws InterruptedException {
+      String text = line.trim();
+      if (text.startsWith("[") && movetext.length() == 0) {
+          int space = text.indexOf(' ');
+          int open = text.indexOf('"');
+          int close = text.lastIndexOf('"');
+          if (space > 1 && open > space && close > open) {
+              tags.put(text.substring(1, space), text.substring(open + 1, close));
+          }
+      } else if (text.startsWith("[")) {
+          emit(tags, movetext, queue);
+          acceptLine(line, tags, movetext, queue);
+      } else if (!text.isEmpty() && !text.startsWith("%")) {
+          // Line breaks are kept: they end ';' comments.
+          movetext.append(text).append('\n');
+      }
+  }
+
+  private void emit(Map<String, String> tags, StringBuilder movetext, BlockingQueue<PgnGame> queue)
+          throws InterruptedException {
+      queue.put(new PgnGame(gamesRead.getAndIncrement(), tags, movetext.toString()));
+      tags.clear();
+      movetext.setLength(0);
+  }
+
+  private void validateLoop(BlockingQueue<PgnGame> queue, Consumer<PgnGame> sink) {
+      try {
+          for (PgnGame game; (game = queue.take()) != END;) {
+              if (sinkFailure.get() != null) {
+                  continue;
+              }
+              try {
+                  validate(game);
+              } catch (RuntimeException e) {
+                  game.setError("replay failed: " + e);
+              }
+              if (game.isValid()) {
+                  gamesValid.incrementAndGet();
+                  movesReplayed.addAndGet(game.getMoves().length);
+              }
+              try {
+                  sink.accept(game);
+              } catch (RuntimeException e) {
+                  sinkFailure.compareAndSet(null, e);
+              }
+          }
+      } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+      }
+  }
+
+  // Replays the movetext through ChessGame.makeMove, recording the packed moves or the first error.
+  static void validate(PgnGame pgn) {
+      ChessGame game;
+      try {
+          game = new ChessGame(pgn.getStartFen());
+      } catch (RuntimeException e) {
+          pgn.setError("bad FEN tag: " + pgn.getStartFen());
+          return;
+      }
+      ChessBoard board = game.getBoard();
+      int[] moves = new int[64];
+      int count = 0;
+      for (String token : tokens(pgn.getMovetext())) {
+          int move = San.parse(board, token);
+          PieceType promotion = Move.promotion(move) == 0 ? PieceType.QUEEN : PieceType.of(Move.promotion(move));
+          if (move == Move.NONE
+                  || !game.makeMove(Position.of(Move.from(move)), Position.of(Move.to(move)), promotion)) {
+              pgn.setError("illegal move " + token + " at ply " + (count + 1));
+              return;
+          }
+          if (count == moves.length) {
+              moves = Arrays.copyOf(moves, count * 2);
+          }
+          moves[count++] = move;
+      }
+      pgn.setMoves(Arrays.copyOf(moves, count));
+  }
+
+  // Move tokens of movetext with comments, variations, NAGs, move numbers and the result removed.
+  static java.util.List<String> tokens(String movetext) {
+      java.util.List<String> tokens = new java.util.ArrayList<>();
+      StringBuilder token = new StringBuilder();
+      int variationDepth = 0;
+      for (int i = 0; i <= movetext.length(); i++) {
+          char c = i < movetext.length() ? movetext.charAt(i) : ' ';
+          if (c == '{') {
+              int end = movetext.indexOf('}', i);
+              i = end < 0 ? movetext.length() : end;
+              c = ' ';
+          } else if (c == ';') {
+              int end = movetext.indexOf('\n', i);
+              i = end < 0 ? movetext.length() : end;
+              c = ' ';
+          } else if (c == '(') {
+              variationDepth++;
+              c = ' ';
+          } else if (c == ')') {
+              variationDepth--;
+              c = ' ';
+          }
+          if (c == ' ' || c == '\t' || c == '\n') {
+              if (token.length() > 0 && variationDepth == 0) {
+                  addToken(tokens, token.toString());
+              }
+              token.setLength(0);
+          } else if (variationDepth == 0) {
+              token.append(c);
+          }
+      }
+      return tokens;
+  }
+
+  private static void addToken(java.util.List<String> tokens, String token) {
+      int dot = token.lastIndexOf('.');
+      if (dot >= 0) {
+          token = token.substring(dot + 1);
+      }
+      if (token.isEmpty() || token.charAt(0) == '$' || token.equals("1-0") || token.equals("0-1")
+              || token.equals("1/2-1/2") || token.equals("*")) {
+          return;
+      }
+      tokens.add(token);
+  }
+
+  // Usage: java PgnImporter <file.pgn> [workers]
+  public static void main(String[] args) throws IOException, InterruptedException {
+      int workers = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+      PgnImporter importer = new PgnImporter(workers, 4096);
+      long start = System.nanoTime();
+      importer.importFile(Path.of(args[0]), game -> {
+      });
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.printf("%d games (%d valid, %d moves) in %.2f s: %.0f games/s%n", importer.getGamesRead(),
+              importer.getGamesValid(), importer.getMovesReplayed(), seconds, importer.getGamesRead() / seconds);
+  }
+}
+GameArchiveWriter:
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Append-only binary game archive: a data file of games and an index file of their offsets.
+//
+// Data file: "CGA1" then games back to back. Each game is
+//   int    move count
+//   byte   result (0 "*", 1 "1-0", 2 "0-1", 3 "1/2-1/2")
+//   byte   flags (1 = custom start position follows)
+//   [36 bytes CompactPosition when flag 1 is set]
+//   short  per move: the move's index in San.legalMoves order for the position it is played from
+// Index file: "CGI1" then one long offset into the data file per game.
+// All values are big-endian.
+public class GameArchiveWriter implements Closeable {
+  static final int DATA_MAGIC = 0x43474131; // "CGA1"
+  static final int INDEX_MAGIC = 0x43474931; // "CGI1"
+  static final int FLAG_START_POSITION = 1;
+  static final String[] RESULTS = { "*", "1-0", "0-1", "1/2-1/2" };
+
+  private final FileChannel data;
+  private final FileChannel index;
+  private final ChessBoard board = new ChessBoard();
+  private final MoveList legal = new MoveList();
+  private ByteBuffer buffer = ByteBuffer.allocate(4096).order(ByteOrder.BIG_ENDIAN);
+  private final ByteBuffer offset = ByteBuffer.allocate(8);
+  private long size;
+
+  // Opens or creates the two files; new games are appended after any already stored. Existing files must both
+  // carry their header and the index must hold whole offsets into the data file, so a leftover or truncated
+  // file is refused rather than appended to.
+  public GameArchiveWriter(Path dataFile, Path indexFile) throws IOException {
+      this.data = FileChannel.open(dataFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+      this.index = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+      if (data.size() == 0 && index.size() == 0) {
+          data.write(ByteBuffer.allocate(4).putInt(0, DATA_MAGIC));
+          index.write(ByteBuffer.allocate(4).putInt(0, INDEX_MAGIC));
+      } else if (!hasMagic(data, DATA_MAGIC) || !hasMagic(index, INDEX_MAGIC) || (index.size() - 4) % 8 != 0
+              || (index.size() > 4 && lastOffset() >= data.size())) {
+          close();
+          throw new IOException("Not a consistent game archive: " + dataFile + ", " + indexFile);
+      }
+      data.position(data.size());
+      index.position(index.size());
+      this.size = data.size();
+  }
+
+  private static boolean hasMagic(FileChannel channel, int magic) throws IOException {
+      ByteBuffer header = ByteBuffer.allocate(4);
+      if (channel.size() < 4 || channel.read(header, 0) != 4) {
+          return false;
+      }
+      return header.getInt(0) == magic;
+  }
+
+  private long lastOffset() throws IOException {
+      ByteBuffer last = ByteBuffer.allocate(8);
+      index.read(last, index.size() - 8);
+      return last.getLong(0);
+  }
+
+  public synchronized void append(ChessGame game) throws IOException {
+      PieceColor side = game.getCurrentPlayerColor();
+      String result = game.isCheckmate(side) ? (side == PieceColor.WHITE ? "0-1" : "1-0")
+              : game.isStalemate(side) || game.isThreefoldRepetition() || game.isFiftyMoveDraw()
+                      || game.isInsufficientMaterial() ? "1/2-1/2" : "*";
+      append(game.getStartFen(), game.getMoveHistory(), result);
+  }
+
+  public synchronized void append(PgnGame game) throws IOException {
+      append(game.getStartFen(), game.getMoves(), game.getResult());
+  }
+
+  // Appends one game given as packed moves from startFen; every move must be legal in turn.
+  public synchronized void append(String startFen, int[] moves, String result) throws IOException {
+      Fen.load(board, startFen);
+      boolean standardStart = Fen.toFen(board).equals(Fen.START_POSITION);
+      int length = 6 + (standardStart ? 0 : 36) + moves.length * 2;
+      if (buffer.capacity() < length) {
+          buffer = ByteBuffer.allocate(Integer.highestOneBit(length) * 2);
+      }
+      buffer.clear();
+      buffer.putInt(moves.length);
+      buffer.put((byte) Math.max(0, java.util.Arrays.asList(RESULTS).indexOf(result)));
+      buffer.put((byte) (standardStart ? 0 : FLAG_START_POSITION));
+      if (!standardStart) {
+          CompactPosition.of(board).writeTo(buffer);
+      }
+      for (int move : moves) {
+          San.legalMoves(board, legal);
+          int ordinal = -1;
+          for (int i = 0; i < legal.size(); i++) {
+              if (legal.get(i) == move) {
+                  ordinal = i;
+                  break;
+              }
+          }
+          if (ordinal < 0) {
+              throw new IllegalArgumentException("Illegal move " + Move.toString(move) + " in " + Fen.toFen(board));
+          }
+          buffer.putShort((short) ordinal);
+          board.makeMove(move);
+      }
+      buffer.flip();
+      offset.clear();
+      offset.putLong(size).flip();
+      while (buffer.hasRemaining()) {
+          data.write(buffer);
+      }
+      while (offset.hasRemaining()) {
+          index.write(offset);
+      }
+      size += length;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+      try {
+          data.close();
+      } finally {
+          index.close();
+      }
+  }
+
+  // Usage: java GameArchiveWriter <games.pgn> <archive.dat> <archive.idx> [workers]
+  // Imports a PGN file through PgnImporter and appends every valid game to the archive.
+  public static void main(String[] args) throws IOException, InterruptedException {
+      int workers = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+      PgnImporter importer = new PgnImporter(workers, 4096);
+      long start = System.nanoTime();
+      try (GameArchiveWriter writer = new GameArchiveWriter(Path.of(args[1]), Path.of(args[2]))) {
+          importer.importFile(Path.of(args[0]), game -> {
+              if (game.isValid()) {
+                  try {
+                      writer.append(game);
+                  } catch (IOException e) {
+                      throw new java.io.UncheckedIOException(e);
+                  }
+              }
+          });
+      }
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.printf("archived %d of %d games in %.2f s: %.0f games/s%n", importer.getGamesValid(),
+              importer.getGamesRead(), seconds, importer.getGamesRead() / seconds);
+  }
+}
+GameArchiveReader:
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Random access to a GameArchiveWriter archive through memory-mapped data and index files: game n is
+// located through the index and decoded on its own, without touching the rest of the data.
+// A single mapping is limited to 2 GiB per file.
+public class GameArchiveReader implements Closeable {
+  private final FileChannel dataChannel;
+  private final FileChannel indexChannel;
+  private final MappedByteBuffer data;
+  private final MappedByteBuffer index;
+  private final int games;
+
+  public GameArchiveReader(Path dataFile, Path indexFile) throws IOException {
+      this.dataChannel = FileChannel.open(dataFile, StandardOpenOption.READ);
+      this.indexChannel = FileChannel.open(indexFile, StandardOpenOption.READ);
+      if (dataChannel.size() > Integer.MAX_VALUE || indexChannel.size() > Integer.MAX_VALUE) {
+          close();
+          throw new IOException("Archive larger than 2 GiB; split it before mapping");
+      }
+      this.data = dataChannel.map(FileChannel.MapMode.READ_ONLY, 0, dataChannel.size());
+      this.index = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexChannel.size());
+      if (data.limit() < 4 || data.getInt(0) != GameArchiveWriter.DATA_MAGIC
+              || index.limit() < 4 || index.getInt(0) != GameArchiveWriter.INDEX_MAGIC) {
+          close();
+          throw new IOException("Not a game archive: " + dataFile);
+      }
+      this.games = (index.limit() - 4) / 8;
+  }
+
+  public int size() {
+      return games;
+  }
+
+  public int getMoveCount(int game) {
+      return data.getInt(offset(game));
+  }
+
+  public String getResult(int game) {
+      int result = data.get(offset(game) + 4);
+      return GameArchiveWriter.RESULTS[result & 3];
+  }
+
+  // Sets board to the game's start position and replays its first plies moves (all of them if plies < 0).
+  public void replay(int game, ChessBoard board, int plies) {
+      int position = offset(game);
+      int moves = data.getInt(position);
+      int flags = data.get(position + 5);
+      position += 6;
+      if ((flags & GameArchiveWriter.FLAG_START_POSITION) != 0) {
+          CompactPosition.readFrom(data.duplicate().position(position)).restore(board);
+          position += 36;
+      } else {
+          Fen.load(board, Fen.START_POSITION);
+      }
+      MoveList legal = new MoveList();
+      int count = plies < 0 ? moves : Math.min(plies, moves);
+      for (int i = 0; i < count; i++) {
+          San.legalMoves(board, legal);
+          board.makeMove(legal.get(data.getShort(position + i * 2) & 0xFFFF));
+      }
+  }
+
+  public ChessBoard replay(int game) {
+      ChessBoard board = new ChessBoard();
+      replay(game, board, -1);
+      return board;
+  }
+
+  // The game's moves as packed ints, decoded by replaying them.
+  public int[] getMoves(int game) {
+      ChessBoard board = new ChessBoard();
+      replay(game, board, 0);
+      int position = offset(game);
+      int moves = data.getInt(position);
+      position += 6 + ((data.get(position + 5) & GameArchiveWriter.FLAG_START_POSITION) != 0 ? 36 : 0);
+      int[] result = new int[moves];
+      MoveList legal = new MoveList();
+      for (int i = 0; i < moves; i++) {
+          San.legalMoves(board, legal);
+          result[i] = legal.get(data.getShort(position + i * 2) & 0xFFFF);
+          board.makeMove(result[i]);
+      }
+      return result;
+  }
+
+  private int offset(int game) {
+      if (game < 0 || game >= games) {
+          throw new IndexOutOfBoundsException("Game " + game + " of " + games);
+      }
+      return (int) index.getLong(4 + game * 8);
+  }
+
+  @Override
+  public void close() throws IOException {
+      try {
+          dataChannel.close();
+      } finally {
+          indexChannel.close();
+      }
+  }
+}
+Polyglot:
+
+// Polyglot book keys. The Random64 table is the one published with the Polyglot book format: 768 piece-square
+// entries indexed 64 * kind + 8 * rank + file (kind 2 * type + 1 for White, rank 0 is White's first rank), then
+// the four castling rights, the eight en-passant files and the side-to-move entry. Keys match those of any
+// third-party .bin book.
+public final class Polyglot {
+  private static final int CASTLING = 768;
+  private static final int EN_PASSANT = 772;
+  private static final int TURN = 780;
+
+  private static final long[] RANDOM = {
+          0x9D39247E33776D41L, 0x2AF7398005AAA5C7L, 0x44DB015024623547L, 0x9C15F73E62A76AE2L,
+          0x75834465489C0C89L, 0x3290AC3A203001BFL, 0x0FBBAD1F61042279L, 0xE83A908FF2FB60CAL,
+          0x0D7E765D58755C10L, 0x1A083822CEAFE02DL, 0x9605D5F0E25EC3B0L, 0xD021FF5CD13A2ED5L,
+          0x40BDF15D4A672E32L, 0x011355146FD56395L, 0x5DB4832046F3D9E5L, 0x239F8B2D7FF719CCL,
+          0x05D1A1AE85B49AA1L, 0x679F848F6E8FC971L, 0x7449BBFF801FED0BL, 0x7D11CDB1C3B7ADF0L,
+          0x82C7709E781EB7CCL, 0xF3218F1C9510786CL, 0x331478F3AF51BBE6L, 0x4BB38DE5E7219443L,
+          0xAA649C6EBCFD50FCL, 0x8DBD98A352AFD40BL, 0x87D2074B81D79217L, 0x19F3C751D3E92AE1L,
+          0xB4AB30F062B19ABFL, 0x7B0500AC42047AC4L, 0xC9452CA81A09D85DL, 0x24AA6C514DA27500L,
+          0x4C9F34427501B447L, 0x14A68FD73C910841L, 0xA71B9B83461CBD93L, 0x03488B95B0F1850FL,
+          0x637B2B34FF93C040L, 0x09D1BC9A3DD90A94L, 0x3575668334A1DD3BL, 0x735E2B97A4C45A23L,
+          0x18727070F1BD400BL, 0x1FCBACD259BF02E7L, 0xD310A7C2CE9B6555L, 0xBF983FE0FE5D8244L,
+          0x9F74D14F7454A824L, 0x51EBDC4AB9BA3035L, 0x5C82C505DB9AB0FAL, 0xFCF7FE8A3430B241L,
+          0x3253A729B9BA3DDEL, 0x8C74C368081B3075L, 0xB9BC6C87167C33E7L, 0x7EF48F2B83024E20L,
+          0x11D505D4C351BD7FL, 0x6568FCA92C76A243L, 0x4DE0B0F40F32A7B8L, 0x96D693460CC37E5DL,
+          0x42E240CB63689F2FL, 0x6D2BDCDAE2919661L, 0x42880B0236E4D951L, 0x5F0F4A5898171BB6L,
+          0x39F890F579F92F88L, 0x93C5B5F47356388BL, 0x63DC359D8D231B78L, 0xEC16CA8AEA98AD76L,
+          0x5355F900C2A82DC7L, 0x07FB9F855A997142L, 0x5093417AA8A7ED5EL, 0x7BCBC38DA25A7F3CL,
+          0x19FC8A768CF4B6D4L, 0x637A7780DECFC0D9L, 0x8249A47AEE0E41F7L, 0x79AD695501E7D1E8L,
+          0x14ACBAF4777D5776L, 0xF145B6BECCDEA195L, 0xDABF2AC8201752FCL, 0x24C3C94DF9C8D3F6L,
+          0xBB6E2924F03912EAL, 0x0CE26C0B95C980D9L, 0xA49CD132BFBF7CC4L, 0xE99D662AF4243939L,
+          0x27E6AD7891165C3FL, 0x8535F040B9744FF1L, 0x54B3F4FA5F40D873L, 0x72B12C32127FED2BL,
+          0xEE954D3C7B411F47L, 0x9A85AC909A24EAA1L, 0x70AC4CD9F04F21F5L, 0xF9B89D3E99A075C2L,
+          0x87B3E2B2B5C907B1L, 0xA366E5B8C54F48B8L, 0xAE4A9346CC3F7CF2L, 0x1920C04D47267BBDL,
+          0x87BF02C6B49E2AE9L, 0x092237AC237F3859L, 0xFF07F64EF8ED14D0L, 0x8DE8DCA9F03CC54EL,
+          0x9C1633264DB49C89L, 0xB3F22C3D0B0B38EDL, 0x390E5FB44D01144BL, 0x5BFEA5B4712768E9L,
+          0x1E1032911FA78984L, 0x9A74ACB964E78CB3L, 0x4F80F7A035DAFB04L, 0x6304D09A0B3738C4L,
+          0x2171E64683023A08L, 0x5B9B63EB9CEFF80CL, 0x506AACF489889342L, 0x1881AFC9A3A701D6L,
+          0x6503080440750644L, 0xDFD395339CDBF4A7L, 0xEF927DBCF00C20F2L, 0x7B32F7D1E03680ECL,
+          0xB9FD7620E7316243L, 0x05A7E8A57DB91B77L, 0xB5889C6E15630A75L, 0x4A750A09CE9573F7L,
+          0xCF464CEC899A2F8AL, 0xF538639CE705B824L, 0x3C79A0FF5580EF7FL, 0xEDE6C87F8477609DL,
+          0x799E81F05BC93F31L, 0x86536B8CF3428A8CL, 0x97D7374C60087B73L, 0xA246637CFF328532L,
+          0x043FCAE60CC0EBA0L, 0x920E449535DD359EL, 0x70EB093B15B290CCL, 0x73A1921916591CBDL,
+          0x56436C9FE1A1AA8DL, 0xEFAC4B70633B8F81L, 0xBB215798D45DF7AFL, 0x45F20042F24F1768L,
+          0x930F80F4E8EB7462L, 0xFF6712FFCFD75EA1L, 0xAE623FD67468AA70L, 0xDD2C5BC84BC8D8FCL,
+          0x7EED120D54CF2DD9L, 0x22FE545401165F1CL, 0xC91800E98FB99929L, 0x808BD68E6AC10365L,
+          0xDEC468145B7605F6L, 0x1BEDE3A3AEF53302L, 0x43539603D6C55602L, 0xAA969B5C691CCB7AL,
+          0xA87832D392EFEE56L, 0x65942C7B3C7E11AEL, 0xDED2D633CAD004F6L, 0x21F08570F420E565L,
+          0xB415938D7DA94E3CL, 0x91B859E59ECB6350L, 0x10CFF333E0ED804AL, 0x28AED140BE0BB7DDL,
+          0xC5CC1D89724FA456L, 0x5648F680F11A2741L, 0x2D255069F0B7DAB3L, 0x9BC5A38EF729ABD4L,
+          0xEF2F054308F6A2BCL, 0xAF2042F5CC5C2858L, 0x480412BAB7F5BE2AL, 0xAEF3AF4A563DFE43L,
+          0x19AFE59AE451497FL, 0x52593803DFF1E840L, 0xF4F076E65F2CE6F0L, 0x11379625747D5AF3L,
+          0xBCE5D2248682C115L, 0x9DA4243DE836994FL, 0x066F70B33FE09017L, 0x4DC4DE189B671A1CL,
+          0x51039AB7712457C3L, 0xC07A3F80C31FB4B4L, 0xB46EE9C5E64A6E7CL, 0xB3819A42ABE61C87L,
+          0x21A007933A522A20L, 0x2DF16F761598AA4FL, 0x763C4A1371B368FDL, 0xF793C46702E086A0L,
+          0xD7288E012AEB8D31L, 0xDE336A2A4BC1C44BL, 0x0BF692B38D079F23L, 0x2C604A7A177326B3L,
+          0x4850E73E03EB6064L, 0xCFC447F1E53C8E1BL, 0xB05CA3F564268D99L, 0x9AE182C8BC9474E8L,
+          0xA4FC4BD4FC5558CAL, 0xE755178D58FC4E76L, 0x69B97DB1A4C03DFEL, 0xF9B5B7C4ACC67C96L,
+          0xFC6A82D64B8655FBL, 0x9C684CB6C4D24417L, 0x8EC97D2917456ED0L, 0x6703DF9D2924E97EL,
+          0xC547F57E42A7444EL, 0x78E37644E7CAD29EL, 0xFE9A44E9362F05FAL, 0x08BD35CC38336615L,
+          0x9315E5EB3A129ACEL, 0x94061B871E04DF75L, 0xDF1D9F9D784BA010L, 0x3BBA57B68871B59DL,
+          0xD2B7ADEEDED1F73FL, 0xF7A255D83BC373F8L, 0xD7F4F2448C0CEB81L, 0xD95BE88CD210FFA7L,
+          0x336F52F8FF4728E7L, 0xA74049DAC312AC71L, 0xA2F61BB6E437FDB5L, 0x4F2A5CB07F6A35B3L,
+          0x87D380BDA5BF7859L, 0x16B9F7E06C453A21L, 0x7BA2484C8A0FD54EL, 0xF3A678CAD9A2E38CL,
+          0x39B0BF7DDE437BA2L, 0xFCAF55C1BF8A4424L, 0x18FCF680573FA594L, 0x4C0563B89F495AC3L,
+          0x40E087931A00930DL, 0x8CFFA9412EB642C1L, 0x68CA39053261169FL, 0x7A1EE967D27579E2L,
+          0x9D1D60E5076F5B6FL, 0x3810E399B6F65BA2L, 0x32095B6D4AB5F9B1L, 0x35CAB62109DD038AL,
+          0xA90B24499FCFAFB1L, 0x77A225A07CC2C6BDL, 0x513E5E634C70E331L, 0x4361C0CA3F692F12L,
+          0xD941ACA44B20A45BL, 0x528F7C8602C5807BL, 0x52AB92BEB9613989L, 0x9D1DFA2EFC557F73L,
+          0x722FF175F572C348L, 0x1D1260A51107FE97L, 0x7A249A57EC0C9BA2L, 0x04208FE9E8F7F2D6L,
+          0x5A110C6058B920A0L, 0x0CD9A497658A5698L, 0x56FD23C8F9715A4CL, 0x284C847B9D887AAEL,
+          0x04FEABFBBDB619CBL, 0x742E1E651C60BA83L, 0x9A9632E65904AD3CL, 0x881B82A13B51B9E2L,
+          0x506E6744CD974924L, 0xB0183DB56FFC6A79L, 0x0ED9B915C66ED37EL, 0x5E11E86D5873D484L,
+          0xF678647E3519AC6EL, 0x1B85D488D0F20CC5L, 0xDAB9FE6525D89021L, 0x0D151D86ADB73615L,
+          0xA865A54EDCC0F019L, 0x93C42566AEF98FFBL, 0x99E7AFEABE000731L, 0x48CBFF086DDF285AL,
+          0x7F9B6AF1EBF78BAFL, 0x58627E1A149BBA21L, 0x2CD16E2ABD791E33L, 0xD363EFF5F0977996L,
+          0x0CE2A38C344A6EEDL, 0x1A804AADB9CFA741L, 0x907F30421D78C5DEL, 0x501F65EDB3034D07L,
+          0x37624AE5A48FA6E9L, 0x957BAF61700CFF4EL, 0x3A6C27934E31188AL, 0xD49503536ABCA345L,
+          0x088E049589C432E0L, 0xF943AEE7FEBF21B8L, 0x6C3B8E3E336139D3L, 0x364F6FFA464EE52EL,
+          0xD60F6DCEDC314222L, 0x56963B0DCA418FC0L, 0x16F50EDF91E513AFL, 0xEF1955914B609F93L,
+          0x565601C0364E3228L, 0xECB53939887E8175L, 0xBAC7A9A18531294BL, 0xB344C470397BBA52L,
+          0x65D34954DAF3CEBDL, 0xB4B81B3FA97511E2L, 0xB422061193D6F6A7L, 0x071582401C38434DL,
+          0x7A13F18BBEDC4FF5L, 0xBC4097B116C524D2L, 0x59B97885E2F2EA28L, 0x99170A5DC3115544L,
+          0x6F423357E7C6A9F9L, 0x325928EE6E6F8794L, 0xD0E4366228B03343L, 0x565C31F7DE89EA27L,
+          0x30F5611484119414L, 0xD873DB391292ED4FL, 0x7BD94E1D8E17DEBCL, 0xC7D9F16864A76E94L,
+          0x947AE053EE56E63CL, 0xC8C93882F9475F5FL, 0x3A9BF55BA91F81CAL, 0xD9A11FBB3D9808E4L,
+          0x0FD22063EDC29FCAL, 0xB3F256D8ACA0B0B9L, 0xB03031A8B4516E84L, 0x35DD37D5871448AFL,
+          0xE9F6082B05542E4EL, 0xEBFAFA33D7254B59L, 0x9255ABB50D532280L, 0xB9AB4CE57F2D34F3L,
+          0x693501D628297551L, 0xC62C58F97DD949BFL, 0xCD454F8F19C5126AL, 0xBBE83F4ECC2BDECBL,
+          0xDC842B7E2819E230L, 0xBA89142E007503B8L, 0xA3BC941D0A5061CBL, 0xE9F6760E32CD8021L,
+          0x09C7E552BC76492FL, 0x852F54934DA55CC9L, 0x8107FCCF064FCF56L, 0x098954D51FFF6580L,
+          0x23B70EDB1955C4BFL, 0xC330DE426430F69DL, 0x4715ED43E8A45C0AL, 0xA8D7E4DAB780A08DL,
+          0x0572B974F03CE0BBL, 0xB57D2E985E1419C7L, 0xE8D9ECBE2CF3D73FL, 0x2FE4B17170E59750L,
+          0x11317BA87905E790L, 0x7FBF21EC8A1F45ECL, 0x1725CABFCB045B00L, 0x964E915CD5E2B207L,
+          0x3E2B8BCBF016D66DL, 0xBE7444E39328A0ACL, 0xF85B2B4FBCDE44B7L, 0x49353FEA39BA63B1L,
+          0x1DD01AAFCD53486AL, 0x1FCA8A92FD719F85L, 0xFC7C95D827357AFAL, 0x18A6A990C8B35EBDL,
+          0xCCCB7005C6B9C28DL, 0x3BDBB92C43B17F26L, 0xAA70B5B4F89695A2L, 0xE94C39A54A98307FL,
+          0xB7A0B174CFF6F36EL, 0xD4DBA84729AF48ADL, 0x2E18BC1AD9704A68L, 0x2DE0966DAF2F8B1CL,
+          0xB9C11D5B1E43A07EL, 0x64972D68DEE33360L, 0x94628D38D0C20584L, 0xDBC0D2B6AB90A559L,
+          0xD2733C4335C6A72FL, 0x7E75D99D94A70F4DL, 0x6CED1983376FA72BL, 0x97FCAACBF030BC24L,
+          0x7B77497B32503B12L, 0x8547EDDFB81CCB94L, 0x79999CDFF70902CBL, 0xCFFE1939438E9B24L,
+          0x829626E3892D95D7L, 0x92FAE24291F2B3F1L, 0x63E22C147B9C3403L, 0xC678B6D860284A1CL,
+          0x5873888850659AE7L, 0x0981DCD296A8736DL, 0x9F65789A6509A440L, 0x9FF38FED72E9052FL,
+          0xE479EE5B9930578CL, 0xE7F28ECD2D49EECDL, 0x56C074A581EA17FEL, 0x5544F7D774B14AEFL,
+          0x7B3F0195FC6F290FL, 0x12153635B2C0CF57L, 0x7F5126DBBA5E0CA7L, 0x7A76956C3EAFB413L,
+          0x3D5774A11D31AB39L, 0x8A1B083821F40CB4L, 0x7B4A38E32537DF62L, 0x950113646D1D6E03L,
+          0x4DA8979A0041E8A9L, 0x3BC36E078F7515D7L, 0x5D0A12F27AD310D1L, 0x7F9D1A2E1EBE1327L,
+          0xDA3A361B1C5157B1L, 0xDCDD7D20903D0C25L, 0x36833336D068F707L, 0xCE68341F79893389L,
+          0xAB9090168DD05F34L, 0x43954B3252DC25E5L, 0xB438C2B67F98E5E9L, 0x10DCD78E3851A492L,
+          0xDBC27AB5447822BFL, 0x9B3CDB65F82CA382L, 0xB67B7896167B4C84L, 0xBFCED1B0048EAC50L,
+          0xA9119B60369FFEBDL, 0x1FFF7AC80904BF45L, 0xAC12FB171817EEE7L, 0xAF08DA9177DDA93DL,
+          0x1B0CAB936E65C744L, 0xB559EB1D04E5E932L, 0xC37B45B3F8D6F2BAL, 0xC3A9DC228CAAC9E9L,
+          0xF3B8B6675A6507FFL, 0x9FC477DE4ED681DAL, 0x67378D8ECCEF96CBL, 0x6DD856D94D259236L,
+          0xA319CE15B0B4DB31L, 0x073973751F12DD5EL, 0x8A8E849EB32781A5L, 0xE1925C71285279F5L,
+          0x74C04BF1790C0EFEL, 0x4DDA48153C94938AL, 0x9D266D6A1CC0542CL, 0x7440FB816508C4FEL,
+          0x13328503DF48229FL, 0xD6BF7BAEE43CAC40L, 0x4838D65F6EF6748FL, 0x1E152328F3318DEAL,
+          0x8F8419A348F296BFL, 0x72C8834A5957B511L, 0xD7A023A73260B45CL, 0x94EBC8ABCFB56DAEL,
+          0x9FC10D0F989993E0L, 0xDE68A2355B93CAE6L, 0xA44CFE79AE538BBEL, 0x9D1D84FCCE371425L,
+          0x51D2B1AB2DDFB636L, 0x2FD7E4B9E72CD38CL, 0x65CA5B96B7552210L, 0xDD69A0D8AB3B546DL,
+          0x604D51B25FBF70E2L, 0x73AA8A564FB7AC9EL, 0x1A8C1E992B941148L, 0xAAC40A2703D9BEA0L,
+          0x764DBEAE7FA4F3A6L, 0x1E99B96E70A9BE8BL, 0x2C5E9DEB57EF4743L, 0x3A938FEE32D29981L,
+          0x26E6DB8FFDF5ADFEL, 0x469356C504EC9F9DL, 0xC8763C5B08D1908CL, 0x3F6C6AF859D80055L,
+          0x7F7CC39420A3A545L, 0x9BFB227EBDF4C5CEL, 0x89039D79D6FC5C5CL, 0x8FE88B57305E2AB6L,
+          0xA09E8C8C35AB96DEL, 0xFA7E393983325753L, 0xD6B6D0ECC617C699L, 0xDFEA21EA9E7557E3L,
+          0xB67C1FA481680AF8L, 0xCA1E3785A9E724E5L, 0x1CFC8BED0D681639L, 0xD18D8549D140CAEAL,
+          0x4ED0FE7E9DC91335L, 0xE4DBF0634473F5D2L, 0x1761F93A44D5AEFEL, 0x53898E4C3910DA55L,
+          0x734DE8181F6EC39AL, 0x2680B122BAA28D97L, 0x298AF231C85BAFABL, 0x7983EED3740847D5L,
+          0x66C1A2A1A60CD889L, 0x9E17E49642A3E4C1L, 0xEDB454E7BADC0805L, 0x50B704CAB602C329L,
+          0x4CC317FB9CDDD023L, 0x66B4835D9EAFEA22L, 0x219B97E26FFC81BDL, 0x261E4E4C0A333A9DL,
+          0x1FE2CCA76517DB90L, 0xD7504DFA8816EDBBL, 0xB9571FA04DC089C8L, 0x1DDC0325259B27DEL,
+          0xCF3F4688801EB9AAL, 0xF4F5D05C10CAB243L, 0x38B6525C21A42B0EL, 0x36F60E2BA4FA6800L,
+          0xEB3593803173E0CEL, 0x9C4CD6257C5A3603L, 0xAF0C317D32ADAA8AL, 0x258E5A80C7204C4BL,
+          0x8B889D624D44885DL, 0xF4D14597E660F855L, 0xD4347F66EC8941C3L, 0xE699ED85B0DFB40DL,
+          0x2472F6207C2D0484L, 0xC2A1E7B5B459AEB5L, 0xAB4F6451CC1D45ECL, 0x63767572AE3D6174L,
+          0xA59E0BD101731A28L, 0x116D0016CB948F09L, 0x2CF9C8CA052F6E9FL, 0x0B090A7560A968E3L,
+          0xABEEDDB2DDE06FF1L, 0x58EFC10B06A2068DL, 0xC6E57A78FBD986E0L, 0x2EAB8CA63CE802D7L,
+          0x14A195640116F336L, 0x7C0828DD624EC390L, 0xD74BBE77E6116AC7L, 0x804456AF10F5FB53L,
+          0xEBE9EA2ADF4321C7L, 0x03219A39EE587A30L, 0x49787FEF17AF9924L, 0xA1E9300CD8520548L,
+          0x5B45E522E4B1B4EFL, 0xB49C3B3995091A36L, 0xD4490AD526F14431L, 0x12A8F216AF9418C2L,
+          0x001F837CC7350524L, 0x1877B51E57A764D5L, 0xA2853B80F17F58EEL, 0x993E1DE72D36D310L,
+          0xB3598080CE64A656L, 0x252F59CF0D9F04BBL, 0xD23C8E176D113600L, 0x1BDA0492E7E4586EL,
+          0x21E0BD5026C619BFL, 0x3B097ADAF088F94EL, 0x8D14DEDB30BE846EL, 0xF95CFFA23AF5F6F4L,
+          0x3871700761B3F743L, 0xCA672B91E9E4FA16L, 0x64C8E531BFF53B55L, 0x241260ED4AD1E87DL,
+          0x106C09B972D2E822L, 0x7FBA195410E5CA30L, 0x7884D9BC6CB569D8L, 0x0647DFEDCD894A29L,
+          0x63573FF03E224774L, 0x4FC8E9560F91B123L, 0x1DB956E450275779L, 0xB8D91274B9E9D4FBL,
+          0xA2EBEE47E2FBFCE1L, 0xD9F1F30CCD97FB09L, 0xEFED53D75FD64E6BL, 0x2E6D02C36017F67FL,
+          0xA9AA4D20DB084E9BL, 0xB64BE8D8B25396C1L, 0x70CB6AF7C2D5BCF0L, 0x98F076A4F7A2322EL,
+          0xBF84470805E69B5FL, 0x94C3251F06F90CF3L, 0x3E003E616A6591E9L, 0xB925A6CD0421AFF3L,
+          0x61BDD1307C66E300L, 0xBF8D5108E27E0D48L, 0x240AB57A8B888B20L, 0xFC87614BAF287E07L,
+          0xEF02CDD06FFDB432L, 0xA1082C0466DF6C0AL, 0x8215E577001332C8L, 0xD39BB9C3A48DB6CFL,
+          0x2738259634305C14L, 0x61CF4F94C97DF93DL, 0x1B6BACA2AE4E125BL, 0x758F450C88572E0BL,
+          0x959F587D507A8359L, 0xB063E962E045F54DL, 0x60E8ED72C0DFF5D1L, 0x7B64978555326F9FL,
+          0xFD080D236DA814BAL, 0x8C90FD9B083F4558L, 0x106F72FE81E2C590L, 0x7976033A39F7D952L,
+          0xA4EC0132764CA04BL, 0x733EA705FAE4FA77L, 0xB4D8F77BC3E56167L, 0x9E21F4F903B33FD9L,
+          0x9D765E419FB69F6DL, 0xD30C088BA61EA5EFL, 0x5D94337FBFAF7F5BL, 0x1A4E4822EB4D7A59L,
+          0x6FFE73E81B637FB3L, 0xDDF957BC36D8B9CAL, 0x64D0E29EEA8838B3L, 0x08DD9BDFD96B9F63L,
+          0x087E79E5A57D1D13L, 0xE328E230E3E2B3FBL, 0x1C2559E30F0946BEL, 0x720BF5F26F4D2EAAL,
+          0xB0774D261CC609DBL, 0x443F64EC5A371195L, 0x4112CF68649A260EL, 0xD813F2FAB7F5C5CAL,
+          0x660D3257380841EEL, 0x59AC2C7873F910A3L, 0xE846963877671A17L, 0x93B633ABFA3469F8L,
+          0xC0C0F5A60EF4CDCFL, 0xCAF21ECD4377B28CL, 0x57277707199B8175L, 0x506C11B9D90E8B1DL,
+          0xD83CC2687A19255FL, 0x4A29C6465A314CD1L, 0xED2DF21216235097L, 0xB5635C95FF7296E2L,
+          0x22AF003AB672E811L, 0x52E762596BF68235L, 0x9AEBA33AC6ECC6B0L, 0x944F6DE09134DFB6L,
+          0x6C47BEC883A7DE39L, 0x6AD047C430A12104L, 0xA5B1CFDBA0AB4067L, 0x7C45D833AFF07862L,
+          0x5092EF950A16DA0BL, 0x9338E69C052B8E7BL, 0x455A4B4CFE30E3F5L, 0x6B02E63195AD0CF8L,
+          0x6B17B224BAD6BF27L, 0xD1E0CCD25BB9C169L, 0xDE0C89A556B9AE70L, 0x50065E535A213CF6L,
+          0x9C1169FA2777B874L, 0x78EDEFD694AF1EEDL, 0x6DC93D9526A50E68L, 0xEE97F453F06791EDL,
+          0x32AB0EDB696703D3L, 0x3A6853C7E70757A7L, 0x31865CED6120F37DL, 0x67FEF95D92607890L,
+          0x1F2B1D1F15F6DC9CL, 0xB69E38A8965C6B65L, 0xAA9119FF184CCCF4L, 0xF43C732873F24C13L,
+          0xFB4A3D794A9A80D2L, 0x3550C2321FD6109CL, 0x371F77E76BB8417EL, 0x6BFA9AAE5EC05779L,
+          0xCD04F3FF001A4778L, 0xE3273522064480CAL, 0x9F91508BFFCFC14AL, 0x049A7F41061A9E60L,
+          0xFCB6BE43A9F2FE9BL, 0x08DE8A1C7797DA9BL, 0x8F9887E6078735A1L, 0xB5B4071DBFC73A66L,
+          0x230E343DFBA08D33L, 0x43ED7F5A0FAE657DL, 0x3A88A0FBBCB05C63L, 0x21874B8B4D2DBC4FL,
+          0x1BDEA12E35F6A8C9L, 0x53C065C6C8E63528L, 0xE34A1D250E7A8D6BL, 0xD6B04D3B7651DD7EL,
+          0x5E90277E7CB39E2DL, 0x2C046F22062DC67DL, 0xB10BB459132D0A26L, 0x3FA9DDFB67E2F199L,
+          0x0E09B88E1914F7AFL, 0x10E8B35AF3EEAB37L, 0x9EEDECA8E272B933L, 0xD4C718BC4AE8AE5FL,
+          0x81536D601170FC20L, 0x91B534F885818A06L, 0xEC8177F83F900978L, 0x190E714FADA5156EL,
+          0xB592BF39B0364963L, 0x89C350C893AE7DC1L, 0xAC042E70F8B383F2L, 0xB49B52E587A1EE60L,
+          0xFB152FE3FF26DA89L, 0x3E666E6F69AE2C15L, 0x3B544EBE544C19F9L, 0xE805A1E290CF2456L,
+          0x24B33C9D7ED25117L, 0xE74733427B72F0C1L, 0x0A804D18B7097475L, 0x57E3306D881EDB4FL,
+          0x4AE7D6A36EB5DBCBL, 0x2D8D5432157064C8L, 0xD1E649DE1E7F268BL, 0x8A328A1CEDFE552CL,
+          0x07A3AEC79624C7DAL, 0x84547DDC3E203C94L, 0x990A98FD5071D263L, 0x1A4FF12616EEFC89L,
+          0xF6F7FD1431714200L, 0x30C05B1BA332F41CL, 0x8D2636B81555A786L, 0x46C9FEB55D120902L,
+          0xCCEC0A73B49C9921L, 0x4E9D2827355FC492L, 0x19EBB029435DCB0FL, 0x4659D2B743848A2CL,
+          0x963EF2C96B33BE31L, 0x74F85198B05A2E7DL, 0x5A0F544DD2B1FB18L, 0x03727073C2E134B1L,
+          0xC7F6AA2DE59AEA61L, 0x352787BAA0D7C22FL, 0x9853EAB63B5E0B35L, 0xABBDCDD7ED5C0860L,
+          0xCF05DAF5AC8D77B0L, 0x49CAD48CEBF4A71EL, 0x7A4C10EC2158C4A6L, 0xD9E92AA246BF719EL,
+          0x13AE978D09FE5557L, 0x730499AF921549FFL, 0x4E4B705B92903BA4L, 0xFF577222C14F0A3AL,
+          0x55B6344CF97AAFAEL, 0xB862225B055B6960L, 0xCAC09AFBDDD2CDB4L, 0xDAF8E9829FE96B5FL,
+          0xB5FDFC5D3132C498L, 0x310CB380DB6F7503L, 0xE87FBB46217A360EL, 0x2102AE466EBB1148L,
+          0xF8549E1A3AA5E00DL, 0x07A69AFDCC42261AL, 0xC4C118BFE78FEAAEL, 0xF9F4892ED96BD438L,
+          0x1AF3DBE25D8F45DAL, 0xF5B4B0B0D2DEEEB4L, 0x962ACEEFA82E1C84L, 0x046E3ECAAF453CE9L,
+          0xF05D129681949A4CL, 0x964781CE734B3C84L, 0x9C2ED44081CE5FBDL, 0x522E23F3925E319EL,
+          0x177E00F9FC32F791L, 0x2BC60A63A6F3B3F2L, 0x222BBFAE61725606L, 0x486289DDCC3D6780L,
+          0x7DC7785B8EFDFC80L, 0x8AF38731C02BA980L, 0x1FAB64EA29A2DDF7L, 0xE4D9429322CD065AL,
+          0x9DA058C67844F20CL, 0x24C0E332B70019B0L, 0x233003B5A6CFE6ADL, 0xD586BD01C5C217F6L,
+          0x5E5637885F29BC2BL, 0x7EBA726D8C94094BL, 0x0A56A5F0BFE39272L, 0xD79476A84EE20D06L,
+          0x9E4C1269BAA4BF37L, 0x17EFEE45B0DEE640L, 0x1D95B0A5FCF90BC6L, 0x93CBE0B699C2585DL,
+          0x65FA4F227A2B6D79L, 0xD5F9E858292504D5L, 0xC2B5A03F71471A6FL, 0x59300222B4561E00L,
+          0xCE2F8642CA0712DCL, 0x7CA9723FBB2E8988L, 0x2785338347F2BA08L, 0xC61BB3A141E50E8CL,
+          0x150F361DAB9DEC26L, 0x9F6A419D382595F4L, 0x64A53DC924FE7AC9L, 0x142DE49FFF7A7C3DL,
+          0x0C335248857FA9E7L, 0x0A9C32D5EAE45305L, 0xE6C42178C4BBB92EL, 0x71F1CE2490D20B07L,
+          0xF1BCC3D275AFE51AL, 0xE728E8C83C334074L, 0x96FBF83A12884624L, 0x81A1549FD6573DA5L,
+          0x5FA7867CAF35E149L, 0x56986E2EF3ED091BL, 0x917F1DD5F8886C61L, 0xD20D8C88C8FFE65FL,
+          0x31D71DCE64B2C310L, 0xF165B587DF898190L, 0xA57E6339DD2CF3A0L, 0x1EF6E6DBB1961EC9L,
+          0x70CC73D90BC26E24L, 0xE21A6B35DF0C3AD7L, 0x003A93D8B2806962L, 0x1C99DED33CB890A1L,
+          0xCF3145DE0ADD4289L, 0xD0E4427A5514FB72L, 0x77C621CC9FB3A483L, 0x67A34DAC4356550BL,
+          0xF8D626AAAF278509L };
+
+  private Polyglot() {
+  }
+
+  public static long key(ChessBoard board) {
+      long key = 0;
+      for (long occupied = board.getOccupied(); occupied != 0; occupied &= occupied - 1) {
+          int square = Long.numberOfTrailingZeros(occupied);
+          int code = board.codeAt(square);
+          int kind = 2 * PieceCode.type(code) + (PieceCode.color(code) == PieceColor.WHITE.ordinal() ? 1 : 0);
+          key ^= RANDOM[64 * kind + (square ^ 56)];
+      }
+      // ChessBoard's castling bits are White kingside, White queenside, Black kingside, Black queenside: Polyglot's order.
+      for (int bit = 0; bit < 4; bit++) {
+          if ((board.getCastlingRights() & (1 << bit)) != 0) {
+              key ^= RANDOM[CASTLING + bit];
+          }
+      }
+      // The en-passant file only counts when a pawn of the side to move can actually make the capture.
+      int enPassant = board.getEnPassantSquare();
+      PieceColor us = board.getSideToMove();
+      if (enPassant >= 0 && (Bitboards.PAWN_ATTACKS[us.opposite().ordinal()][enPassant]
+              & board.getPieces(us, PieceType.PAWN)) != 0) {
+          key ^= RANDOM[EN_PASSANT + (enPassant & 7)];
+      }
+      if (us == PieceColor.WHITE) {
+          key ^= RANDOM[TURN];
+      }
+      return key;
+  }
+}
+OpeningBook:
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+// Opening book in the Polyglot .bin layout: 16-byte big-endian entries (u64 key, u16 move, u16 weight,
+// u32 learn) sorted by Polyglot key. Lookups binary-search the memory-mapped file directly and allocate nothing
+// per entry. The mapping is only read with absolute gets, so lookups from concurrent games need no lock.
+public class OpeningBook implements Closeable {
+  static final int ENTRY_BYTES = 16;
+
+  private final FileChannel channel;
+  private final MappedByteBuffer entries;
+  private final int size;
+  private final ThreadLocal<MoveList> legal = ThreadLocal.withInitial(MoveList::new);
+
+  public OpeningBook(Path file) throws IOException {
+      this.channel = FileChannel.open(file, StandardOpenOption.READ);
+      if (channel.size() > Integer.MAX_VALUE) {
+          channel.close();
+          throw new IOException("Book larger than 2 GiB: " + file);
+      }
+      this.entries = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      this.size = (int) (channel.size() / ENTRY_BYTES);
+  }
+
+  public int size() {
+      return size;
+  }
+
+  // Highest-weighted book move for the position, or Move.NONE when the position is not in the book.
+  public int bestMove(ChessBoard board) {
+      long key = Polyglot.key(board);
+      int best = -1;
+      for (int i = firstEntry(key); i < size && key(i) == key; i++) {
+          if (best < 0 || weight(i) > weight(best)) {
+              best = i;
+          }
+      }
+      return best < 0 ? Move.NONE : toMove(board, entries.getShort(best * ENTRY_BYTES + 8));
+  }
+
+  // Book move chosen with probability proportional to its weight, or Move.NONE when out of book.
+  public int randomMove(ChessBoard board, Random random) {
+      long key = Polyglot.key(board);
+      int first = firstEntry(key);
+      long total = 0;
+      for (int i = first; i < size && key(i) == key; i++) {
+          total += weight(i);
+      }
+      if (total == 0) {
+          return Move.NONE;
+      }
+      long pick = (long) (random.nextDouble() * total);
+      for (int i = first;; i++) {
+          pick -= weight(i);
+          if (pick < 0) {
+              return toMove(board, entries.getShort(i * ENTRY_BYTES + 8));
+          }
+      }
+  }
+
+  private int firstEntry(long key) {
+      int low = 0;
+      int high = size;
+      while (low < high) {
+          int mid = (low + high) >>> 1;
+          if (Long.compareUnsigned(key(mid), key) < 0) {
+              low = mid + 1;
+          } else {
+              high = mid;
+          }
+      }
+      return low;
+  }
+
+  private long key(int entry) {
+      return entries.getLong(entry * ENTRY_BYTES);
+  }
+
+  private int weight(int entry) {
+      return entries.getShort(entry * ENTRY_BYTES + 10) & 0xFFFF;
+  }
+
+  private int toMove(ChessBoard board, short encoded) {
+      MoveList legal = this.legal.get();
+      San.legalMoves(board, legal);
+      for (int i = 0; i < legal.size(); i++) {
+          if (encode(legal.get(i)) == encoded) {
+              return legal.get(i);
+          }
+      }
+      return Move.NONE;
+  }
+
+  // Polyglot move bits: 0-2 to file, 3-5 to rank, 6-8 from file, 9-11 from rank (rank 0 is White's first),
+  // 12-14 promotion (1 knight .. 4 queen). Castling is written as the king capturing its own rook.
+  static short encode(int move) {
+      int from = Move.from(move);
+      int to = Move.to(move);
+      if (Move.hasFlag(move, Move.CASTLING)) {
+          to = to > from ? from + 3 : from - 4;
+      }
+      return (short) ((to & 7) | ((7 - (to >> 3)) << 3) | ((from & 7) << 6) | ((7 - (from >> 3)) << 9)
+              | (Move.promotion(move) << 12));
+  }
+
+  @Override
+  public void close() throws IOException {
+      channel.close();
+  }
+}
+BookBuilder:
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Builds an OpeningBook file from game archives. Every move played in the first maxPlies of a game is counted
+// for the position it was played from, scoring 2 for a win and 1 for a draw of the side that played it
+// (the Polyglot convention); moves that only ever lost keep weight 0 and are dropped.
+public class BookBuilder {
+  private final int maxPlies;
+  private final Map<Long, Map<Short, long[]>> positions = new HashMap<>();
+
+  public BookBuilder(int maxPlies) {
+      this.maxPlies = maxPlies;
+  }
+
+  public void addArchive(GameArchiveReader archive) {
+      ChessBoard board = new ChessBoard();
+      for (int game = 0; game < archive.size(); game++) {
+          String result = archive.getResult(game);
+          if (result.equals("*")) {
+              continue;
+          }
+          int[] moves = archive.getMoves(game);
+          archive.replay(game, board, 0);
+          for (int ply = 0; ply < Math.min(maxPlies, moves.length); ply++) {
+              boolean whiteMoved = board.getSideToMove() == PieceColor.WHITE;
+              int score = result.equals("1/2-1/2") ? 1 : result.equals(whiteMoved ? "1-0" : "0-1") ? 2 : 0;
+              positions.computeIfAbsent(Polyglot.key(board), key -> new HashMap<>())
+                      .computeIfAbsent(OpeningBook.encode(moves[ply]), move -> new long[1])[0] += score;
+              board.makeMove(moves[ply]);
+          }
+      }
+  }
+
+  // Writes entries sorted by unsigned key, weights scaled into the 16-bit range.
+  public void write(Path file) throws IOException {
+      long maxWeight = 1;
+      for (Map<Short, long[]> moves : positions.values()) {
+          for (long[] weight : moves.values()) {
+              maxWeight = Math.max(maxWeight, weight[0]);
+          }
+      }
+      List<Long> keys = new ArrayList<>(positions.keySet());
+      keys.sort(Long::compareUnsigned);
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+          for (long key : keys) {
+              for (Map.Entry<Short, long[]> move : positions.get(key).entrySet()) {
+                  long count = move.getValue()[0];
+                  if (count == 0) {
+                      continue;
+                  }
+                  int weight = (int) (maxWeight > 0xFFFF ? Math.max(1, count * 0xFFFF / maxWeight) : count);
+                  out.writeLong(key);
+                  out.writeShort(move.getKey());
+                  out.writeShort(weight);
+                  out.writeInt(0);
+              }
+          }
+      }
+  }
+
+  // Usage: java BookBuilder <book.bin> <maxPlies> <archive.dat> <archive.idx> [<archive.dat> <archive.idx> ...]
+  public static void main(String[] args) throws IOException {
+      BookBuilder builder = new BookBuilder(Integer.parseInt(args[1]));
+      for (int i = 2; i + 1 < args.length; i += 2) {
+          try (GameArchiveReader archive = new GameArchiveReader(Path.of(args[i]), Path.of(args[i + 1]))) {
+              builder.addArchive(archive);
+          }
+      }
+      builder.write(Path.of(args[0]));
+      System.out.println("wrote " + Files.size(Path.of(args[0])) / OpeningBook.ENTRY_BYTES + " book entries");
+  }
+}
+Tablebase:
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+// Distance-to-mate tablebase for one material set of up to four pieces, e.g. "KQK", "KRK", "KPK", "KBNK", "KQKR"
+// (White's pieces, then Black's). A position is indexed by side to move plus six bits per piece square, and its
+// code is 0 for a draw, or 2 + the number of plies to mate with best play: odd plies when the side to move
+// wins, even when it loses (2 means checkmated now).
+//
+// Generation works backwards from the mates one ply at a time: pass n marks wins in n plies (odd n) or losses in
+// n plies (even n) from the positions settled by earlier passes, until two passes in a row settle nothing.
+// Each pass splits the index range over a fork-join pool. Captures and promotions probe the smaller tables,
+// which are generated first. En-passant rights are not part of the index.
+public final class Tablebase {
+  public static final int NOT_FOUND = -1;
+  public static final int DRAW = 0;
+  private static final int ILLEGAL = 1;
+  private static final int MAGIC = 0x43544231; // "CTB1"
+  private static final int MAX_PIECES = 4;
+  private static final int CHUNK = 1 << 14;
+  private static final String LETTERS = "PNBRQK";
+
+  private final String signature;
+  private final PieceColor[] colors;
+  private final PieceType[] types;
+  private final int[] material = new int[12]; // piece counts indexed color * 6 + type
+  private final int size;
+  private int maxPlies;
+  // Exactly one of these holds the codes: values while generating, the mapped file after open().
+  private short[] values;
+  private ByteBuffer packed;
+  private int packedOffset;
+  private int bits;
+
+  private Tablebase(String signature) {
+      this.signature = signature;
+      int second = signature.indexOf('K', 1);
+      if (!signature.startsWith("K") || second < 0 || signature.length() > MAX_PIECES) {
+          throw new IllegalArgumentException("Unsupported material set: " + signature);
+      }
+      // Slot order: white king, black king, white pieces, black pieces.
+      int pieces = signature.length();
+      this.colors = new PieceColor[pieces];
+      this.types = new PieceType[pieces];
+      colors[0] = PieceColor.WHITE;
+      types[0] = PieceType.KING;
+      colors[1] = PieceColor.BLACK;
+      types[1] = PieceType.KING;
+      int slot = 2;
+      for (int i = 1; i < signature.length(); i++) {
+          if (i == second) {
+              continue;
+          }
+          int type = LETTERS.indexOf(signature.charAt(i));
+          if (type < 0 || type == PieceType.KING.ordinal()) {
+              throw new IllegalArgumentException("Unsupported material set: " + signature);
+          }
+          colors[slot] = i < second ? PieceColor.WHITE : PieceColor.BLACK;
+          types[slot++] = PieceType.of(type);
+      }
+      for (int i = 0; i < pieces; i++) {
+          material[colors[i].ordinal() * 6 + types[i].ordinal()]++;
+      }
+      this.size = 2 << (6 * pieces);
+  }
+
+  public String getSignature() {
+      return signature;
+  }
+
+  public int size() {
+      return size;
+  }
+
+  public int getMaxPlies() {
+      return maxPlies;
+  }
+
+  public static boolean isWin(int code) {
+      return code >= 2 && ((code - 2) & 1) == 1;
+  }
+
+  public static boolean isLoss(int code) {
+      return code >= 2 && ((code - 2) & 1) == 0;
+  }
+
+  public static int pliesToMate(int code) {
+      return code - 2;
+  }
+
+  // Code for the board's position, or NOT_FOUND if the material does not match this table (in either color).
+  public int probe(ChessBoard board) {
+      int index = indexOf(board);
+      if (index < 0) {
+          return NOT_FOUND;
+      }
+      int code = code(index);
+      return code == ILLEGAL ? NOT_FOUND : code;
+  }
+
+  // Index of the board in this table, reading the colors reversed and the board mirrored when the material
+  // only matches that way round; -1 if it matches neither.
+  int indexOf(ChessBoard board) {
+      boolean flipped;
+      if (hasMaterial(board, false)) {
+          flipped = false;
+      } else if (hasMaterial(board, true)) {
+          flipped = true;
+      } else {
+          return -1;
+      }
+      int index = 0;
+      long taken = 0L;
+      for (int slot = 0; slot < colors.length; slot++) {
+          PieceColor color = flipped ? colors[slot].opposite() : colors[slot];
+          long candidates = board.getPieces(color, types[slot]) & ~taken;
+          int square = Long.numberOfTrailingZeros(candidates);
+          taken |= 1L << square;
+          index |= (flipped ? square ^ 56 : square) << (6 * slot);
+      }
+      boolean blackToMove = (board.getSideToMove() == PieceColor.BLACK) != flipped;
+      return blackToMove ? index | (1 << (6 * colors.length)) : index;
+  }
+
+  private boolean hasMaterial(ChessBoard board, boolean flipped) {
+      for (PieceColor color : PieceColor.values()) {
+          PieceColor tableColor = flipped ? color.opposite() : color;
+          for (int type = 0; type < 6; type++) {
+              if (Long.bitCount(board.getPieces(color, PieceType.of(type))) != material[tableColor.ordinal() * 6 + type]) {
+                  return false;
+              }
+          }
+      }
+      return true;
+  }
+
+  private int code(int index) {
+      if (values != null) {
+          return values[index];
+      }
+      long bit = (long) index * bits;
+      int word = (int) (bit >>> 6);
+      int shift = (int) (bit & 63);
+      long value = packed.getLong(packedOffset + word * 8) >>> shift;
+      if (shift + bits > 64) {
+          value |= packed.getLong(packedOffset + word * 8 + 8) << (64 - shift);
+      }
+      return (int) (value & ((1L << bits) - 1));
+  }
+
+  public static Tablebase generate(String signature, int threads) throws InterruptedException {
+      return generate(signature, new HashMap<>(), threads);
+  }
+
+  // Generates signature, first generating (and adding to tables) any smaller material set it can reach.
+  public static Tablebase generate(String signature, Map<String, Tablebase> tables, int threads)
+          throws InterruptedException {
+      Tablebase table = new Tablebase(signature);
+      for (String reachable : table.reachableSignatures()) {
+          if (!isInsufficient(reachable) && find(tables, reachable) == null) {
+              tables.put(reachable, generate(reachable, tables, threads));
+          }
+      }
+      ForkJoinPool pool = new ForkJoinPool(threads);
+      try {
+          table.solve(pool, tables);
+      } catch (ExecutionException e) {
+          throw new IllegalStateException("Tablebase generation failed for " + signature, e.getCause());
+      } finally {
+          pool.shutdown();
+      }
+      tables.put(signature, table);
+      return table;
+  }
+
+  private java.util.Set<String> reachableSignatures() {
+      java.util.Set<String> reachable = new java.util.HashSet<>();
+      for (int slot = 2; slot < colors.length; slot++) {
+          reachable.add(signatureWith(slot, null));
+          if (types[slot] == PieceType.PAWN) {
+              for (PieceType promotion : new PieceType[] { PieceType.QUEEN, PieceType.ROOK, PieceType.BISHOP,
+                      PieceType.KNIGHT }) {
+                  reachable.add(signatureWith(slot, promotion));
+                  // A promotion can also capture.
+                  for (int other = 2; other < colors.length; other++) {
+                      if (colors[other] != colors[slot]) {
+                          Tablebase promoted = new Tablebase(signatureWith(slot, promotion));
+                          for (int i = 2; i < promoted.colors.length; i++) {
+                              if (promoted.colors[i] == colors[other] && promoted.types[i] == types[other]) {
+                                  reachable.add(promoted.signatureWith(i, null));
+                                  break;
+                              }
+                          }
+                      }
+                  }
+              }
+          }
+      }
+      return reachable;
+  }
+
+  // Signature with the piece in slot removed (replacement null) or replaced, pieces ordered Q R B N P.
+  private String signatureWith(int slot, PieceType replacement) {
+      StringBuilder white = new StringBuilder("K");
+      StringBuilder black = new StringBuilder("K");
+      for (int type = PieceType.QUEEN.ordinal(); type >= 0; type--) {
+          for (int i = 2; i < colors.length; i++) {
+              PieceType pieceType = i == slot ? replacement : types[i];
+              if (pieceType != null && pieceType.ordinal() == type) {
+                  (colors[i] == PieceColor.WHITE ? white : black).append(LETTERS.charAt(type));
+              }
+          }
+      }
+      return white.append(black).toString();
+  }
+
+  private static String flip(String signature) {
+      int second = signature.indexOf('K', 1);
+      return signature.substring(second) + signature.substring(0, second);
+  }
+
+  private static Tablebase find(Map<String, Tablebase> tables, String signature) {
+      Tablebase table = tables.get(signature);
+      return table != null ? table : tables.get(flip(signature));
+  }
+
+  // Bare kings, or kings and a single knight or bishop, cannot mate.
+  private static boolean isInsufficient(String signature) {
+      String pieces = signature.replace("K", "");
+      return pieces.isEmpty() || pieces.equals("N") || pieces.equals("B");
+  }
+
+  private void solve(ForkJoinPool pool, Map<String, Tablebase> tables) throws InterruptedException, ExecutionException {
+      values = new short[size];
+      int dependencyPlies = 0;
+      for (Tablebase table : tables.values()) {
+          dependencyPlies = Math.max(dependencyPlies, table.maxPlies);
+      }
+      ThreadLocal<Worker> workers = ThreadLocal.withInitial(() -> new Worker(tables));
+      pass(pool, workers, 0);
+      int idle = 0;
+      for (int plies = 1; idle < 2 || plies <= dependencyPlies + 1; plies++) {
+          idle = pass(pool, workers, plies) == 0 ? idle + 1 : 0;
+      }
+  }
+
+  // Pass 0 marks illegal positions and mates; pass n settles every position won or lost in exactly n plies.
+  private long pass(ForkJoinPool pool, ThreadLocal<Worker> workers, int plies)
+          throws InterruptedException, ExecutionException {
+      LongAdder settled = new LongAdder();
+      pool.submit(() -> IntStream.range(0, (size + CHUNK - 1) / CHUNK).parallel().forEach(chunk -> {
+          Worker worker = workers.get();
+          long count = 0;
+          for (int index = chunk * CHUNK; index < Math.min(size, (chunk + 1) * CHUNK); index++) {
+              if (plies == 0) {
+                  values[index] = (short) worker.initial(index);
+              } else if (values[index] == DRAW && worker.settles(index, plies)) {
+                  values[index] = (short) (plies + 2);
+                  count++;
+              }
+          }
+          settled.add(count);
+      })).get();
+      if (settled.sum() > 0) {
+          maxPlies = Math.max(maxPlies, plies);
+      }
+      return settled.sum();
+  }
+
+  // Per-thread scratch: a board with this table's pieces, reused for every index the thread visits.
+  private final class Worker {
+      private final ChessBoard board = new ChessBoard();
+      private final MoveList moves = new MoveList();
+      private final Piece[] pieces = new Piece[colors.length];
+      private final int[] squares = new int[colors.length];
+      private final Map<String, Tablebase> tables;
+
+      Worker(Map<String, Tablebase> tables) {
+          this.tables = tables;
+          board.clear();
+          for (int slot = 0; slot < pieces.length; slot++) {
+              pieces[slot] = Piece.create(types[slot], colors[slot], Position.of(0));
+          }
+      }
+
+      int initial(int index) {
+          if (!setUp(index)) {
+              return ILLEGAL;
+          }
+          San.legalMoves(board, moves);
+          PieceColor us = board.getSideToMove();
+          int code = moves.size() > 0 ? DRAW
+                  : board.isSquareAttacked(board.getKingSquare(us), us.opposite()) ? 2 : DRAW;
+          tearDown();
+          return code;
+      }
+
+      boolean settles(int index, int plies) {
+          setUp(index);
+          San.legalMoves(board, moves);
+          boolean wantWin = (plies & 1) == 1;
+          boolean settled = !wantWin && moves.size() > 0;
+          for (int i = 0; i < moves.size(); i++) {
+              int move = moves.get(i);
+              board.makeMove(move);
+              int child = Move.isCapture(move) || Move.promotion(move) != 0 ? probeReachable() : values[indexOf(board)];
+              board.unmakeMove();
+              if (wantWin && isLoss(child) && pliesToMate(child) <= plies - 1) {
+                  settled = true;
+                  break;
+              }
+              if (!wantWin && !(isWin(child) && pliesToMate(child) <= plies - 1)) {
+                  settled = false;
+                  break;
+              }
+          }
+          tearDown();
+          return settled;
+      }
+
+      private int probeReachable() {
+          StringBuilder white = new StringBuilder("K");
+          StringBuilder black = new StringBuilder("K");
+          for (int type = PieceType.QUEEN.ordinal(); type >= 0; type--) {
+              for (PieceColor color : PieceColor.values()) {
+                  for (int n = Long.bitCount(board.getPieces(color, PieceType.of(type))); n > 0; n--) {
+                      (color == PieceColor.WHITE ? white : black).append(LETTERS.charAt(type));
+                  }
+              }
+          }
+          String reached = white.append(black).toString();
+          if (isInsufficient(reached)) {
+              return DRAW;
+          }
+          Tablebase table = find(tables, reached);
+          return table == null ? DRAW : Math.max(DRAW, table.probe(board));
+      }
+
+      private boolean setUp(int index) {
+          long occupied = 0L;
+          for (int slot = 0; slot < squares.length; slot++) {
+              int square = (index >>> (6 * slot)) & 63;
+              int row = square >> 3;
+              if ((occupied & (1L << square)) != 0 || (types[slot] == PieceType.PAWN && (row == 0 || row == 7))) {
+                  return false;
+              }
+              occupied |= 1L << square;
+              squares[slot] = square;
+          }
+          for (int slot = 0; slot < squares.length; slot++) {
+              board.setPiece(squares[slot] >> 3, squares[slot] & 7, pieces[slot]);
+          }
+          PieceColor us = (index >>> (6 * squares.length)) != 0 ? PieceColor.BLACK : PieceColor.WHITE;
+          board.setState(us, 0, -1, 0, 1);
+          if (board.isSquareAttacked(board.getKingSquare(us.opposite()), us)) {
+              tearDown();
+              return false;
+          }
+          return true;
+      }
+
+      private void tearDown() {
+          for (int square : squares) {
+              board.setPiece(square >> 3, square & 7, null);
+          }
+      }
+  }
+
+  // File layout: magic, signature (modified UTF-8), max plies, bits per entry, then the codes bit-packed
+  // little-end first into big-endian longs.
+  public void write(Path file) throws IOException {
+      int maxCode = 2;
+      for (int index = 0; index < size; index++) {
+          maxCode = Math.max(maxCode, code(index));
+      }
+      int width = 32 - Integer.numberOfLeadingZeros(maxCode);
+      long[] words = new long[(int) (((long) size * width + 63) >>> 6)];
+      for (int index = 0; index < size; index++) {
+          long bit = (long) index * width;
+          int word = (int) (bit >>> 6);
+          int shift = (int) (bit & 63);
+          long value = code(index);
+          words[word] |= value << shift;
+          if (shift + width > 64) {
+              words[word + 1] |= value >>> (64 - shift);
+          }
+      }
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16))) {
+          out.writeInt(MAGIC);
+          out.writeUTF(signature);
+          out.writeInt(maxPlies);
+          out.writeInt(width);
+          for (long word : words) {
+              out.writeLong(word);
+          }
+      }
+  }
+
+  public static Tablebase open(Path file) throws IOException {
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+          ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+          if (buffer.getInt() != MAGIC) {
+              throw new IOException("Not a tablebase file: " + file);
+          }
+          byte[] name = new byte[buffer.getShort() & 0xFFFF];
+          buffer.get(name);
+          Tablebase table = new Tablebase(new String(name, java.nio.charset.StandardCharsets.UTF_8));
+          table.maxPlies = buffer.getInt();
+          table.bits = buffer.getInt();
+          table.packedOffset = buffer.position();
+          table.packed = buffer;
+          return table;
+      }
+  }
+
+  // Usage: java Tablebase <outputDir> <threads> <material>... e.g. java Tablebase tb 8 KQK KRK KPK KBNK
+  public static void main(String[] args) throws IOException, InterruptedException {
+      Path directory = Path.of(args[0]);
+      int threads = Integer.parseInt(args[1]);
+      Files.createDirectories(directory);
+      Map<String, Tablebase> tables = new HashMap<>();
+      for (int i = 2; i < args.length; i++) {
+          long start = System.nanoTime();
+          Tablebase table = generate(args[i], tables, threads);
+          table.write(directory.resolve(table.getSignature() + ".ctb"));
+          System.out.printf("%s: %d positions, longest mate %d plies, %.1f s on %d threads%n", table.getSignature(),
+                  table.size(), table.getMaxPlies(), (System.nanoTime() - start) / 1e9, threads);
+      }
+  }
+}
+MoveCache:
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bounded cache of per-square move lists keyed by (Zobrist hash, square). The hash covers pieces, side to move,
+// castling rights and en passant, so a changed position simply misses and stale entries age out. Both halves of the
+// key are stored and compared, so two squares or positions mixing to the same slot never share a list.
+//
+// Shared by every ChessGame, so it takes no lock: an open-addressed table of immutable entries probed over a short
+// window, with CLOCK (second-chance) eviction inside the window. A get only sets the entry's referenced bit; a put
+// that races another put on the same slot may lose, which for a cache is just a later miss.
+public class MoveCache {
+  private static final long SQUARE_MIX = 0x9E3779B97F4A7C15L;
+  private static final int PROBES = 8; // a power of two
+
+  private static final class Entry {
+      final long hash;
+      final int square;
+      final List<Position> moves;
+      // Set on every hit, cleared as the eviction scan passes over the entry.
+      volatile boolean referenced;
+
+      Entry(long hash, int square, List<Position> moves) {
+          this.hash = hash;
+          this.square = square;
+          this.moves = moves;
+      }
+  }
+
+  private final AtomicReferenceArray<Entry> slots;
+  private final int mask;
+  // Where the next sweep starts inside its window. Updated without synchronization: any offset is a valid start.
+  private int hand;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  // capacity is rounded up to a power of two.
+  public MoveCache(int capacity) {
+      if (capacity <= 0) {
+          throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+      }
+      int size = Math.max(PROBES, Integer.highestOneBit(Math.max(1, capacity - 1)) << 1);
+      this.slots = new AtomicReferenceArray<>(size);
+      this.mask = size - 1;
+  }
+
+  private static int index(long hash, int square) {
+      long key = hash ^ (square + 1) * SQUARE_MIX;
+      return (int) (key ^ (key >>> 32));
+  }
+
+  // Cached moves for the square, or null on a miss.
+  public List<Position> get(long hash, int square) {
+      int start = index(hash, square);
+      for (int probe = 0; probe < PROBES; probe++) {
+          Entry entry = slots.get((start + probe) & mask);
+          if (entry == null) {
+              break;
+          }
+          if (entry.hash == hash && entry.square == square) {
+              if (!entry.referenced) {
+                  entry.referenced = true;
+              }
+              hits.increment();
+              return entry.moves;
+          }
+      }
+      misses.increment();
+      return null;
+  }
+
+  // Stores an unmodifiable copy of the moves and returns it, so callers can hand out the cached instance. Fills the
+  // first free or matching slot in the window; otherwise the clock sweeps the window, giving referenced entries a
+  // second chance, and replaces the first unreferenced one.
+  public List<Position> put(long hash, int square, List<Position> moves) {
+      List<Position> cached = Collections.unmodifiableList(moves);
+      Entry created = new Entry(hash, square, cached);
+      int start = index(hash, square);
+      for (int probe = 0; probe < PROBES; probe++) {
+          int slot = (start + probe) & mask;
+          Entry entry = slots.get(slot);
+          if (entry == null || (entry.hash == hash && entry.square == square)) {
+              slots.set(slot, created);
+              return cached;
+          }
+      }
+      // Two turns of the window always reach an entry whose bit the first turn cleared.
+      int hand = this.hand++;
+      for (int probe = 0; probe < 2 * PROBES; probe++) {
+          int slot = (start + ((hand + probe) & (PROBES - 1))) & mask;
+          Entry entry = slots.get(slot);
+          if (entry != null && entry.referenced) {
+              entry.referenced = false;
+          } else if (slots.compareAndSet(slot, entry, created)) {
+              if (entry != null) {
+                  evictions.increment();
+              }
+              return cached;
+          }
+      }
+      return cached;
+  }
+
+  public void clear() {
+      for (int slot = 0; slot < slots.length(); slot++) {
+          slots.set(slot, null);
+      }
+  }
+
+  // Occupied slots; scans the table, so meant for statistics only.
+  public int size() {
+      int size = 0;
+      for (int slot = 0; slot < slots.length(); slot++) {
+          if (slots.get(slot) != null) {
+              size++;
+          }
+      }
+      return size;
+  }
+
+  public int capacity() {
+      return slots.length();
+  }
+
+  public long getHits() {
+      return hits.sum();
+  }
+
+  public long getMisses() {
+      return misses.sum();
+  }
+
+  public long getEvictions() {
+      return evictions.sum();
+  }
+
+  @Override
+  public String toString() {
+      return String.format("MoveCache[%d/%d entries, %d hits, %d misses, %d evictions]", size(), capacity(),
+              getHits(), getMisses(), getEvictions());
+  }
+}
+LatencyHistogram:
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Log-linear latency histogram in the HdrHistogram layout: values below 32 get exact buckets, larger values fall
+// into 16 sub-buckets per power of two, so any recorded value is reported within about 6%. Recording is one atomic
+// increment on a fixed array and never allocates.
+public class LatencyHistogram {
+  private static final int SUB_BITS = 5;
+  private static final int LINEAR = 1 << SUB_BITS;
+  private static final int HALF = LINEAR / 2;
+  private static final int BUCKETS = LINEAR + (63 - SUB_BITS) * HALF;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder total = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  static int bucket(long value) {
+      if (value < LINEAR) {
+          return (int) Math.max(value, 0);
+      }
+      int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS + 1;
+      return LINEAR + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+  }
+
+  // Largest value that lands in the bucket.
+  static long highestValue(int bucket) {
+      if (bucket < LINEAR) {
+          return bucket;
+      }
+      int offset = bucket - LINEAR;
+      int shift = offset / HALF + 1;
+      long sub = offset % HALF + HALF;
+      return ((sub + 1) << shift) - 1;
+  }
+
+  public void record(long value) {
+      counts.incrementAndGet(bucket(value));
+      total.increment();
+      sum.add(value);
+      long current = max.get();
+      while (value > current && !max.compareAndSet(current, value)) {
+          current = max.get();
+      }
+  }
+
+  public long count() {
+      return total.sum();
+  }
+
+  public long max() {
+      return max.get();
+  }
+
+  public double mean() {
+      long count = total.sum();
+      return count == 0 ? 0 : (double) sum.sum() / count;
+  }
+
+  // Value at or below which the given percentage of recordings fall, e.g. percentile(99.9).
+  public long percentile(double percent) {
+      long count = total.sum();
+      if (count == 0) {
+          return 0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(percent / 100 * count));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+          seen += counts.get(i);
+          if (seen >= rank) {
+              return Math.min(highestValue(i), max.get());
+          }
+      }
+      return max.get();
+  }
+
+  public void reset() {
+      for (int i = 0; i < BUCKETS; i++) {
+          counts.set(i, 0);
+      }
+      total.reset();
+      sum.reset();
+      max.set(0);
+  }
+}
+Metrics:
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.LongAdder;
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+// Process-wide latency histograms, counters and JFR events for the game hot paths. Off unless the JVM runs with
+// -Dchess.metrics=true; ENABLED is a static final, so the JIT folds every guarded call site away when it is off.
+// The JFR events additionally need a recording with the chess.* events enabled to be committed.
+public final class Metrics {
+  public static final boolean ENABLED = Boolean.getBoolean("chess.metrics");
+
+  public static final LatencyHistogram MAKE_MOVE = new LatencyHistogram();
+  public static final LatencyHistogram IS_IN_CHECK = new LatencyHistogram();
+  public static final LatencyHistogram IS_CHECKMATE = new LatencyHistogram();
+  public static final LatencyHistogram LEGAL_MOVES = new LatencyHistogram();
+  public static final LatencyHistogram SEARCH_ITERATION = new LatencyHistogram();
+
+  private static final LongAdder movesMade = new LongAdder();
+  private static final LongAdder movesRejected = new LongAdder();
+  private static final LongAdder nodesSearched = new LongAdder();
+  private static volatile long startNanos = System.nanoTime();
+
+  @Name("chess.MoveValidation")
+  @Label("Move Validation")
+  @Category("Chess")
+  static final class MoveValidationEvent extends Event {
+      @Label("From")
+      String from;
+      @Label("To")
+      String to;
+      @Label("Accepted")
+      boolean accepted;
+      @Label("Latency")
+      @Timespan(Timespan.NANOSECONDS)
+      long latency;
+  }
+
+  @Name("chess.CheckDetection")
+  @Label("Check Detection")
+  @Category("Chess")
+  static final class CheckDetectionEvent extends Event {
+      @Label("Color")
+      String color;
+      @Label("Checkmate Test")
+      boolean checkmateTest;
+      @Label("Result")
+      boolean result;
+      @Label("Latency")
+      @Timespan(Timespan.NANOSECONDS)
+      long latency;
+  }
+
+  @Name("chess.SearchIteration")
+  @Label("Search Iteration")
+  @Category("Chess")
+  static final class SearchIterationEvent extends Event {
+      @Label("Depth")
+      int depth;
+      @Label("Score")
+      int score;
+      @Label("Nodes")
+      long nodes;
+      @Label("Completed")
+      boolean completed;
+      @Label("Latency")
+      @Timespan(Timespan.NANOSECONDS)
+      long latency;
+  }
+
+  private Metrics() {
+  }
+
+  // Callers check ENABLED before taking the start timestamp and calling any of these.
+  static void moveValidated(long start, int from, int to, boolean accepted) {
+      long latency = System.nanoTime() - start;
+      MAKE_MOVE.record(latency);
+      (accepted ? movesMade : movesRejected).increment();
+      MoveValidationEvent event = new MoveValidationEvent();
+      if (event.isEnabled()) {
+          event.from = Fen.squareName(from);
+          event.to = Fen.squareName(to);
+          event.accepted = accepted;
+          event.latency = latency;
+          event.commit();
+      }
+  }
+
+  static void checkDetected(long start, PieceColor color, boolean checkmateTest, boolean result) {
+      long latency = System.nanoTime() - start;
+      (checkmateTest ? IS_CHECKMATE : IS_IN_CHECK).record(latency);
+      CheckDetectionEvent event = new CheckDetectionEvent();
+      if (event.isEnabled()) {
+          event.color = color.name();
+          event.checkmateTest = checkmateTest;
+          event.result = result;
+          event.latency = latency;
+          event.commit();
+      }
+  }
+
+  static void legalMovesListed(long start) {
+      LEGAL_MOVES.record(System.nanoTime() - start);
+  }
+
+  static void searchIteration(long start, int depth, int score, long nodes, boolean completed) {
+      long latency = System.nanoTime() - start;
+      SEARCH_ITERATION.record(latency);
+      nodesSearched.add(nodes);
+      SearchIterationEvent event = new SearchIterationEvent();
+      if (event.isEnabled()) {
+          event.depth = depth;
+          event.score = score;
+          event.nodes = nodes;
+          event.completed = completed;
+          event.latency = latency;
+          event.commit();
+      }
+  }
+
+  public static long getMovesMade() {
+      return movesMade.sum();
+  }
+
+  public static long getNodesSearched() {
+      return nodesSearched.sum();
+  }
+
+  public static String snapshot() {
+      double seconds = Math.max((System.nanoTime() - startNanos) / 1e9, 1e-9);
+      MoveCache cache = ChessGame.getMoveCache();
+      StringBuilder out = new StringBuilder();
+      out.append(String.format("metrics %s, %.1f s%n", ENABLED ? "enabled" : "disabled", seconds));
+      out.append(String.format("moves made %d (%.1f/s), rejected %d%n", movesMade.sum(), movesMade.sum() / seconds,
+              movesRejected.sum()));
+      out.append(String.format("nodes searched %d (%.0f/s)%n", nodesSearched.sum(), nodesSearched.sum() / seconds));
+      out.append(String.format("move cache %d hits, %d misses, %d evictions%n", cache.getHits(), cache.getMisses(),
+              cache.getEvictions()));
+      appendHistogram(out, "makeMove", MAKE_MOVE);
+      appendHistogram(out, "isInCheck", IS_IN_CHECK);
+      appendHistogram(out, "isCheckmate", IS_CHECKMATE);
+      appendHistogram(out, "getLegalMovesForPieceAt", LEGAL_MOVES);
+      appendHistogram(out, "search iteration", SEARCH_ITERATION);
+      return out.toString();
+  }
+
+  private static void appendHistogram(StringBuilder out, String name, LatencyHistogram histogram) {
+      out.append(String.format("%-24s n=%d mean=%.0f p50=%d p99=%d p99.9=%d max=%d ns%n", name, histogram.count(),
+              histogram.mean(), histogram.percentile(50), histogram.percentile(99), histogram.percentile(99.9),
+              histogram.max()));
+  }
+
+  public static void dump(PrintStream out) {
+      out.print(snapshot());
+      out.flush();
+  }
+
+  public static void reset() {
+      MAKE_MOVE.reset();
+      IS_IN_CHECK.reset();
+      IS_CHECKMATE.reset();
+      LEGAL_MOVES.reset();
+      SEARCH_ITERATION.reset();
+      movesMade.reset();
+      movesRejected.reset();
+      nodesSearched.reset();
+      startNanos = System.nanoTime();
+  }
+}
+Evaluator:
+
+// Static evaluation: material and piece-square tables tapered between middlegame and endgame weights, plus
+// mobility and king safety. Material and piece-square sums are kept incrementally by ChessBoard (see
+// getMiddlegameScore/getEndgameScore/getPhase), so only mobility and king safety are computed per call.
+public final class Evaluator {
+  public static final int MAX_PHASE = 24;
+
+  private static final int[] MG_VALUES = { 100, 320, 330, 500, 900, 0 };
+  private static final int[] EG_VALUES = { 120, 290, 310, 520, 940, 0 };
+  // Game phase contributed by each piece; a full set of minor and major pieces adds up to MAX_PHASE.
+  static final int[] PHASE = { 0, 1, 1, 2, 4, 0 };
+  private static final int[] MG_MOBILITY = { 0, 4, 5, 2, 1, 0 };
+  private static final int[] EG_MOBILITY = { 0, 4, 5, 4, 2, 0 };
+  // Weight of each attacker type on squares around the enemy king.
+  private static final int[] KING_ATTACK_WEIGHTS = { 0, 2, 2, 3, 5, 0 };
+  private static final int PAWN_SHIELD_BONUS = 10;
+
+  // Tables are laid out like the board, a8 first, from White's point of view; Black reads them mirrored.
+  private static final int[] PAWN_MG = {
+      0, 0, 0, 0, 0, 0, 0, 0,
+      50, 50, 50, 50, 50, 50, 50, 50,
+      10, 10, 20, 30, 30, 20, 10, 10,
+      5, 5, 10, 25, 25, 10, 5, 5,
+      0, 0, 0, 20, 20, 0, 0, 0,
+      5, -5, -10, 0, 0, -10, -5, 5,
+      5, 10, 10, -20, -20, 10, 10, 5,
+      0, 0, 0, 0, 0, 0, 0, 0 };
+  private static final int[] PAWN_EG = {
+      0, 0, 0, 0, 0, 0, 0, 0,
+      80, 80, 80, 80, 80, 80, 80, 80,
+      50, 50, 50, 50, 50, 50, 50, 50,
+      30, 30, 30, 30, 30, 30, 30, 30,
+      20, 20, 20, 20, 20, 20, 20, 20,
+      10, 10, 10, 10, 10, 10, 10, 10,
+      10, 10, 10, 10, 10, 10, 10, 10,
+      0, 0, 0, 0, 0, 0, 0, 0 };
+  private static final int[] KNIGHT = {
+      -50, -40, -30, -30, -30, -30, -40, -50,
+      -40, -20, 0, 0, 0, 0, -20, -40,
+      -30, 0, 10, 15, 15, 10, 0, -30,
+      -30, 5, 15, 20, 20, 15, 5, -30,
+      -30, 0, 15, 20, 20, 15, 0, -30,
+      -30, 5, 10, 15, 15, 10, 5, -30,
+      -40, -20, 0, 5, 5, 0, -20, -40,
+      -50, -40, -30, -30, -30, -30, -40, -50 };
+  private static final int[] BISHOP = {
+      -20, -10, -10, -10, -10, -10, -10, -20,
+      -10, 0, 0, 0, 0, 0, 0, -10,
+      -10, 0, 5, 10, 10, 5, 0, -10,
+      -10, 5, 5, 10, 10, 5, 5, -10,
+      -10, 0, 10, 10, 10, 10, 0, -10,
+      -10, 10, 10, 10, 10, 10, 10, -10,
+      -10, 5, 0, 0, 0, 0, 5, -10,
+      -20, -10, -10, -10, -10, -10, -10, -20 };
+  private static final int[] ROOK = {
+      0, 0, 0, 0, 0, 0, 0, 0,
+      5, 10, 10, 10, 10, 10, 10, 5,
+      -5, 0, 0, 0, 0, 0, 0, -5,
+      -5, 0, 0, 0, 0, 0, 0, -5,
+      -5, 0, 0, 0, 0, 0, 0, -5,
+      -5, 0, 0, 0, 0, 0, 0, -5,
+      -5, 0, 0, 0, 0, 0, 0, -5,
+      0, 0, 0, 5, 5, 0, 0, 0 };
+  private static final int[] QUEEN = {
+      -20, -10, -10, -5, -5, -10, -10, -20,
+      -10, 0, 0, 0, 0, 0, 0, -10,
+      -10, 0, 5, 5, 5, 5, 0, -10,
+      -5, 0, 5, 5, 5, 5, 0, -5,
+      0, 0, 5, 5, 5, 5, 0, -5,
+      -10, 5, 5, 5, 5, 5, 0, -10,
+      -10, 0, 5, 0, 0, 0, 0, -10,
+      -20, -10, -10, -5, -5, -10, -10, -20 };
+  private static final int[] KING_MG = {
+      -30, -40, -40, -50, -50, -40, -40, -30,
+      -30, -40, -40, -50, -50, -40, -40, -30,
+      -30, -40, -40, -50, -50, -40, -40, -30,
+      -30, -40, -40, -50, -50, -40, -40, -30,
+      -20, -30, -30, -40, -40, -30, -30, -20,
+      -10, -20, -20, -20, -20, -20, -20, -10,
+      20, 20, 0, 0, 0, 0, 20, 20,
+      20, 30, 10, 0, 0, 10, 30, 20 };
+  private static final int[] KING_EG = {
+      -50, -40, -30, -20, -20, -30, -40, -50,
+      -30, -20, -10, 0, 0, -10, -20, -30,
+      -30, -10, 20, 30, 30, 20, -10, -30,
+      -30, -10, 30, 40, 40, 30, -10, -30,
+      -30, -10, 30, 40, 40, 30, -10, -30,
+      -30, -10, 20, 30, 30, 20, -10, -30,
+      -30, -30, 0, 0, 0, 0, -30, -30,
+      -50, -30, -30, -30, -30, -30, -30, -50 };
+
+  // Material plus piece-square score per (color * 6 + type, square), signed so White is positive.
+  static final int[][] MG_SCORES = new int[12][64];
+  static final int[][] EG_SCORES = new int[12][64];
+
+  static {
+      int[][] mg = { PAWN_MG, KNIGHT, BISHOP, ROOK, QUEEN, KING_MG };
+      int[][] eg = { PAWN_EG, KNIGHT, BISHOP, ROOK, QUEEN, KING_EG };
+      int white = PieceColor.WHITE.ordinal() * 6;
+      int black = PieceColor.BLACK.ordinal() * 6;
+      for (int type = 0; type < 6; type++) {
+          for (int square = 0; square < 64; square++) {
+              MG_SCORES[white + type][square] = MG_VALUES[type] + mg[type][square];
+              EG_SCORES[white + type][square] = EG_VALUES[type] + eg[type][square];
+              MG_SCORES[black + type][square] = -(MG_VALUES[type] + mg[type][square ^ 56]);
+              EG_SCORES[black + type][square] = -(EG_VALUES[type] + eg[type][square ^ 56]);
+          }
+      }
+  }
+
+  private Evaluator() {
+  }
+
+  // Score in centipawns from the side to move's point of view.
+  public static int evaluate(ChessBoard board) {
+      int mg = board.getMiddlegameScore();
+      int eg = board.getEndgameScore();
+
+      long whitePawnAttacks = pawnAttacks(board, PieceColor.WHITE);
+      long blackPawnAttacks = pawnAttacks(board, PieceColor.BLACK);
+      int whiteMg = 0;
+      int whiteEg = 0;
+      int blackMg = 0;
+      int blackEg = 0;
+      // Mobility counts squares not held by own pieces and not covered by enemy pawns.
+      long occupied = board.getOccupied();
+      long whiteTargets = ~board.getOccupancy(PieceColor.WHITE) & ~blackPawnAttacks;
+      long blackTargets = ~board.getOccupancy(PieceColor.BLACK) & ~whitePawnAttacks;
+      long whiteKingZone = kingZone(board, PieceColor.WHITE);
+      long blackKingZone = kingZone(board, PieceColor.BLACK);
+      int whiteDanger = 0;
+      int blackDanger = 0;
+      for (int type = PieceType.KNIGHT.ordinal(); type <= PieceType.QUEEN.ordinal(); type++) {
+          for (long pieces = board.getPieces(PieceColor.WHITE, PieceType.of(type)); pieces != 0; pieces &= pieces - 1) {
+              long attacks = Bitboards.attacks(type, 0, Long.numberOfTrailingZeros(pieces), occupied);
+              int mobility = Long.bitCount(attacks & whiteTargets);
+              whiteMg += MG_MOBILITY[type] * mobility;
+              whiteEg += EG_MOBILITY[type] * mobility;
+              blackDanger += KING_ATTACK_WEIGHTS[type] * Long.bitCount(attacks & blackKingZone);
+          }
+          for (long pieces = board.getPieces(PieceColor.BLACK, PieceType.of(type)); pieces != 0; pieces &= pieces - 1) {
+              long attacks = Bitboards.attacks(type, 0, Long.numberOfTrailingZeros(pieces), occupied);
+              int mobility = Long.bitCount(attacks & blackTargets);
+              blackMg += MG_MOBILITY[type] * mobility;
+              blackEg += EG_MOBILITY[type] * mobility;
+              whiteDanger += KING_ATTACK_WEIGHTS[type] * Long.bitCount(attacks & whiteKingZone);
+          }
+      }
+      // King safety only matters while there is material left to attack with, so it is a middlegame term.
+      whiteMg += pawnShield(board, PieceColor.WHITE) - kingDanger(whiteDanger);
+      blackMg += pawnShield(board, PieceColor.BLACK) - kingDanger(blackDanger);
+      mg += whiteMg - blackMg;
+      eg += whiteEg - blackEg;
+
+      int phase = Math.min(board.getPhase(), MAX_PHASE);
+      int score = (mg * phase + eg * (MAX_PHASE - phase)) / MAX_PHASE;
+      return board.getSideToMove() == PieceColor.WHITE ? score : -score;
+  }
+
+  private static long pawnAttacks(ChessBoard board, PieceColor color) {
+      long attacks = 0L;
+      for (long pawns = board.getPieces(color, PieceType.PAWN); pawns != 0; pawns &= pawns - 1) {
+          attacks |= Bitboards.PAWN_ATTACKS[color.ordinal()][Long.numberOfTrailingZeros(pawns)];
+      }
+      return attacks;
+  }
+
+  private static long kingZone(ChessBoard board, PieceColor color) {
+      int king = board.getKingSquare(color);
+      return king < 0 ? 0L : Bitboards.KING_ATTACKS[king] | 1L << king;
+  }
+
+  // Own pawns on the three squares directly in front of the king.
+  private static int pawnShield(ChessBoard board, PieceColor color) {
+      int king = board.getKingSquare(color);
+      if (king < 0) {
+          return 0;
+      }
+      long front = Bitboards.KING_ATTACKS[king] & Bitboards.PAWN_ATTACKS[color.ordinal()][king]
+              | Bitboards.KING_ATTACKS[king] & (color == PieceColor.WHITE ? 1L << (king - 8) : 1L << (king + 8));
+      return PAWN_SHIELD_BONUS * Long.bitCount(front & board.getPieces(color, PieceType.PAWN));
+  }
+
+  // Grows with the square of the attack weight so several attackers count for more than their sum.
+  private static int kingDanger(int weight) {
+      return Math.min(weight * weight / 2, 500);
+  }
+}
+PieceCode:
+
+// Compact piece codes for the ChessBoard mailbox: NONE for an empty square, otherwise color * 6 + type + 1, which is
+// one more than the bitboard index. Type and color are read back from tables instead of through Piece's virtual calls.
+public final class PieceCode {
+  public static final int NONE = 0;
+
+  private static final int[] TYPES = new int[13];
+  private static final int[] COLORS = new int[13];
+
+  static {
+      TYPES[NONE] = -1;
+      COLORS[NONE] = -1;
+      for (int index = 0; index < 12; index++) {
+          TYPES[index + 1] = index % 6;
+          COLORS[index + 1] = index / 6;
+      }
+  }
+
+  private PieceCode() {
+  }
+
+  public static int of(PieceColor color, PieceType type) {
+      return color.ordinal() * 6 + type.ordinal() + 1;
+  }
+
+  // PieceType ordinal, or -1 for NONE.
+  public static int type(int code) {
+      return TYPES[code];
+  }
+
+  // PieceColor ordinal, or -1 for NONE.
+  public static int color(int code) {
+      return COLORS[code];
+  }
+}
+EpdRunner:
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+// Batch analysis of EPD or FEN files. Lines are read as they are needed and searched on a work-stealing
+// ForkJoinPool, each worker thread keeping its own board and search engine (with its own hash table) across
+// positions. Results are written as tab-separated lines as soon as each search finishes, so they arrive in
+// completion order and carry the input line number:
+//   line  id  best move (SAN)  depth  nodes  status
+// where status is "solved" or "failed" for positions with bm/am operations, "-" for the rest and "error: ..."
+// for lines that could not be parsed.
+public class EpdRunner {
+  private final int threads;
+  private final long millisPerPosition;
+  private final int maxDepth;
+  private final int hashMegabytes;
+  private final LongAdder analyzed = new LongAdder();
+  private final LongAdder scored = new LongAdder();
+  private final LongAdder solved = new LongAdder();
+  private final LongAdder errors = new LongAdder();
+  private final LongAdder nodes = new LongAdder();
+
+  // A parsed EPD record: the position fields plus the operations this runner understands.
+  static final class Record {
+      final String fen;
+      final String id;
+      final List<String> bestMoves = new ArrayList<>();
+      final List<String> avoidMoves = new ArrayList<>();
+
+      Record(String fen, String id) {
+          this.fen = fen;
+          this.id = id;
+      }
+  }
+
+  public EpdRunner(int threads, long millisPerPosition, int maxDepth, int hashMegabytes) {
+      this.threads = threads;
+      this.millisPerPosition = millisPerPosition;
+      this.maxDepth = maxDepth;
+      this.hashMegabytes = hashMegabytes;
+  }
+
+  public void run(Path input, Path output) throws IOException, InterruptedException {
+      ForkJoinPool pool = new ForkJoinPool(threads);
+      ThreadLocal<Worker> workers = ThreadLocal.withInitial(Worker::new);
+      // Caps positions read ahead of the searches so huge files are streamed rather than loaded.
+      Semaphore inFlight = new Semaphore(threads * 4);
+      AtomicReference<IOException> failure = new AtomicReference<>();
+      try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8);
+              BufferedWriter writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+          String line;
+          long lineNumber = 0;
+          while ((line = reader.readLine()) != null && failure.get() == null) {
+              lineNumber++;
+              if (line.isBlank() || line.startsWith("#")) {
+                  continue;
+              }
+              inFlight.acquire();
+              String text = line;
+              long number = lineNumber;
+              pool.execute(() -> {
+                  try {
+                      String result;
+                      try {
+                          result = workers.get().analyze(number, text);
+                      } catch (RuntimeException e) {
+                          // A position that parses but breaks the search (no king, say) still gets its line.
+                          errors.increment();
+                          result = errorRecord(number, e);
+                      }
+                      synchronized (writer) {
+                          writer.write(result);
+                          writer.newLine();
+                      }
+                  } catch (IOException e) {
+                      failure.compareAndSet(null, e);
+                  } finally {
+                      inFlight.release();
+                  }
+              });
+          }
+          inFlight.acquire(threads * 4);
+      } finally {
+          pool.shutdown();
+          pool.awaitTermination(1, TimeUnit.MINUTES);
+      }
+      if (failure.get() != null) {
+          throw failure.get();
+      }
+  }
+
+  public long getAnalyzed() {
+      return analyzed.sum();
+  }
+
+  public long getScored() {
+      return scored.sum();
+  }
+
+  public long getSolved() {
+      return solved.sum();
+  }
+
+  public long getErrors() {
+      return errors.sum();
+  }
+
+  public long getNodes() {
+      return nodes.sum();
+  }
+
+  // Splits an EPD line into its four position fields and its operations; a FEN line's two clock fields are kept.
+  static Record parse(String line) {
+      String[] fields = line.trim().split("\\s+", 5);
+      if (fields.length < 4) {
+          throw new IllegalArgumentException("expected at least 4 fields");
+      }
+      String fen = fields[0] + " " + fields[1] + " " + fields[2] + " " + fields[3];
+      String operations = fields.length > 4 ? fields[4] : "";
+      String[] clocks = operations.split("\\s+", 3);
+      if (clocks.length >= 2 && clocks[0].matches("\\d+") && clocks[1].matches("\\d+")) {
+          fen += " " + clocks[0] + " " + clocks[1];
+          operations = clocks.length > 2 ? clocks[2] : "";
+      }
+
+      String id = "";
+      List<String[]> parsed = new ArrayList<>();
+      for (String operation : splitOperations(operations)) {
+          String[] words = operation.trim().split("\\s+");
+          if (words[0].isEmpty()) {
+              continue;
+          }
+          if (words[0].equals("id") && words.length > 1) {
+              id = operation.trim().substring(2).trim().replace("\"", "");
+          }
+          parsed.add(words);
+      }
+      Record record = new Record(fen, id);
+      for (String[] words : parsed) {
+          List<String> target = words[0].equals("bm") ? record.bestMoves : words[0].equals("am") ? record.avoidMoves : null;
+          for (int i = 1; target != null && i < words.length; i++) {
+              target.add(words[i]);
+          }
+      }
+      return record;
+  }
+
+  private static String errorRecord(long lineNumber, RuntimeException e) {
+      return lineNumber + "\t\t\t0\t0\terror: " + (e.getMessage() != null ? e.getMessage() : e.toString());
+  }
+
+  // Operations end at ';' outside double quotes.
+  private static List<String> splitOperations(String operations) {
+      List<String> result = new ArrayList<>();
+      StringBuilder current = new StringBuilder();
+      boolean quoted = false;
+      for (int i = 0; i < operations.length(); i++) {
+          char c = operations.charAt(i);
+          if (c == '"') {
+              quoted = !quoted;
+          }
+          if (c == ';' && !quoted) {
+              result.add(current.toString());
+              current.setLength(0);
+          } else {
+              current.append(c);
+          }
+      }
+      if (current.toString().trim().length() > 0) {
+          result.add(current.toString());
+      }
+      return result;
+  }
+
+  // Per-thread scratch: a board reloaded for each position and an engine whose table persists between them.
+  private final class Worker {
+      private final ChessBoard board = new ChessBoard();
+      private final SearchEngine engine = new SearchEngine(hashMegabytes);
+
+      String analyze(long lineNumber, String line) {
+          Record record;
+          try {
+              record = parse(line);
+              Fen.load(board, record.fen);
+          } catch (RuntimeException e) {
+              errors.increment();
+              return errorRecord(lineNumber, e);
+          }
+          int move = engine.search(board, millisPerPosition, maxDepth);
+          String san = move == Move.NONE ? "-" : San.toSan(board, move);
+          String status = "-";
+          if (!record.bestMoves.isEmpty() || !record.avoidMoves.isEmpty()) {
+              boolean ok = move != Move.NONE && (record.bestMoves.isEmpty() || matches(record.bestMoves, move))
+                      && !matches(record.avoidMoves, move);
+              scored.increment();
+              if (ok) {
+                  solved.increment();
+              }
+              status = ok ? "solved" : "failed";
+          }
+          analyzed.increment();
+          nodes.add(engine.getNodes());
+          return lineNumber + "\t" + record.id + "\t" + san + "\t" + engine.getCompletedDepth() + "\t"
+                  + engine.getNodes() + "\t" + status;
+      }
+
+      // SAN in suites varies in check marks and annotations, so moves are compared after parsing.
+      private boolean matches(List<String> sans, int move) {
+          for (String san : sans) {
+              if (San.parse(board, san) == move) {
+                  return true;
+              }
+          }
+          return false;
+      }
+  }
+
+  // Usage: java EpdRunner <in.epd> <out.tsv> [millisPerPosition] [threads] [maxDepth] [hashMegabytes]
+  public static void main(String[] args) throws IOException, InterruptedException {
+      long millis = args.length > 2 ? Long.parseLong(args[2]) : 1000;
+      int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+      int maxDepth = args.length > 4 ? Integer.parseInt(args[4]) : SearchEngine.MAX_PLY;
+      int hash = args.length > 5 ? Integer.parseInt(args[5]) : 16;
+      EpdRunner runner = new EpdRunner(threads, millis, maxDepth, hash);
+      long start = System.nanoTime();
+      runner.run(Path.of(args[0]), Path.of(args[1]));
+      double seconds = (System.nanoTime() - start) / 1e9;
+      long scored = runner.getScored();
+      System.out.printf("%d positions in %.1f s: %.1f positions/s, %.0f nodes/s, %d errors%n", runner.getAnalyzed(),
+              seconds, runner.getAnalyzed() / seconds, runner.getNodes() / seconds, runner.getErrors());
+      if (scored > 0) {
+          System.out.printf("solved %d/%d (%.1f%%)%n", runner.getSolved(), scored, 100.0 * runner.getSolved() / scored);
+      }
+  }
+}
+BoardSnapshot:
+
+// Immutable view of a game's position, built by ChessGame on request. Readers on any thread can hold
+// one for as long as they like without locking the game; a newer position is a new snapshot with a higher version.
+// The position is a 36-byte CompactPosition, which a hibernating GameSession parks as-is.
+public final class BoardSnapshot {
+  private final long version;
+  private final CompactPosition position;
+  private final long hash;
+  private final int lastMove;
+  private final int ply;
+  // Derived lazily by whichever reader asks first; racing readers compute the same string.
+  private String fen;
+
+  BoardSnapshot(long version, ChessBoard board, int lastMove, int ply) {
+      this.version = version;
+      this.position = CompactPosition.of(board);
+      this.hash = board.hash();
+      this.lastMove = lastMove;
+      this.ply = ply;
+  }
+
+  // Starts at 0 and grows by one for every change to the game, including resets and FEN loads.
+  public long getVersion() {
+      return version;
+  }
+
+  public CompactPosition getPosition() {
+      return position;
+  }
+
+  // Zobrist key of the position, as ChessBoard.hash().
+  public long hash() {
+      return hash;
+  }
+
+  // Move that led to this position, or Move.NONE after a reset or load.
+  public int getLastMove() {
+      return lastMove;
+  }
+
+  // Moves played since the last reset, load or new game.
+  public int getPly() {
+      return ply;
+  }
+
+  public PieceColor getSideToMove() {
+      return position.getSideToMove();
+  }
+
+  // PieceCode of the piece on square.
+  public int codeAt(int square) {
+      return position.codeAt(square);
+  }
+
+  public String toFen() {
+      String result = fen;
+      if (result == null) {
+          result = Fen.toFen(position.toBoard());
+          fen = result;
+      }
+      return result;
+  }
+}
+Tournament:
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+// Headless engine-vs-engine matches. Games run in parallel on a ForkJoinPool; each worker thread keeps one search
+// engine per side and reuses them across games. Every opening is played twice with colors swapped. Games end on
+// mate, stalemate, threefold repetition, the fifty-move rule, insufficient material, a ply cap, or a flag fall
+// under a Fischer clock (base time plus increment per move).
+public class Tournament {
+  private static final int MAX_PLIES = 400;
+  // Expected moves left when sizing a move's share of the remaining clock.
+  private static final int MOVES_TO_GO = 30;
+
+  // One side of the match: hash size and depth limit of its engine, and its clock.
+  public static final class Player {
+      final String name;
+      final int hashMegabytes;
+      final int maxDepth;
+      final long baseMillis;
+      final long incrementMillis;
+
+      public Player(String name, int hashMegabytes, int maxDepth, long baseMillis, long incrementMillis) {
+          this.name = name;
+          this.hashMegabytes = hashMegabytes;
+          this.maxDepth = maxDepth;
+          this.baseMillis = baseMillis;
+          this.incrementMillis = incrementMillis;
+      }
+
+      // "name:hashMegabytes:maxDepth:baseMillis:incrementMillis", trailing fields optional.
+      public static Player parse(String spec, long baseMillis, long incrementMillis) {
+          String[] parts = spec.split(":");
+          return new Player(parts[0], parts.length > 1 ? Integer.parseInt(parts[1]) : 16,
+                  parts.length > 2 ? Integer.parseInt(parts[2]) : SearchEngine.MAX_PLY,
+                  parts.length > 3 ? Long.parseLong(parts[3]) : baseMillis,
+                  parts.length > 4 ? Long.parseLong(parts[4]) : incrementMillis);
+      }
+
+      @Override
+      public String toString() {
+          return name + " (" + baseMillis + "+" + incrementMillis + " ms, " + hashMegabytes + " MB)";
+      }
+  }
+
+  public enum Outcome {
+      CHECKMATE, STALEMATE, REPETITION, FIFTY_MOVES, INSUFFICIENT_MATERIAL, MOVE_LIMIT, TIME_FORFEIT
+  }
+
+  private final Player first;
+  private final Player second;
+  private final List<String> openings;
+  private final int threads;
+  private final LongAdder wins = new LongAdder();
+  private final LongAdder draws = new LongAdder();
+  private final LongAdder losses = new LongAdder();
+  private final LongAdder[] outcomes = new LongAdder[Outcome.values().length];
+  private final AtomicLong played = new AtomicLong();
+  private volatile GameArchiveWriter archive;
+  private long startNanos;
+
+  public Tournament(Player first, Player second, List<String> openings, int threads) {
+      if (openings.isEmpty()) {
+          throw new IllegalArgumentException("No openings");
+      }
+      this.first = first;
+      this.second = second;
+      this.openings = openings;
+      this.threads = threads;
+      for (int i = 0; i < outcomes.length; i++) {
+          outcomes[i] = new LongAdder();
+      }
+  }
+
+  // Finished games are appended here when set.
+  public void setArchive(GameArchiveWriter archive) {
+      this.archive = archive;
+  }
+
+  // Plays games games, alternating colors per opening, and prints a progress line every reportEvery games.
+  public void run(int games, int reportEvery) throws InterruptedException {
+      ForkJoinPool pool = new ForkJoinPool(threads);
+      ThreadLocal<SearchEngine[]> engines = ThreadLocal.withInitial(
+              () -> new SearchEngine[] { new SearchEngine(first.hashMegabytes), new SearchEngine(second.hashMegabytes) });
+      startNanos = System.nanoTime();
+      try {
+          pool.submit(() -> IntStream.range(0, games).parallel().forEach(game -> {
+              SearchEngine[] pair = engines.get();
+              // Even games give the first player White, odd games replay the same opening with colors swapped.
+              boolean firstIsWhite = (game & 1) == 0;
+              String opening = openings.get((game / 2) % openings.size());
+              double score = play(opening, firstIsWhite ? pair[0] : pair[1], firstIsWhite ? pair[1] : pair[0],
+                      firstIsWhite ? first : second, firstIsWhite ? second : first);
+              double firstScore = firstIsWhite ? score : 1 - score;
+              (firstScore == 1 ? wins : firstScore == 0 ? losses : draws).increment();
+              long done = played.incrementAndGet();
+              if (reportEvery > 0 && done % reportEvery == 0) {
+                  System.out.println(summary());
+              }
+          })).get();
+      } catch (ExecutionException e) {
+          throw new IllegalStateException("Tournament game failed", e.getCause());
+      } finally {
+          pool.shutdown();
+      }
+  }
+
+  // Plays one game and returns White's score.
+  private double play(String opening, SearchEngine white, SearchEngine black, Player whitePlayer, Player blackPlayer) {
+      ChessGame game = new ChessGame(opening);
+      white.newGame();
+      black.newGame();
+      long[] clocks = { blackPlayer.baseMillis, whitePlayer.baseMillis }; // indexed by PieceColor.ordinal()
+      double whiteScore = 0.5;
+      Outcome outcome = null;
+      for (int ply = 0; outcome == null; ply++) {
+          PieceColor side = game.getCurrentPlayerColor();
+          if (game.isCheckmate(side)) {
+              outcome = Outcome.CHECKMATE;
+              whiteScore = side == PieceColor.WHITE ? 0 : 1;
+          } else if (game.isStalemate(side)) {
+              outcome = Outcome.STALEMATE;
+          } else if (game.isThreefoldRepetition()) {
+              outcome = Outcome.REPETITION;
+          } else if (game.isFiftyMoveDraw()) {
+              outcome = Outcome.FIFTY_MOVES;
+          } else if (game.isInsufficientMaterial()) {
+              outcome = Outcome.INSUFFICIENT_MATERIAL;
+          } else if (ply >= MAX_PLIES) {
+              outcome = Outcome.MOVE_LIMIT;
+          } else {
+              Player player = side == PieceColor.WHITE ? whitePlayer : blackPlayer;
+              SearchEngine engine = side == PieceColor.WHITE ? white : black;
+              long clock = clocks[side.ordinal()];
+              long budget = Math.max(1, Math.min(clock / MOVES_TO_GO + player.incrementMillis * 3 / 4, clock / 2));
+              long start = System.nanoTime();
+              int move = engine.search(game.getBoard(), budget, player.maxDepth);
+              clock -= (System.nanoTime() - start) / 1_000_000;
+              if (clock < 0) {
+                  outcome = Outcome.TIME_FORFEIT;
+                  // A flag fall only loses if the opponent could still mate.
+                  whiteScore = !hasMatingMaterial(game.getBoard(), side.opposite()) ? 0.5
+                          : side == PieceColor.WHITE ? 0 : 1;
+              } else {
+                  clocks[side.ordinal()] = clock + player.incrementMillis;
+                  game.makeMove(move);
+              }
+          }
+      }
+      outcomes[outcome.ordinal()].increment();
+      GameArchiveWriter writer = archive;
+      if (writer != null) {
+          try {
+              writer.append(game.getStartFen(), game.getMoveHistory(),
+                      whiteScore == 1 ? "1-0" : whiteScore == 0 ? "0-1" : "1/2-1/2");
+          } catch (IOException e) {
+              throw new UncheckedIOException(e);
+          }
+      }
+      return whiteScore;
+  }
+
+  // Whether color has more than a lone king or a king and one minor piece. Only color's own men count: a flag fall
+  // against a lone king is a draw however much material the flagging side still has.
+  static boolean hasMatingMaterial(ChessBoard board, PieceColor color) {
+      if ((board.getPieces(color, PieceType.PAWN) | board.getPieces(color, PieceType.ROOK)
+              | board.getPieces(color, PieceType.QUEEN)) != 0) {
+          return true;
+      }
+      return Long.bitCount(board.getPieces(color, PieceType.BISHOP) | board.getPieces(color, PieceType.KNIGHT)) > 1;
+  }
+
+  public long getWins() {
+      return wins.sum();
+  }
+
+  public long getDraws() {
+      return draws.sum();
+  }
+
+  public long getLosses() {
+      return losses.sum();
+  }
+
+  public long getOutcomeCount(Outcome outcome) {
+      return outcomes[outcome.ordinal()].sum();
+  }
+
+  // Elo difference of the first player over the second with the half-width of its 95% confidence interval,
+  // from the per-game score variance. The difference is NaN while one side has scored every point.
+  public double[] eloDifference() {
+      double w = wins.sum();
+      double d = draws.sum();
+      double l = losses.sum();
+      double n = w + d + l;
+      if (n == 0) {
+          return new double[] { Double.NaN, Double.NaN };
+      }
+      double score = (w + d / 2) / n;
+      double variance = (w * Math.pow(1 - score, 2) + d * Math.pow(0.5 - score, 2) + l * Math.pow(score, 2)) / n;
+      double margin = 1.96 * Math.sqrt(variance / n);
+      // Bounds are kept half a game inside 0% and 100%, where the Elo curve goes to infinity.
+      double limit = 0.5 / n;
+      double low = elo(Math.max(score - margin, limit));
+      double high = elo(Math.min(score + margin, 1 - limit));
+      return new double[] { elo(score), (high - low) / 2 };
+  }
+
+  private static double elo(double score) {
+      if (score <= 0 || score >= 1) {
+          return Double.NaN;
+      }
+      return -400 * Math.log10(1 / score - 1);
+  }
+
+  public String summary() {
+      double[] elo = eloDifference();
+      double hours = (System.nanoTime() - startNanos) / 3.6e12;
+      long games = wins.sum() + draws.sum() + losses.sum();
+      StringBuilder out = new StringBuilder(String.format("%d games: +%d =%d -%d, Elo %+.1f +/- %.1f, %.0f games/hour",
+              games, wins.sum(), draws.sum(), losses.sum(), elo[0], elo[1], games / Math.max(hours, 1e-9)));
+      String separator = " [";
+      for (Outcome outcome : Outcome.values()) {
+          long count = outcomes[outcome.ordinal()].sum();
+          if (count > 0) {
+              out.append(separator).append(outcome.name().toLowerCase()).append(' ').append(count);
+              separator = ", ";
+          }
+      }
+      return separator.equals(", ") ? out.append(']').toString() : out.toString();
+  }
+
+  // One position per line, as FEN or EPD (operations ignored).
+  public static List<String> loadOpenings(Path file) throws IOException {
+      List<String> openings = new ArrayList<>();
+      for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+          if (!line.isBlank() && !line.startsWith("#")) {
+              openings.add(EpdRunner.parse(line).fen);
+          }
+      }
+      return openings;
+  }
+
+  // Distinct openings of random legal moves from the start position, reproducible from the seed.
+  public static List<String> randomOpenings(int count, int plies, long seed) {
+      Random random = new Random(seed);
+      Set<String> openings = new LinkedHashSet<>();
+      MoveList moves = new MoveList();
+      for (int attempt = 0; openings.size() < count && attempt < count * 10; attempt++) {
+          ChessBoard board = new ChessBoard();
+          for (int ply = 0; ply < plies; ply++) {
+              MoveGenerator.generateLegalMoves(board, board.getSideToMove(), moves);
+              if (moves.size() == 0) {
+                  break;
+              }
+              board.makeMove(moves.get(random.nextInt(moves.size())));
+          }
+          openings.add(Fen.toFen(board));
+      }
+      return new ArrayList<>(openings);
+  }
+
+  // Usage: java Tournament <games> <baseMillis> <incrementMillis> [threads] [openings.epd|-] [first] [second]
+  //        [archive prefix]
+  // Players are "name:hashMegabytes:maxDepth[:baseMillis:incrementMillis]"; the default openings are random
+  // 8-ply lines.
+  public static void main(String[] args) throws IOException, InterruptedException {
+      int games = Integer.parseInt(args[0]);
+      long base = Long.parseLong(args[1]);
+      long increment = Long.parseLong(args[2]);
+      int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+      List<String> openings = args.length > 4 && !args[4].equals("-") ? loadOpenings(Path.of(args[4]))
+              : randomOpenings(Math.max(1, games / 2), 8, 1);
+      Player first = Player.parse(args.length > 5 ? args[5] : "first", base, increment);
+      Player second = Player.parse(args.length > 6 ? args[6] : "second", base, increment);
+      Tournament tournament = new Tournament(first, second, openings, threads);
+      System.out.println(first + " vs " + second + ", " + openings.size() + " openings, " + threads + " threads");
+      GameArchiveWriter archive = null;
+      if (args.length > 7) {
+          archive = new GameArchiveWriter(Path.of(args[7] + ".cga"), Path.of(args[7] + ".cgi"));
+          tournament.setArchive(archive);
+      }
+      try {
+          tournament.run(games, Math.max(1, games / 20));
+      } finally {
+          if (archive != null) {
+              archive.close();
+          }
+      }
+      System.out.println(tournament.summary());
+  }
+}
+UciEngine:
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Headless UCI engine over stdin/stdout. The input loop only parses commands; searches run on their own thread
+// against a copy of the game's board, so "stop", "ponderhit" and "isready" are answered while thinking.
+// "position" commands that extend the previous one only replay the new moves.
+public class UciEngine {
+  private static final int DEFAULT_HASH_MEGABYTES = 16;
+  private static final long DEFAULT_MOVE_OVERHEAD = 30;
+  // Expected moves left when the GUI does not send movestogo.
+  private static final int MOVES_TO_GO = 30;
+  // wtime/btime not sent; a clock that was sent may be zero or negative near flag-fall.
+  static final long NO_CLOCK = Long.MIN_VALUE;
+
+  private final PrintStream out;
+  private final ExecutorService searchThread = Executors.newSingleThreadExecutor(daemon("uci-search"));
+  private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(daemon("uci-timer"));
+  private final ChessGame game = new ChessGame();
+  private final MoveList legal = new MoveList();
+  private SearchEngine engine = new SearchEngine(DEFAULT_HASH_MEGABYTES);
+  private long moveOverhead = DEFAULT_MOVE_OVERHEAD;
+  // The position command last applied, so the next one can continue from it.
+  private String positionBase = "";
+  private final List<String> positionMoves = new ArrayList<>();
+
+  private Future<?> search;
+  // Infinite and ponder searches hold their bestmove until this is released by stop or ponderhit.
+  private CountDownLatch release;
+  private ScheduledFuture<?> deadline;
+  private long ponderBudget;
+
+  public UciEngine(PrintStream out) {
+      this.out = out;
+  }
+
+  private static java.util.concurrent.ThreadFactory daemon(String name) {
+      return runnable -> {
+          Thread thread = new Thread(runnable, name);
+          thread.setDaemon(true);
+          return thread;
+      };
+  }
+
+  private void send(String line) {
+      synchronized (out) {
+          out.println(line);
+          out.flush();
+      }
+  }
+
+  public void run(BufferedReader in) throws IOException {
+      for (String line; (line = in.readLine()) != null;) {
+          if (!handle(line.trim())) {
+              break;
+          }
+      }
+      stopSearch();
+  }
+
+  // Returns false on quit.
+  boolean handle(String line) {
+      String[] words = line.split("\\s+");
+      switch (words[0]) {
+          case "uci":
+              send("id name JavaChess");
+              send("id author JAVA-CHESS-GAME contributors");
+              send("option name Hash type spin default " + DEFAULT_HASH_MEGABYTES + " min 1 max 4096");
+              send("option name Move Overhead type spin default " + DEFAULT_MOVE_OVERHEAD + " min 0 max 5000");
+              send("uciok");
+              break;
+          case "isready":
+              send("readyok");
+              break;
+          case "setoption":
+              setOption(line);
+              break;
+          case "ucinewgame":
+              stopSearch();
+              engine.newGame();
+              game.resetGame();
+              positionBase = "";
+              positionMoves.clear();
+              break;
+          case "position":
+              stopSearch();
+              setPosition(words);
+              break;
+          case "go":
+              stopSearch();
+              go(words);
+              break;
+          case "stop":
+              stopSearch();
+              break;
+          case "ponderhit":
+              ponderHit();
+              break;
+          case "quit":
+              return false;
+          default:
+              break;
+      }
+      return true;
+  }
+
+  private void setOption(String line) {
+      int name = line.indexOf(" name ");
+      int value = line.indexOf(" value ");
+      if (name < 0 || value < name) {
+          return;
+      }
+      String option = line.substring(name + 6, value).trim();
+      String setting = line.substring(value + 7).trim();
+      try {
+          if (option.equalsIgnoreCase("Hash")) {
+              stopSearch();
+              engine = new SearchEngine(Math.max(1, Integer.parseInt(setting)));
+          } else if (option.equalsIgnoreCase("Move Overhead")) {
+              moveOverhead = Math.max(0, Long.parseLong(setting));
+          }
+      } catch (NumberFormatException e) {
+          send("info string bad value for " + option + ": " + setting);
+      }
+  }
+
+  // position [startpos | fen <6 fields>] [moves <uci>...]
+  private void setPosition(String[] words) {
+      int index = 1;
+      String base;
+      if (words.length > 1 && words[1].equals("fen")) {
+          StringBuilder fen = new StringBuilder();
+          for (index = 2; index < words.length && !words[index].equals("moves"); index++) {
+              fen.append(index > 2 ? " " : "").append(words[index]);
+          }
+          base = fen.toString();
+      } else {
+          base = Fen.START_POSITION;
+          index = 2;
+      }
+      List<String> moves = new ArrayList<>();
+      if (index < words.length && words[index].equals("moves")) {
+          for (index++; index < words.length; index++) {
+              moves.add(words[index]);
+          }
+      }
+
+      int replayFrom = 0;
+      if (base.equals(positionBase) && moves.size() >= positionMoves.size()
+              && moves.subList(0, positionMoves.size()).equals(positionMoves)) {
+          replayFrom = positionMoves.size();
+      } else {
+          try {
+              game.loadFen(base);
+          } catch (RuntimeException e) {
+              send("info string invalid fen: " + base);
+              positionBase = "";
+              positionMoves.clear();
+              return;
+          }
+          positionBase = base;
+          positionMoves.clear();
+      }
+      for (int i = replayFrom; i < moves.size(); i++) {
+          if (!game.makeMove(parseMove(moves.get(i)))) {
+              send("info string illegal move: " + moves.get(i));
+              return;
+          }
+          positionMoves.add(moves.get(i));
+      }
+  }
+
+  private int parseMove(String uci) {
+      ChessBoard board = game.getBoard();
+      MoveGenerator.generateLegalMoves(board, board.getSideToMove(), legal);
+      for (int i = 0; i < legal.size(); i++) {
+          if (Move.toString(legal.get(i)).equals(uci)) {
+              return legal.get(i);
+          }
+      }
+      return Move.NONE;
+  }
+
+  private void go(String[] words) {
+      long wtime = NO_CLOCK;
+      long btime = NO_CLOCK;
+      long winc = 0;
+      long binc = 0;
+      long movetime = -1;
+      int movestogo = 0;
+      int depth = SearchEngine.MAX_PLY;
+      boolean infinite = false;
+      boolean ponder = false;
+      for (int i = 1; i < words.length; i++) {
+          String value = i + 1 < words.length ? words[i + 1] : "0";
+          try {
+              switch (words[i]) {
+                  case "wtime":
+                      wtime = Long.parseLong(value);
+                      break;
+                  case "btime":
+                      btime = Long.parseLong(value);
+                      break;
+                  case "winc":
+                      winc = Long.parseLong(value);
+                      break;
+                  case "binc":
+                      binc = Long.parseLong(value);
+                      break;
+                  case "movetime":
+                      movetime = Long.parseLong(value);
+                      break;
+                  case "movestogo":
+                      movestogo = Integer.parseInt(value);
+                      break;
+                  case "depth":
+                      depth = Math.max(1, Integer.parseInt(value));
+                      break;
+                  case "infinite":
+                      infinite = true;
+                      break;
+                  case "ponder":
+                      ponder = true;
+                      break;
+                  default:
+                      break;
+              }
+          } catch (NumberFormatException e) {
+              send("info string invalid value for " + words[i] + ": " + value);
+          }
+      }
+
+      boolean white = game.getCurrentPlayerColor() == PieceColor.WHITE;
+      long budget = budget(white ? wtime : btime, white ? winc : binc, movestogo, movetime);
+      ponderBudget = budget;
+      if (infinite || ponder) {
+          budget = TimeManager.INFINITE;
+      }
+      CountDownLatch hold = new CountDownLatch(infinite || ponder ? 1 : 0);
+      release = hold;
+      ChessBoard board = new ChessBoard(game.getBoard());
+      SearchEngine searcher = engine;
+      long searchBudget = budget;
+      int maxDepth = depth;
+      search = searchThread.submit(() -> think(searcher, board, searchBudget, maxDepth, hold));
+  }
+
+  // Milliseconds for this move: the fixed movetime, or a share of the clock plus most of the increment, always
+  // leaving the move overhead and half the clock in reserve; a clock at or below zero still gets the 1 ms minimum.
+  // No clock (NO_CLOCK) and no movetime means depth-limited only.
+  long budget(long time, long increment, int movesToGo, long moveTime) {
+      if (moveTime >= 0) {
+          return Math.max(1, moveTime - moveOverhead);
+      }
+      if (time == NO_CLOCK) {
+          return TimeManager.INFINITE;
+      }
+      long share = time / (movesToGo > 0 ? movesToGo : MOVES_TO_GO) + increment * 3 / 4;
+      return Math.max(1, Math.min(share, time / 2) - moveOverhead);
+  }
+
+  // Always ends with a bestmove: if the search fails, the first legal move found before it started is sent.
+  private void think(SearchEngine searcher, ChessBoard board, long budget, int depth, CountDownLatch hold) {
+      MoveList moves = new MoveList();
+      MoveGenerator.generateLegalMoves(board, board.getSideToMove(), moves);
+      int move = moves.size() > 0 ? moves.get(0) : Move.NONE;
+      try {
+          long start = System.nanoTime();
+          int found = searcher.search(board, budget, depth);
+          if (found != Move.NONE) {
+              move = found;
+          }
+          long millis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+          send("info depth " + searcher.getCompletedDepth() + " score " + score(searcher.getCompletedScore())
+                  + " nodes " + searcher.getNodes() + " nps " + searcher.getNodes() * 1000 / millis + " time " + millis
+                  + (move != Move.NONE ? " pv " + Move.toString(move) : ""));
+      } catch (RuntimeException e) {
+          send("info string search failed: " + e);
+      } finally {
+          try {
+              hold.await();
+          } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+          }
+          send("bestmove " + (move != Move.NONE ? Move.toString(move) : "0000"));
+      }
+  }
+
+  private static String score(int score) {
+      if (score > SearchEngine.MATE - SearchEngine.MAX_PLY) {
+          return "mate " + (SearchEngine.MATE - score + 1) / 2;
+      }
+      if (score < -SearchEngine.MATE + SearchEngine.MAX_PLY) {
+          return "mate -" + (SearchEngine.MATE + score) / 2;
+      }
+      return "cp " + score;
+  }
+
+  // The move the engine pondered on was played: keep searching, now under the budget computed at "go".
+  private void ponderHit() {
+      if (search == null || search.isDone()) {
+          return;
+      }
+      SearchEngine searcher = engine;
+      deadline = timer.schedule(searcher::stop, ponderBudget, TimeUnit.MILLISECONDS);
+      release.countDown();
+  }
+
+  // Ends any running search and waits for its bestmove. Only called once a stop is wanted; a stop can land before
+  // the search thread has reset the engine's stop flag, so it is repeated until the search has actually finished.
+  private void stopSearch() {
+      if (search == null) {
+          return;
+      }
+      release.countDown();
+      engine.stop();
+      while (true) {
+          try {
+              search.get(1, TimeUnit.MILLISECONDS);
+              break;
+          } catch (TimeoutException e) {
+              engine.stop();
+          } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              break;
+          } catch (ExecutionException e) {
+              send("info string search failed: " + e.getCause());
+              break;
+          }
+      }
+      if (deadline != null) {
+          deadline.cancel(false);
+          deadline = null;
+      }
+      search = null;
+  }
+
+  public static void main(String[] args) throws IOException {
+      UciEngine uci = new UciEngine(System.out);
+      uci.run(new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)));
+  }
+}
+MovePicker:
+
+// Hands out the moves of one node in stages, generating each stage only once the previous one is exhausted: the
+// hash move, then captures and promotions by most valuable victim and least valuable attacker, then the two killer
+// moves, then the remaining quiet moves by history score. A cutoff on the hash move or a capture never generates
+// the quiet moves at all. Moves are pseudo-legal; the caller still rejects those that leave its king in check.
+public final class MovePicker {
+  private static final int HASH = 0;
+  private static final int GENERATE_CAPTURES = 1;
+  private static final int CAPTURES = 2;
+  private static final int FIRST_KILLER = 3;
+  private static final int SECOND_KILLER = 4;
+  private static final int GENERATE_QUIETS = 5;
+  private static final int QUIETS = 6;
+  private static final int DONE = 7;
+
+  private static final int[] PIECE_VALUES = { 100, 320, 330, 500, 900, 0 };
+
+  private final MoveList moves = new MoveList();
+  private final MoveList scratch = new MoveList();
+  private final int[] scores = new int[MoveList.CAPACITY];
+  private ChessBoard board;
+  private int[][] history;
+  private int hashMove;
+  private int firstKiller;
+  private int secondKiller;
+  private boolean capturesOnly;
+  private int stage;
+  private int index;
+
+  // Every move of the side to move; history is indexed [piece code][to square].
+  public void reset(ChessBoard board, int hashMove, int firstKiller, int secondKiller, int[][] history) {
+      this.board = board;
+      this.hashMove = hashMove;
+      this.firstKiller = firstKiller;
+      this.secondKiller = secondKiller;
+      this.history = history;
+      this.capturesOnly = false;
+      this.stage = HASH;
+  }
+
+  // Captures and promotions only, for the quiescence search.
+  public void resetCaptures(ChessBoard board) {
+      this.board = board;
+      this.hashMove = Move.NONE;
+      this.firstKiller = Move.NONE;
+      this.secondKiller = Move.NONE;
+      this.history = null;
+      this.capturesOnly = true;
+      this.stage = GENERATE_CAPTURES;
+  }
+
+  // The next move to try, or Move.NONE when every stage is exhausted.
+  public int next() {
+      while (true) {
+          switch (stage) {
+              case HASH:
+                  stage = GENERATE_CAPTURES;
+                  // The table move may come from a colliding position, so it is only played if it fits this one.
+                  if (MoveGenerator.isPseudoLegalMove(board, hashMove, scratch)) {
+                      return hashMove;
+                  }
+                  break;
+              case GENERATE_CAPTURES:
+                  moves.clear();
+                  MoveGenerator.generateCaptures(board, board.getSideToMove(), moves);
+                  for (int i = 0; i < moves.size(); i++) {
+                      scores[i] = captureScore(moves.get(i));
+                  }
+                  index = 0;
+                  stage = CAPTURES;
+                  break;
+              case CAPTURES:
+                  while (index < moves.size()) {
+                      int move = pickBest();
+                      if (move != hashMove) {
+                          return move;
+                      }
+                  }
+                  stage = capturesOnly ? DONE : FIRST_KILLER;
+                  break;
+              case FIRST_KILLER:
+                  stage = SECOND_KILLER;
+                  if (firstKiller != hashMove && MoveGenerator.isPseudoLegalMove(board, firstKiller, scratch)) {
+                      return firstKiller;
+                  }
+                  break;
+              case SECOND_KILLER:
+                  stage = GENERATE_QUIETS;
+                  if (secondKiller != hashMove && secondKiller != firstKiller
+                          && MoveGenerator.isPseudoLegalMove(board, secondKiller, scratch)) {
+                      return secondKiller;
+                  }
+                  break;
+              case GENERATE_QUIETS:
+                  moves.clear();
+                  MoveGenerator.generateQuiets(board, board.getSideToMove(), moves);
+                  for (int i = 0; i < moves.size(); i++) {
+                      int move = moves.get(i);
+                      scores[i] = history[board.codeAt(Move.from(move))][Move.to(move)];
+                  }
+                  index = 0;
+                  stage = QUIETS;
+                  break;
+              case QUIETS:
+                  while (index < moves.size()) {
+                      int move = pickBest();
+                      if (move != hashMove && move != firstKiller && move != secondKiller) {
+                          return move;
+                      }
+                  }
+                  stage = DONE;
+                  break;
+              default:
+                  return Move.NONE;
+          }
+      }
+  }
+
+  // Selection step: swaps the best-scored remaining move to the front, so a cutoff leaves the rest unsorted.
+  private int pickBest() {
+      int best = index;
+      for (int i = index + 1; i < moves.size(); i++) {
+          if (scores[i] > scores[best]) {
+              best = i;
+          }
+      }
+      int move = moves.get(best);
+      moves.set(best, moves.get(index));
+      moves.set(index, move);
+      scores[best] = scores[index];
+      index++;
+      return move;
+  }
+
+  private int captureScore(int move) {
+      int victim = Move.hasFlag(move, Move.EN_PASSANT) || !Move.isCapture(move) ? PieceType.PAWN.ordinal()
+              : PieceCode.type(board.codeAt(Move.to(move)));
+      int attacker = PieceCode.type(board.codeAt(Move.from(move)));
+      return PIECE_VALUES[victim] * 8 + PIECE_VALUES[Move.promotion(move)] - attacker;
+  }
+}
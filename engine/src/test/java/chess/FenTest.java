@@ -0,0 +1,51 @@
+package chess;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class FenTest {
+  @ParameterizedTest
+  @ValueSource(strings = {
+          Fen.START_POSITION,
+          "r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1",
+          "rnbqkbnr/ppp1p1pp/8/3pPp2/8/8/PPPP1PPP/RNBQKBNR w KQkq f6 0 3",
+          "8/8/4k3/8/2P5/8/4K3/8 b - - 12 40" })
+  void roundTrip(String fen) {
+      assertEquals(fen, Fen.toFen(Fen.parse(fen)));
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {
+          "8/8/8/8/8/8/8/8 w - - 0 1",
+          "8/8/4k3/8/8/8/8/8 w - - 0 1",
+          "8/8/4k3/8/8/8/4K3/4K3 w - - 0 1",
+          "4k3/4k3/8/8/8/8/4K3/8 b - - 0 1" })
+  void requiresOneKingPerSide(String fen) {
+      assertThrows(IllegalArgumentException.class, () -> Fen.parse(fen));
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = { "", "e", "e44", "i4", "e9", "E4" })
+  void rejectsBadSquareNames(String name) {
+      assertThrows(IllegalArgumentException.class, () -> Fen.parseSquare(name));
+  }
+
+  @Test
+  void squareNames() {
+      assertEquals(0, Fen.parseSquare("a8"));
+      assertEquals(63, Fen.parseSquare("h1"));
+      for (int square = 0; square < 64; square++) {
+          assertEquals(square, Fen.parseSquare(Fen.squareName(square)));
+      }
+  }
+
+  @Test
+  void rejectsBadEnPassantSquare() {
+      assertThrows(IllegalArgumentException.class,
+              () -> Fen.parse("rnbqkbnr/pppppppp/8/8/4P3/8/PPPP1PPP/RNBQKBNR b KQkq e33 0 1"));
+  }
+}
@@ -0,0 +1,113 @@
+package chess;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class GameArchiveTest {
+  private static final String ENDGAME = "8/8/4k3/8/2P5/8/4K3/8 w - - 0 40";
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void roundTrip() throws IOException {
+      Path data = directory.resolve("games.cga");
+      Path index = directory.resolve("games.cgi");
+      int[] ruyLopez = play(Fen.START_POSITION, "e2e4 e7e5 g1f3 b8c6 f1b5 a7a6 e1g1");
+      int[] promotion = play(ENDGAME, "c4c5 e6d5 c5c6 d5d6 c6c7 d6d7 c7c8q");
+      try (GameArchiveWriter writer = new GameArchiveWriter(data, index)) {
+          writer.append(Fen.START_POSITION, ruyLopez, "*");
+          writer.append(ENDGAME, promotion, "1-0");
+      }
+      // Reopening appends after the stored games.
+      try (GameArchiveWriter writer = new GameArchiveWriter(data, index)) {
+          writer.append(Fen.START_POSITION, new int[0], "1/2-1/2");
+      }
+
+      try (GameArchiveReader reader = new GameArchiveReader(data, index)) {
+          assertEquals(3, reader.size());
+          assertArrayEquals(ruyLopez, reader.getMoves(0));
+          assertArrayEquals(promotion, reader.getMoves(1));
+          assertEquals(0, reader.getMoveCount(2));
+          assertEquals("*", reader.getResult(0));
+          assertEquals("1-0", reader.getResult(1));
+          assertEquals("1/2-1/2", reader.getResult(2));
+          assertEquals(Fen.toFen(replay(ENDGAME, promotion)), Fen.toFen(reader.replay(1)));
+
+          ChessBoard board = new ChessBoard();
+          reader.replay(1, board, 0);
+          assertEquals(ENDGAME, Fen.toFen(board));
+      }
+  }
+
+  // A game that ended in mate or a draw is stored with that result rather than "*".
+  @Test
+  void finishedGamesKeepTheirResult() throws IOException {
+      ChessGame mate = new ChessGame();
+      for (int move : play(Fen.START_POSITION, "f2f3 e7e5 g2g4 d8h4")) {
+          mate.makeMove(move);
+      }
+      ChessGame draw = new ChessGame("8/8/4k3/8/8/8/4K3/8 w - - 0 1");
+      Path data = directory.resolve("finished.cga");
+      Path index = directory.resolve("finished.cgi");
+      try (GameArchiveWriter writer = new GameArchiveWriter(data, index)) {
+          writer.append(mate);
+          writer.append(draw);
+      }
+      try (GameArchiveReader reader = new GameArchiveReader(data, index)) {
+          assertEquals("0-1", reader.getResult(0));
+          assertEquals("1/2-1/2", reader.getResult(1));
+      }
+  }
+
+  @Test
+  void illegalMoveIsRejected() throws IOException {
+      try (GameArchiveWriter writer = new GameArchiveWriter(directory.resolve("a.cga"), directory.resolve("a.cgi"))) {
+          int[] moves = { Move.of(Fen.parseSquare("e2"), Fen.parseSquare("e5")) };
+          assertThrows(IllegalArgumentException.class, () -> writer.append(Fen.START_POSITION, moves, "*"));
+      }
+  }
+
+  @Test
+  void foreignFilesAreRefused() throws IOException {
+      Path data = directory.resolve("foreign.cga");
+      Path index = directory.resolve("foreign.cgi");
+      Files.writeString(data, "not an archive");
+      Files.writeString(index, "nor an index");
+      assertThrows(IOException.class, () -> new GameArchiveWriter(data, index));
+  }
+
+  private static int[] play(String fen, String moves) {
+      ChessBoard board = Fen.parse(fen);
+      String[] words = moves.split(" ");
+      int[] packed = new int[words.length];
+      MoveList legal = new MoveList();
+      for (int ply = 0; ply < words.length; ply++) {
+          MoveGenerator.generateLegalMoves(board, board.getSideToMove(), legal);
+          for (int i = 0; i < legal.size(); i++) {
+              if (Move.toString(legal.get(i)).equals(words[ply])) {
+                  packed[ply] = legal.get(i);
+              }
+          }
+          assertNotEquals(Move.NONE, packed[ply], words[ply]);
+          board.makeMove(packed[ply]);
+      }
+      return packed;
+  }
+
+  private static ChessBoard replay(String fen, int[] moves) {
+      ChessBoard board = Fen.parse(fen);
+      for (int move : moves) {
+          board.makeMove(move);
+      }
+      return board;
+  }
+}
@@ -0,0 +1,62 @@
+package chess;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+// Protocol commands through execute, without opening the socket.
+@Timeout(30)
+class GameServerTest {
+  private final GameServer server = new GameServer(0);
+
+  @AfterEach
+  void stop() throws IOException {
+      server.stop();
+  }
+
+  @Test
+  void playsMoves() {
+      String id = newGame();
+      assertEquals("OK BLACK PLAYING", execute("MOVE " + id + " e2e4"));
+      assertEquals("ERR illegal move e7e4", execute("MOVE " + id + " e7e4"));
+      assertEquals("OK g8f6 g8h6", execute("MOVES " + id + " g8"));
+      assertEquals("ERR usage: MOVE <id> <from><to>[promotion]", execute("MOVE " + id + " e7e5x"));
+  }
+
+  // A hibernated game keeps its position and wakes up on its next command.
+  @Test
+  void hibernateParksGame() {
+      String id = newGame();
+      execute("MOVE " + id + " e2e4");
+      String watched = execute("WATCH " + id);
+      assertEquals("OK", execute("HIBERNATE " + id));
+      GameSession session = server.getRegistry().get(Long.parseLong(id));
+      assertTrue(session.isHibernated());
+      assertEquals(watched, execute("WATCH " + id));
+      assertEquals("OK WHITE PLAYING", execute("MOVE " + id + " e7e5"));
+      assertFalse(session.isHibernated());
+      assertEquals("ERR no game 999", execute("HIBERNATE 999"));
+  }
+
+  @Test
+  void closedGameIsGone() {
+      String id = newGame();
+      assertEquals("OK", execute("CLOSE " + id));
+      assertEquals("ERR no game " + id, execute("STATE " + id));
+  }
+
+  private String newGame() {
+      String reply = execute("NEW");
+      assertTrue(reply.startsWith("OK "), reply);
+      return reply.substring(3);
+  }
+
+  private String execute(String line) {
+      return server.execute(line.split(" "));
+  }
+}
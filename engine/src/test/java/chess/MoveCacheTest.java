@@ -0,0 +1,91 @@
+package chess;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class MoveCacheTest {
+  private static final List<Position> MOVES = List.of(new Position(5, 4), new Position(4, 4));
+
+  @Test
+  void missThenHit() {
+      MoveCache cache = new MoveCache(64);
+      assertNull(cache.get(42, 12));
+      List<Position> cached = cache.put(42, 12, MOVES);
+      assertSame(cached, cache.get(42, 12));
+      assertEquals(MOVES, cached);
+      assertEquals(1, cache.getHits());
+      assertEquals(1, cache.getMisses());
+  }
+
+  // Entries that only agree on the hash or only on the square are different keys.
+  @Test
+  void keyIncludesHashAndSquare() {
+      MoveCache cache = new MoveCache(64);
+      cache.put(42, 12, MOVES);
+      assertNull(cache.get(42, 13));
+      assertNull(cache.get(43, 12));
+  }
+
+  @Test
+  void cachedListsAreUnmodifiable() {
+      MoveCache cache = new MoveCache(64);
+      List<Position> cached = cache.put(1, 1, new ArrayList<>(MOVES));
+      assertThrows(UnsupportedOperationException.class, () -> cached.add(new Position(0, 0)));
+  }
+
+  @Test
+  void capacityIsRoundedUpToPowerOfTwo() {
+      assertEquals(8, new MoveCache(1).capacity());
+      assertEquals(64, new MoveCache(50).capacity());
+      assertEquals(64, new MoveCache(64).capacity());
+      assertThrows(IllegalArgumentException.class, () -> new MoveCache(0));
+  }
+
+  // With eight slots the probe window covers the whole table, so every put after the eighth evicts. The clock
+  // passes over an entry read since the last sweep and evicts one that was not.
+  @Test
+  void clockSparesReferencedEntry() {
+      MoveCache cache = new MoveCache(8);
+      for (int key = 0; key < 8; key++) {
+          cache.put(key, key, MOVES);
+      }
+      assertEquals(8, cache.size());
+      for (int key = 0; key < 8; key++) {
+          assertNotNull(cache.get(key, key));
+      }
+      // Every entry is referenced: the first turn clears them all and the second evicts one.
+      cache.put(100, 0, MOVES);
+      assertEquals(1, cache.getEvictions());
+      assertNotNull(cache.get(100, 0));
+
+      int survivor = -1;
+      for (int key = 0; key < 8 && survivor < 0; key++) {
+          if (cache.get(key, key) != null) {
+              survivor = key;
+          }
+      }
+      // Only the survivor and the new entry are referenced now; the next put must evict neither.
+      cache.put(101, 0, MOVES);
+      assertEquals(2, cache.getEvictions());
+      assertNotNull(cache.get(survivor, survivor));
+      assertNotNull(cache.get(100, 0));
+      assertNotNull(cache.get(101, 0));
+      assertEquals(8, cache.size());
+  }
+
+  @Test
+  void clearEmptiesTable() {
+      MoveCache cache = new MoveCache(16);
+      cache.put(7, 7, MOVES);
+      cache.clear();
+      assertEquals(0, cache.size());
+      assertNull(cache.get(7, 7));
+  }
+}
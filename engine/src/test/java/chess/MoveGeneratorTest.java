@@ -0,0 +1,56 @@
+package chess;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class MoveGeneratorTest {
+  private final MoveList all = new MoveList();
+  private final MoveList piece = new MoveList();
+
+  // Single-square generation must give exactly the moves of the full legal generator that start on that square,
+  // for both sides, along random games from every perft position (checks, pins and en passant included).
+  @Test
+  void pieceMovesMatchFullGeneration() {
+      Random random = new Random(7);
+      for (String fen : Perft.POSITIONS) {
+          for (int game = 0; game < 20; game++) {
+              ChessBoard board = Fen.parse(fen);
+              for (int ply = 0; ply < 80; ply++) {
+                  comparePieceMoves(board, PieceColor.WHITE);
+                  comparePieceMoves(board, PieceColor.BLACK);
+                  MoveGenerator.generateLegalMoves(board, board.getSideToMove(), all);
+                  if (all.size() == 0) {
+                      break;
+                  }
+                  board.makeMove(all.get(random.nextInt(all.size())));
+              }
+          }
+      }
+  }
+
+  private void comparePieceMoves(ChessBoard board, PieceColor side) {
+      MoveGenerator.generateLegalMoves(board, side, all);
+      for (int square = 0; square < 64; square++) {
+          int code = board.codeAt(square);
+          if (code == PieceCode.NONE || PieceCode.color(code) != side.ordinal()) {
+              continue;
+          }
+          MoveGenerator.generateLegalPieceMoves(board, square, piece);
+          int from = square;
+          int[] expected = Arrays.stream(toArray(all)).filter(move -> Move.from(move) == from).sorted().toArray();
+          int[] actual = Arrays.stream(toArray(piece)).sorted().toArray();
+          assertEquals(Arrays.toString(expected), Arrays.toString(actual), Fen.toFen(board) + " " + Fen.squareName(square));
+      }
+  }
+
+  private static int[] toArray(MoveList moves) {
+      int[] array = new int[moves.size()];
+      for (int i = 0; i < array.length; i++) {
+          array[i] = moves.get(i);
+      }
+      return array;
+  }
+}
@@ -0,0 +1,119 @@
+package chess;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+class MovePickerTest {
+  private static final String KIWIPETE = "r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1";
+
+  private final MovePicker picker = new MovePicker();
+  private final int[][] history = new int[13][64];
+
+  @Test
+  void stagesComeInOrder() {
+      ChessBoard board = Fen.parse(KIWIPETE);
+      int hashMove = move(board, "e2a6");
+      int firstKiller = move(board, "a2a3");
+      int secondKiller = move(board, "g2g3");
+      history[board.codeAt(Fen.parseSquare("e1"))][Fen.parseSquare("d1")] = 500;
+      picker.reset(board, hashMove, firstKiller, secondKiller, history);
+
+      List<Integer> order = drain();
+      assertEquals(hashMove, order.get(0));
+      int captures = 1;
+      while (isCaptureOrPromotion(order.get(captures))) {
+          captures++;
+      }
+      assertTrue(captures > 1, "captures follow the hash move");
+      // Most valuable victim first: victims never increase down the capture stage.
+      for (int i = 2; i < captures; i++) {
+          assertTrue(victim(board, order.get(i - 1)) >= victim(board, order.get(i)));
+      }
+      assertEquals(firstKiller, order.get(captures));
+      assertEquals(secondKiller, order.get(captures + 1));
+      // The best history score leads the remaining quiet moves.
+      assertEquals(move(board, "e1d1"), order.get(captures + 2));
+      for (int i = captures + 2; i < order.size(); i++) {
+          assertFalse(isCaptureOrPromotion(order.get(i)));
+      }
+  }
+
+  // Each pseudo-legal move comes out exactly once, whatever the hash and killer moves.
+  @Test
+  void yieldsEveryMoveOnce() {
+      ChessBoard board = Fen.parse(KIWIPETE);
+      int capture = move(board, "d5e6");
+      int quiet = move(board, "e1f1");
+      picker.reset(board, capture, quiet, capture, history);
+      List<Integer> order = drain();
+      assertEquals(pseudoLegal(board), new HashSet<>(order));
+      assertEquals(order.size(), new HashSet<>(order).size());
+  }
+
+  // Moves from another position are skipped rather than played.
+  @Test
+  void ignoresMovesThatDoNotFit() {
+      ChessBoard board = new ChessBoard();
+      int foreign = Move.of(Fen.parseSquare("e5"), Fen.parseSquare("f7"));
+      picker.reset(board, foreign, foreign, Move.NONE, history);
+      List<Integer> order = drain();
+      assertFalse(order.contains(foreign));
+      assertEquals(20, order.size());
+  }
+
+  @Test
+  void captureStageOnly() {
+      ChessBoard board = Fen.parse(KIWIPETE);
+      picker.resetCaptures(board);
+      List<Integer> order = drain();
+      MoveList captures = new MoveList();
+      MoveGenerator.generateCaptures(board, board.getSideToMove(), captures);
+      assertEquals(captures.size(), order.size());
+      order.forEach(move -> assertTrue(isCaptureOrPromotion(move)));
+  }
+
+  private List<Integer> drain() {
+      List<Integer> order = new ArrayList<>();
+      for (int move; (move = picker.next()) != Move.NONE;) {
+          order.add(move);
+      }
+      return order;
+  }
+
+  private static Set<Integer> pseudoLegal(ChessBoard board) {
+      MoveList moves = new MoveList();
+      MoveGenerator.generateMoves(board, board.getSideToMove(), moves);
+      Set<Integer> set = new HashSet<>();
+      for (int i = 0; i < moves.size(); i++) {
+          set.add(moves.get(i));
+      }
+      return set;
+  }
+
+  private static boolean isCaptureOrPromotion(int move) {
+      return Move.isCapture(move) || Move.promotion(move) != 0;
+  }
+
+  private static int victim(ChessBoard board, int move) {
+      return Move.hasFlag(move, Move.EN_PASSANT) ? PieceType.PAWN.ordinal()
+              : PieceCode.type(board.codeAt(Move.to(move)));
+  }
+
+  private static int move(ChessBoard board, String uci) {
+      MoveList moves = new MoveList();
+      MoveGenerator.generateMoves(board, board.getSideToMove(), moves);
+      for (int i = 0; i < moves.size(); i++) {
+          if (Move.toString(moves.get(i)).equals(uci)) {
+              return moves.get(i);
+          }
+      }
+      throw new AssertionError("No move " + uci);
+  }
+}
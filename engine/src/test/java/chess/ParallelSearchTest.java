@@ -0,0 +1,58 @@
+package chess;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+@Timeout(60)
+class ParallelSearchTest {
+  private final ParallelSearch search = new ParallelSearch(4, 16);
+  private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+
+  @AfterEach
+  void shutdown() {
+      search.shutdown();
+      timer.shutdownNow();
+  }
+
+  @Test
+  void timedSearchFindsMove() {
+      assertNotEquals(Move.NONE, search.search(new ChessBoard(), 200, SearchEngine.MAX_PLY));
+  }
+
+  // A stop sent as soon as the caller waits can reach the workers before their searches have started; it must
+  // still end an infinite search. Later stops end it too.
+  @Test
+  void stopEndsInfiniteSearch() throws InterruptedException {
+      for (long delay : new long[] { 0, 1, 20 }) {
+          int[] move = { Move.NONE };
+          Thread caller = new Thread(() -> move[0] = search.search(new ChessBoard(), TimeManager.INFINITE,
+                  SearchEngine.MAX_PLY));
+          caller.start();
+          while (caller.getState() != Thread.State.WAITING) {
+              Thread.onSpinWait();
+          }
+          Thread.sleep(delay);
+          search.stop();
+          caller.join();
+          assertNotEquals(Move.NONE, move[0]);
+      }
+  }
+
+  @Test
+  void interruptEndsSearchAndKeepsFlag() {
+      Thread caller = Thread.currentThread();
+      timer.schedule(caller::interrupt, 100, TimeUnit.MILLISECONDS);
+      assertEquals(Move.NONE, search.search(new ChessBoard(), TimeManager.INFINITE, SearchEngine.MAX_PLY));
+      assertTrue(Thread.interrupted());
+      // The workers are idle again and serve the next search.
+      assertNotEquals(Move.NONE, search.search(new ChessBoard(), 100, SearchEngine.MAX_PLY));
+  }
+}
@@ -0,0 +1,28 @@
+package chess;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+// Leaf counts of the standard perft positions against their published values, up to a few million nodes each.
+class PerftTest {
+  private static final long MAX_NODES = 5_000_000;
+
+  static Stream<Arguments> cases() {
+      return IntStream.range(0, Perft.POSITIONS.length).boxed().flatMap(p -> IntStream
+              .rangeClosed(1, Perft.EXPECTED[p].length)
+              .filter(depth -> Perft.EXPECTED[p][depth - 1] <= MAX_NODES)
+              .mapToObj(depth -> Arguments.of(Perft.NAMES[p], p, depth)));
+  }
+
+  @ParameterizedTest(name = "{0} depth {2}")
+  @MethodSource("cases")
+  void matchesPublishedCount(String name, int position, int depth) {
+      Perft perft = new Perft(Fen.parse(Perft.POSITIONS[position]));
+      assertEquals(Perft.EXPECTED[position][depth - 1], perft.count(depth));
+  }
+}
@@ -0,0 +1,65 @@
+package chess;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+class PgnImporterTest {
+  @TempDir
+  Path directory;
+
+  // Moves after a mid-game ';' comment must still be replayed.
+  @Test
+  void semicolonCommentEndsAtLineBreak() throws Exception {
+      List<PgnGame> games = importText("[Event \"comment\"]\n[Result \"*\"]\n\n"
+              + "1. e4 e5 ; the open game\n2. Nf3 Nc6 3. Bb5 a6 *\n");
+      assertEquals(1, games.size());
+      assertTrue(games.get(0).isValid(), games.get(0).getError());
+      assertEquals(6, games.get(0).getMoves().length);
+  }
+
+  @Test
+  void tagsAreDecodedAsUtf8() throws Exception {
+      List<PgnGame> games = importText("[White \"Nepomniachtchi, Ján\"]\n[Black \"Ding Liren 丁立人\"]\n\n"
+              + "1. d4 d5 *\n");
+      assertEquals(1, games.size());
+      assertEquals("Nepomniachtchi, Ján", games.get(0).getTags().get("White"));
+      assertEquals("Ding Liren 丁立人", games.get(0).getTags().get("Black"));
+  }
+
+  // A throwing sink must surface from importFile instead of leaving the reader blocked on a full queue.
+  @Test
+  @Timeout(30)
+  void sinkFailureStopsImport() {
+      StringBuilder pgn = new StringBuilder();
+      for (int i = 0; i < 100; i++) {
+          pgn.append("[Event \"").append(i).append("\"]\n\n1. e4 e5 *\n\n");
+      }
+      assertThrows(IllegalStateException.class, () -> importText(pgn.toString(), game -> {
+          throw new IllegalStateException("sink failed");
+      }));
+  }
+
+  private List<PgnGame> importText(String pgn) throws IOException, InterruptedException {
+      List<PgnGame> games = new CopyOnWriteArrayList<>();
+      importText(pgn, games::add);
+      return games;
+  }
+
+  private void importText(String pgn, Consumer<PgnGame> sink) throws IOException, InterruptedException {
+      Path file = directory.resolve("games.pgn");
+      Files.write(file, pgn.getBytes(StandardCharsets.UTF_8));
+      new PgnImporter(2, 4).importFile(file, sink);
+  }
+}
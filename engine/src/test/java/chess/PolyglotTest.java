@@ -0,0 +1,68 @@
+package chess;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import java.util.stream.Stream;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+// The test positions published with the Polyglot book format.
+class PolyglotTest {
+  static Stream<Arguments> positions() {
+      return Stream.of(
+              Arguments.of("", 0x463b96181691fc9cL),
+              Arguments.of("e2e4", 0x823c9b50fd114196L),
+              Arguments.of("e2e4 d7d5", 0x0756b94461c50fb0L),
+              Arguments.of("e2e4 d7d5 e4e5", 0x662fafb965db29d4L),
+              Arguments.of("e2e4 d7d5 e4e5 f7f5", 0x22a48b5a8e47ff78L),
+              Arguments.of("e2e4 d7d5 e4e5 f7f5 e1e2", 0x652a607ca3f242c1L),
+              Arguments.of("e2e4 d7d5 e4e5 f7f5 e1e2 e8f7", 0x00fdd303c946bdd9L),
+              Arguments.of("a2a4 b7b5 h2h4 b5b4 c2c4", 0x3c8123ea7b067637L),
+              Arguments.of("a2a4 b7b5 h2h4 b5b4 c2c4 b4c3 a1a3", 0x5c3f9b829b279560L));
+  }
+
+  @ParameterizedTest(name = "[{0}]")
+  @MethodSource("positions")
+  void matchesPublishedKey(String moves, long expected) {
+      ChessBoard board = play(moves);
+      assertEquals(expected, Polyglot.key(board));
+      // The key depends on the position only, not on how the board got there.
+      assertEquals(expected, Polyglot.key(Fen.parse(Fen.toFen(board))));
+  }
+
+  @ParameterizedTest(name = "[{0}]")
+  @MethodSource("positions")
+  void unmakeRestoresKey(String moves, long expected) {
+      ChessBoard board = play(moves);
+      MoveList legal = new MoveList();
+      MoveGenerator.generateLegalMoves(board, board.getSideToMove(), legal);
+      for (int i = 0; i < legal.size(); i++) {
+          board.makeMove(legal.get(i));
+          assertNotEquals(expected, Polyglot.key(board));
+          board.unmakeMove();
+          assertEquals(expected, Polyglot.key(board));
+      }
+  }
+
+  private static ChessBoard play(String moves) {
+      ChessBoard board = new ChessBoard();
+      MoveList legal = new MoveList();
+      for (String uci : moves.split(" ")) {
+          if (uci.isEmpty()) {
+              continue;
+          }
+          MoveGenerator.generateLegalMoves(board, board.getSideToMove(), legal);
+          int move = Move.NONE;
+          for (int i = 0; i < legal.size(); i++) {
+              if (Move.toString(legal.get(i)).equals(uci)) {
+                  move = legal.get(i);
+              }
+          }
+          assertNotEquals(Move.NONE, move, uci);
+          board.makeMove(move);
+      }
+      return board;
+  }
+}
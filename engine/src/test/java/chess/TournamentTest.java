@@ -0,0 +1,81 @@
+package chess;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+// Each opening is played twice with colors swapped, so a position that is already decided gives the first player
+// one game from each side of it.
+@Timeout(60)
+class TournamentTest {
+  private static final Tournament.Player FAST = new Tournament.Player("fast", 1, 1, 60_000, 0);
+
+  @Test
+  void checkmateScoresForTheMatingSide() throws InterruptedException {
+      Tournament tournament = play("rnb1kbnr/pppp1ppp/8/4p3/6Pq/5P2/PPPPP2P/RNBQKBNR w KQkq - 1 3", FAST, FAST);
+      assertEquals(1, tournament.getWins());
+      assertEquals(1, tournament.getLosses());
+      assertEquals(2, tournament.getOutcomeCount(Tournament.Outcome.CHECKMATE));
+  }
+
+  @Test
+  void stalemateIsDrawn() throws InterruptedException {
+      Tournament tournament = play("7k/5Q2/6K1/8/8/8/8/8 b - - 0 1", FAST, FAST);
+      assertEquals(2, tournament.getDraws());
+      assertEquals(2, tournament.getOutcomeCount(Tournament.Outcome.STALEMATE));
+  }
+
+  @Test
+  void bareKingsAreDrawn() throws InterruptedException {
+      Tournament tournament = play("8/8/4k3/8/8/3K4/8/8 w - - 0 1", FAST, FAST);
+      assertEquals(2, tournament.getDraws());
+      assertEquals(2, tournament.getOutcomeCount(Tournament.Outcome.INSUFFICIENT_MATERIAL));
+  }
+
+  @Test
+  void fiftyMoveRuleIsDrawn() throws InterruptedException {
+      Tournament tournament = play("8/8/4k3/8/8/3K4/8/R7 w - - 100 80", FAST, FAST);
+      assertEquals(2, tournament.getDraws());
+      assertEquals(2, tournament.getOutcomeCount(Tournament.Outcome.FIFTY_MOVES));
+  }
+
+  // A clock that is already negative flags on the player's first move, as White and as Black.
+  @Test
+  void flagFallLosesWhileOpponentCanMate() throws InterruptedException {
+      Tournament.Player flagged = new Tournament.Player("flagged", 1, 1, -1, 0);
+      Tournament tournament = play(Fen.START_POSITION, flagged, FAST);
+      assertEquals(2, tournament.getLosses());
+      assertEquals(2, tournament.getOutcomeCount(Tournament.Outcome.TIME_FORFEIT));
+  }
+
+  // The side that flagged loses only if the opponent could still mate; its own material does not matter.
+  @Test
+  void flagFallAgainstBareKingIsDrawn() throws InterruptedException {
+      Tournament.Player flagged = new Tournament.Player("flagged", 1, 1, -1, 0);
+      Tournament tournament = play("8/8/4k3/8/8/3K4/8/QQ6 w - - 0 1", flagged, FAST);
+      assertEquals(1, tournament.getLosses());
+      assertEquals(1, tournament.getDraws());
+      assertEquals(2, tournament.getOutcomeCount(Tournament.Outcome.TIME_FORFEIT));
+  }
+
+  @Test
+  void matingMaterial() {
+      assertFalse(Tournament.hasMatingMaterial(Fen.parse("8/8/4k3/8/8/3K4/8/QQ6 w - - 0 1"), PieceColor.BLACK));
+      assertFalse(Tournament.hasMatingMaterial(Fen.parse("8/8/4k3/4b3/8/3K4/8/R7 w - - 0 1"), PieceColor.BLACK));
+      assertFalse(Tournament.hasMatingMaterial(Fen.parse("8/8/4k3/4n3/8/3K4/8/R7 w - - 0 1"), PieceColor.BLACK));
+      assertTrue(Tournament.hasMatingMaterial(Fen.parse("8/8/4k3/3nn3/8/3K4/8/8 w - - 0 1"), PieceColor.BLACK));
+      assertTrue(Tournament.hasMatingMaterial(Fen.parse("8/7p/4k3/8/8/3K4/8/8 w - - 0 1"), PieceColor.BLACK));
+      assertTrue(Tournament.hasMatingMaterial(Fen.parse("8/8/4k3/8/8/3K4/8/R7 w - - 0 1"), PieceColor.WHITE));
+  }
+
+  private static Tournament play(String opening, Tournament.Player first, Tournament.Player second)
+          throws InterruptedException {
+      Tournament tournament = new Tournament(first, second, List.of(opening), 1);
+      tournament.run(2, 0);
+      return tournament;
+  }
+}
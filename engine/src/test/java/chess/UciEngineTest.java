@@ -0,0 +1,99 @@
+package chess;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+@Timeout(60)
+class UciEngineTest {
+  private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+  private final UciEngine uci = new UciEngine(new PrintStream(output, true, StandardCharsets.UTF_8));
+
+  @Test
+  void handshake() {
+      uci.handle("uci");
+      uci.handle("isready");
+      List<String> lines = lines();
+      assertTrue(lines.contains("uciok"));
+      assertEquals("readyok", lines.get(lines.size() - 1));
+      assertFalse(uci.handle("quit"));
+  }
+
+  @Test
+  void findsMateInOneFromFen() throws InterruptedException {
+      uci.handle("position fen 6k1/5ppp/8/8/8/8/8/R5K1 w - - 0 1");
+      uci.handle("go depth 3");
+      assertEquals("bestmove a1a8", awaitBestMove());
+  }
+
+  // The position is reached through the moves list: after 1. f3 e5 2. g4 Black mates with Qh4.
+  @Test
+  void appliesMoves() throws InterruptedException {
+      uci.handle("position startpos moves f2f3");
+      uci.handle("position startpos moves f2f3 e7e5 g2g4");
+      uci.handle("go depth 2");
+      assertEquals("bestmove d8h4", awaitBestMove());
+      assertTrue(lines().stream().noneMatch(line -> line.startsWith("info string")));
+  }
+
+  @Test
+  void reportsIllegalMove() {
+      uci.handle("position startpos moves e2e5");
+      assertTrue(lines().contains("info string illegal move: e2e5"));
+  }
+
+  // An infinite search holds its bestmove until stop, and stop returns only once it has been sent.
+  @Test
+  void infiniteSearchWaitsForStop() throws InterruptedException {
+      uci.handle("position startpos");
+      uci.handle("go infinite");
+      Thread.sleep(200);
+      uci.handle("isready");
+      assertTrue(lines().contains("readyok"));
+      assertFalse(hasBestMove());
+      uci.handle("stop");
+      assertTrue(hasBestMove());
+  }
+
+  // A ponder search becomes a timed search on ponderhit and then ends by itself.
+  @Test
+  void ponderHitStartsClock() throws InterruptedException {
+      uci.handle("position startpos moves e2e4");
+      uci.handle("go ponder wtime 1000 btime 1000");
+      Thread.sleep(200);
+      assertFalse(hasBestMove());
+      uci.handle("ponderhit");
+      assertTrue(awaitBestMove().startsWith("bestmove "));
+  }
+
+  @Test
+  void budgetKeepsReserve() {
+      assertEquals(TimeManager.INFINITE, uci.budget(UciEngine.NO_CLOCK, 0, 0, -1));
+      assertEquals(970, uci.budget(60_000, 0, 0, 1000));
+      assertEquals(1, uci.budget(-50, 0, 0, -1));
+      assertTrue(uci.budget(60_000, 1000, 0, -1) <= 30_000);
+  }
+
+  private String awaitBestMove() throws InterruptedException {
+      while (!hasBestMove()) {
+          Thread.sleep(10);
+      }
+      return lines().stream().filter(line -> line.startsWith("bestmove")).findFirst().orElseThrow();
+  }
+
+  private boolean hasBestMove() {
+      return lines().stream().anyMatch(line -> line.startsWith("bestmove"));
+  }
+
+  private List<String> lines() {
+      return output.toString(StandardCharsets.UTF_8).lines().collect(Collectors.toList());
+  }
+}
@@ -0,0 +1,50 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Build step: chess.java keeps every class in one file, each section introduced by a "ClassName:" label line.
+// Writes one compilable source per section into <outputDir>/<package>/, with the package declaration added.
+// Usage: java SplitSources.java <chess.java> <outputDir> <package>
+public final class SplitSources {
+  private static final Pattern LABEL = Pattern.compile("^[A-Za-z][A-Za-z0-9]*:\\s*$");
+  private static final Pattern COMMENT_LABEL = Pattern.compile("^/\\*.*:\\*/\\s*$");
+  private static final Pattern PUBLIC_TYPE = Pattern.compile(
+          "^public\\s+(?:(?:abstract|final)\\s+)*(?:class|enum|interface)\\s+(\\w+)", Pattern.MULTILINE);
+
+  public static void main(String[] args) throws IOException {
+      Path input = Path.of(args[0]);
+      Path output = Path.of(args[1]).resolve(args[2].replace('.', '/'));
+      Files.createDirectories(output);
+      List<List<String>> sections = new ArrayList<>();
+      List<String> current = new ArrayList<>();
+      for (String line : Files.readAllLines(input, StandardCharsets.UTF_8)) {
+          if (LABEL.matcher(line).matches() || COMMENT_LABEL.matcher(line).matches()) {
+              sections.add(current);
+              current = new ArrayList<>();
+          } else {
+              current.add(line);
+          }
+      }
+      sections.add(current);
+      int written = 0;
+      for (List<String> section : sections) {
+          String text = String.join("\n", section);
+          if (text.isBlank()) {
+              continue;
+          }
+          Matcher type = PUBLIC_TYPE.matcher(text);
+          if (!type.find()) {
+              throw new IllegalStateException("Section without a public type: " + text.strip().lines().findFirst().orElse(""));
+          }
+          Files.writeString(output.resolve(type.group(1) + ".java"),
+                  "package " + args[2] + ";\n\n" + text.strip() + "\n", StandardCharsets.UTF_8);
+          written++;
+      }
+      System.out.println("SplitSources: wrote " + written + " sources to " + output);
+  }
+}